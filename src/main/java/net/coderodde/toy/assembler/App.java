@@ -1,10 +1,24 @@
 package net.coderodde.toy.assembler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class implements a command-line utility that compiles ToyVM source code
@@ -17,24 +31,347 @@ public class App {
    
     private static final String SOURCE_CODE_FILE_EXTENSION  = ".toy";
     private static final String BINARY_IMAGE_FILE_EXTENSION = ".brick";
+    private static final String FLAG_PREFIX                 = "--";
+    private static final String RELAX_BRANCHES_FLAG         = "--relax";
+    private static final String SUPERINSTRUCTIONS_FLAG      = "--fuse";
+    private static final String VIRTUAL_REGISTERS_FLAG      = "--vregs";
+    private static final String PROFILE_FLAG                = "--profile";
+    private static final String PROFILE_REPORT_EXTENSION    = ".profile.txt";
+    private static final String COLLAPSED_STACKS_EXTENSION  = ".collapsed";
+    private static final String EXECUTION_COUNTS_EXTENSION  = ".counts";
+    private static final String REORDER_FLAG                = "--reorder";
+    private static final String INLINE_FLAG                 = "--inline=";
+    private static final int PROFILE_SAMPLING_INTERVAL      = 1;
+    private static final String SOURCE_MAP_FLAG             = "--source-map";
+    private static final String SOURCE_MAP_EXTENSION        = ".map";
+    private static final String DISASSEMBLE_FLAG            = "--disassemble";
+    private static final String DISASSEMBLY_EXTENSION       = ".dis";
+    private static final String MAX_ERRORS_FLAG             = "--max-errors=";
+    private static final String STATS_FLAG                  = "--stats";
+    private static final String STATS_JSON_FLAG             = "--stats-json=";
+    private static final String COMPRESS_FLAG               = "--compress";
+    private static final String VERIFY_STACK_FLAG           = "--verify-stack";
     
     public static void main(String[] args) {
+        boolean branchRelaxation = false;
+        boolean superinstructions = false;
+        boolean virtualRegisters = false;
+        boolean profile = false;
+        boolean sourceMap = false;
+        boolean disassemble = false;
+        int maxErrors = 0;
+        boolean printStatistics = false;
+        String statisticsJsonFileName = null;
+        boolean compress = false;
+        boolean verifyStack = false;
+        boolean reorder = false;
+        int inlineThreshold = 0;
+        
+        for (String arg : args) {
+            if (arg.equals(RELAX_BRANCHES_FLAG)) {
+                branchRelaxation = true;
+            } else if (arg.equals(SUPERINSTRUCTIONS_FLAG)) {
+                superinstructions = true;
+            } else if (arg.equals(VIRTUAL_REGISTERS_FLAG)) {
+                virtualRegisters = true;
+            } else if (arg.equals(PROFILE_FLAG)) {
+                profile = true;
+            } else if (arg.equals(SOURCE_MAP_FLAG)) {
+                sourceMap = true;
+            } else if (arg.equals(DISASSEMBLE_FLAG)) {
+                disassemble = true;
+            } else if (arg.equals(COMPRESS_FLAG)) {
+                compress = true;
+            } else if (arg.equals(VERIFY_STACK_FLAG)) {
+                verifyStack = true;
+            } else if (arg.equals(REORDER_FLAG)) {
+                reorder = true;
+            } else if (arg.equals(STATS_FLAG)) {
+                printStatistics = true;
+            } else if (arg.startsWith(STATS_JSON_FLAG)) {
+                statisticsJsonFileName = 
+                        arg.substring(STATS_JSON_FLAG.length());
+            } else if (arg.startsWith(INLINE_FLAG)) {
+                try {
+                    inlineThreshold = Integer.parseInt(
+                            arg.substring(INLINE_FLAG.length()));
+                    
+                    if (inlineThreshold < 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException ex) {
+                    System.err.println(
+                            "ERROR: Bad inline threshold: \"" + arg + "\".");
+                    return;
+                }
+            } else if (arg.startsWith(MAX_ERRORS_FLAG)) {
+                try {
+                    maxErrors = Integer.parseInt(
+                            arg.substring(MAX_ERRORS_FLAG.length()));
+                    
+                    if (maxErrors < 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException ex) {
+                    System.err.println(
+                            "ERROR: Bad maximum number of errors: \"" + 
+                            arg + "\".");
+                    return;
+                }
+            } else if (arg.startsWith(FLAG_PREFIX)) {
+                System.err.println("ERROR: Unknown flag \"" + arg + "\".");
+                return;
+            }
+        }
+        
+        if (disassemble) {
+            for (File file : getFileList(args)) {
+                try {
+                    disassemble(file);
+                } catch (IOException ex) {
+                    System.err.println("ERROR: Cannot disassemble \"" + 
+                                       file.getAbsolutePath() + "\": " + 
+                                       ex.getMessage());
+                }
+            }
+            
+            return;
+        }
+        
+        boolean collectStatistics = printStatistics || 
+                                    statisticsJsonFileName != null;
+        List<AssemblyStatistics> statisticsList = new ArrayList<>();
+        // Without any of the optional features, the bytes of the source are
+        // assembled directly.
+        boolean plainAssembly = !branchRelaxation
+                             && !superinstructions
+                             && !virtualRegisters
+                             && !profile
+                             && !sourceMap
+                             && !verifyStack
+                             && !reorder
+                             && inlineThreshold == 0
+                             && maxErrors == 0
+                             && !collectStatistics;
+        
         for (File file : getFileList(args)) {
             try {
+                if (plainAssembly) {
+                    byte[] machineCode = new AsciiSourceAssembler(
+                            file.getAbsolutePath(),
+                            FileUtilities.readFile(file)).assemble();
+                    writeImage(new File(computeOutputFileName(file.getName())),
+                               machineCode,
+                               compress);
+                    continue;
+                }
+                
+                AssemblyStatistics statistics = 
+                        collectStatistics ? 
+                        new AssemblyStatistics(file.getAbsolutePath()) :
+                        null;
+                long startTime = System.nanoTime();
                 List<String> sourceCode = new SourceFileReader(file)
                                              .toLineList();
-                byte[] machineCode = new ToyVMAssembler(file.getAbsolutePath(),
-                                                        sourceCode).assemble();
+                
+                if (statistics != null) {
+                    statistics.addPhaseTime(AssemblyStatistics.Phase.READ, 
+                                            System.nanoTime() - startTime);
+                }
+                
+                ToyVMAssembler assembler = 
+                        new ToyVMAssembler(file.getAbsolutePath(), sourceCode);
+                assembler.setStatistics(statistics);
+                assembler.setBranchRelaxation(branchRelaxation);
+                assembler.setSuperinstructions(superinstructions);
+                assembler.setVirtualRegisters(virtualRegisters);
+                assembler.setSourceMap(sourceMap || profile);
+                assembler.setMaxErrors(maxErrors);
+                assembler.setStackVerification(verifyStack);
+                assembler.setInlineThreshold(inlineThreshold);
                 String outputFileName = computeOutputFileName(file.getName());
-                FileUtilities.writeFile(new File(outputFileName), machineCode);
+                
+                if (reorder) {
+                    assembler.setExecutionProfile(
+                            readExecutionProfile(outputFileName));
+                }
+                
+                byte[] machineCode = assembler.assemble();
+                
+                if (verifyStack && assembler.getMaxStackDepth() 
+                                   == ImageHeader.UNKNOWN_STACK_DEPTH) {
+                    System.err.println(
+                            "WARNING: Cannot verify the stack of \"" + 
+                            file.getAbsolutePath() + "\": " + 
+                            assembler.getStackVerificationFailure());
+                }
+                
+                startTime = System.nanoTime();
+                writeImage(new File(outputFileName), machineCode, compress);
+                
+                if (statistics != null) {
+                    statistics.addPhaseTime(AssemblyStatistics.Phase.WRITE,
+                                            System.nanoTime() - startTime);
+                    statisticsList.add(statistics);
+                    
+                    if (printStatistics) {
+                        System.err.print(statistics);
+                    }
+                }
+                
+                if (sourceMap) {
+                    try (OutputStream stream = new BufferedOutputStream(
+                            new FileOutputStream(outputFileName + 
+                                                 SOURCE_MAP_EXTENSION))) {
+                        assembler.getSourceMap().write(stream);
+                    }
+                }
+                
+                if (profile) {
+                    profile(machineCode, 
+                            assembler.getLabelMap(),
+                            assembler.getSourceMap(),
+                            outputFileName);
+                }
             } catch (FileNotFoundException ex) {
                 System.err.println(
                         "ERROR: File \"" + file.getAbsolutePath() + "\" " +
                         "is not found.");
-            } catch (AssemblyException | IOException ex) {
+            } catch (AssemblyException | ToyVMException | IOException ex) {
                 System.err.println(ex.getMessage());
             }
         }
+        
+        if (statisticsJsonFileName != null) {
+            try {
+                writeStatisticsJson(statisticsList, statisticsJsonFileName);
+            } catch (IOException ex) {
+                System.err.println(
+                        "ERROR: Cannot write the statistics to \"" + 
+                        statisticsJsonFileName + "\": " + ex.getMessage());
+            }
+        }
+    }
+    
+    // Writes the image, optionally in the compressed container. The image
+    // header stays uncompressed in front of the container.
+    private static void writeImage(File file, byte[] image, boolean compress)
+    throws IOException {
+        if (compress) {
+            ImageHeader header = null;
+
+            if (ImageHeader.isPresent(image)) {
+                header = ImageHeader.read(image);
+                image = Arrays.copyOfRange(image, 
+                                           header.getSize(), 
+                                           image.length);
+            }
+
+            image = CompressedImage.compress(
+                    image, 
+                    CompressedImage.DEFAULT_BLOCK_SIZE);
+
+            if (header != null) {
+                image = header.prependTo(image);
+            }
+        }
+
+        FileUtilities.writeFile(file, image);
+    }
+    
+    // Writes the statistics of all the assembled files as a JSON array.
+    private static void writeStatisticsJson(
+            List<AssemblyStatistics> statisticsList,
+            String fileName) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write('[');
+            
+            for (int i = 0; i < statisticsList.size(); ++i) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                
+                statisticsList.get(i).writeJson(writer);
+            }
+            
+            writer.write("]\n");
+        }
+    }
+    
+    // Disassembles the image, using the source map next to it if present.
+    private static void disassemble(File imageFile) throws IOException {
+        ToyVMDisassembler disassembler = new ToyVMDisassembler(imageFile);
+        File sourceMapFile = new File(imageFile.getPath() + 
+                                      SOURCE_MAP_EXTENSION);
+        
+        if (sourceMapFile.isFile()) {
+            try (InputStream stream = new BufferedInputStream(
+                    new FileInputStream(sourceMapFile))) {
+                disassembler.setSourceMap(SourceMap.read(stream));
+            }
+        }
+        
+        try (Writer writer = new BufferedWriter(
+                new FileWriter(imageFile.getPath() + DISASSEMBLY_EXTENSION))) {
+            disassembler.disassemble(writer);
+        }
+    }
+    
+    // Runs the image in-process and writes the profile report and the 
+    // collapsed call stacks next to the image.
+    private static void profile(byte[] machineCode,
+                                Map<String, Integer> labelMap,
+                                SourceMap sourceMap,
+                                String imageFileName) throws IOException {
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(machineCode);
+        ToyVMProfiler profiler = new ToyVMProfiler(interpreter,
+                                                   machineCode.length,
+                                                   labelMap,
+                                                   PROFILE_SAMPLING_INTERVAL);
+        profiler.setSourceMap(sourceMap);
+        
+        try {
+            profiler.run();
+        } catch (ToyVMException ex) {
+            // Attribute the crash to the source line.
+            throw new ToyVMException(
+                    ex.getMessage() + " At " + 
+                    sourceMap.describe(interpreter.getProgramCounter()));
+        }
+        
+        try (Writer writer = new BufferedWriter(
+                new FileWriter(imageFileName + PROFILE_REPORT_EXTENSION))) {
+            profiler.writeReport(writer);
+        }
+        
+        try (Writer writer = new BufferedWriter(
+                new FileWriter(imageFileName + COLLAPSED_STACKS_EXTENSION))) {
+            profiler.writeCollapsedStacks(writer);
+        }
+        
+        try (Writer writer = new BufferedWriter(
+                new FileWriter(imageFileName + EXECUTION_COUNTS_EXTENSION))) {
+            profiler.getExecutionProfile().write(writer);
+        }
+    }
+    
+    // Reads the execution counts written by a previous profiling run of the
+    // image, or returns null if there are none.
+    private static ExecutionProfile readExecutionProfile(String imageFileName)
+    throws IOException {
+        File file = new File(imageFileName + EXECUTION_COUNTS_EXTENSION);
+        
+        if (!file.isFile()) {
+            System.err.println(
+                    "WARNING: No execution counts in \"" + 
+                    file.getAbsolutePath() + "\"; run with " + PROFILE_FLAG + 
+                    " first.");
+            return null;
+        }
+        
+        try (Reader reader = new BufferedReader(new FileReader(file))) {
+            return ExecutionProfile.read(reader);
+        }
     }
     
     private static String computeOutputFileName(String inputFileName) {
@@ -50,7 +387,9 @@ public class App {
         List<File> fileList = new ArrayList<>(fileNameArray.length);
         
         for (String fileName : fileNameArray) {
-            fileList.add(new File(fileName));
+            if (!fileName.startsWith(FLAG_PREFIX)) {
+                fileList.add(new File(fileName));
+            }
         }
         
         return fileList;
@@ -0,0 +1,790 @@
+package net.coderodde.toy.assembler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Scanner;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+/**
+ * This class implements an assembler front end working directly on the bytes
+ * of an ASCII source file. The lines are lexed in place: the mnemonics and the
+ * register names are matched by comparing the bytes against precomputed byte
+ * arrays, the integers are parsed from the bytes, and the labels are kept in a
+ * hash table keyed by the byte ranges of the source. Thus, assembling a
+ * program does not decode the source into strings; only the names and the
+ * contents of the {@code word} and {@code str} declarations become strings.
+ * <p>
+ * The front end handles the common case only: a well-formed ASCII program
+ * assembled with {@link Configuration#DEFAULT} and without any of the
+ * optional features of {@link ToyVMAssembler}. Whenever it encounters
+ * anything else, be it a non-ASCII byte or an error, it decodes the source and
+ * falls back to {@link ToyVMAssembler}, which produces the very same image or
+ * the usual diagnostics.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 30, 2016)
+ */
+public class AsciiSourceAssembler {
+
+    // The operand formats of the instructions.
+    private static final int FORMAT_NONE              = 0;
+    private static final int FORMAT_REGISTER          = 1;
+    private static final int FORMAT_REGISTER_REGISTER = 2;
+    private static final int FORMAT_BRANCH            = 3;
+    private static final int FORMAT_REGISTER_ADDRESS  = 4;
+    private static final int FORMAT_REGISTER_CONSTANT = 5;
+    private static final int FORMAT_INTERRUPT         = 6;
+    private static final int FORMAT_WORD              = 7;
+    private static final int FORMAT_STRING            = 8;
+    private static final int FORMAT_THREE_REGISTERS   = 9;
+
+    private static final byte[][] MNEMONICS;
+    // All the names ToyVMAssembler reserves, including the instructions and
+    // the directives this front end falls back on.
+    private static final byte[][] RESERVED_NAMES;
+    private static final byte[] OPCODES;
+    private static final int[] FORMATS;
+
+    private static final byte[][] REGISTER_NAMES;
+    private static final byte[] REGISTER_CODES;
+
+    private static final int MAX_TOKENS = 4;
+    private static final int NOT_FOUND = -1;
+
+    static {
+        Object[][] table = {
+            { "add",    ADD,      FORMAT_REGISTER_REGISTER },
+            { "neg",    NEG,      FORMAT_REGISTER          },
+            { "mul",    MUL,      FORMAT_REGISTER_REGISTER },
+            { "div",    DIV,      FORMAT_REGISTER_REGISTER },
+            { "mod",    MOD,      FORMAT_REGISTER_REGISTER },
+            { "cmp",    CMP,      FORMAT_REGISTER_REGISTER },
+            { "ja",     JA,       FORMAT_BRANCH            },
+            { "je",     JE,       FORMAT_BRANCH            },
+            { "jb",     JB,       FORMAT_BRANCH            },
+            { "jmp",    JMP,      FORMAT_BRANCH            },
+            { "call",   CALL,     FORMAT_BRANCH            },
+            { "ret",    RET,      FORMAT_NONE              },
+            { "load",   LOAD,     FORMAT_REGISTER_ADDRESS  },
+            { "store",  STORE,    FORMAT_REGISTER_ADDRESS  },
+            { "const",  CONST,    FORMAT_REGISTER_CONSTANT },
+            { "rload",  RLOAD,    FORMAT_REGISTER_REGISTER },
+            { "rstore", RSTORE,   FORMAT_REGISTER_REGISTER },
+            { "memcpy", MEMCPY,   FORMAT_THREE_REGISTERS   },
+            { "memset", MEMSET,   FORMAT_THREE_REGISTERS   },
+            { "halt",   HALT,     FORMAT_NONE              },
+            { "int",    INT,      FORMAT_INTERRUPT         },
+            { "nop",    NOP,      FORMAT_NONE              },
+            { "push",   PUSH,     FORMAT_REGISTER          },
+            { "pusha",  PUSH_ALL, FORMAT_NONE              },
+            { "pop",    POP,      FORMAT_REGISTER          },
+            { "popa",   POP_ALL,  FORMAT_NONE              },
+            { "lsp",    LSP,      FORMAT_REGISTER          },
+            { "word",   (byte) 0, FORMAT_WORD              },
+            { "str",    (byte) 0, FORMAT_STRING            },
+        };
+
+        MNEMONICS = new byte[table.length][];
+        OPCODES = new byte[table.length];
+        FORMATS = new int[table.length];
+
+        for (int i = 0; i < table.length; ++i) {
+            MNEMONICS[i] = ((String) table[i][0])
+                           .getBytes(StandardCharsets.US_ASCII);
+            OPCODES[i] = (Byte) table[i][1];
+            FORMATS[i] = (Integer) table[i][2];
+        }
+
+        RESERVED_NAMES = new byte[getMnemonics().size()][];
+        int reservedIndex = 0;
+
+        for (String mnemonic : getMnemonics()) {
+            RESERVED_NAMES[reservedIndex++] =
+                    mnemonic.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        Map<String, Byte> registerMap =
+                Configuration.DEFAULT.getRegisterMap();
+        REGISTER_NAMES = new byte[registerMap.size()][];
+        REGISTER_CODES = new byte[registerMap.size()];
+        int index = 0;
+
+        for (Map.Entry<String, Byte> entry : registerMap.entrySet()) {
+            REGISTER_NAMES[index] =
+                    entry.getKey().getBytes(StandardCharsets.US_ASCII);
+            REGISTER_CODES[index++] = entry.getValue();
+        }
+    }
+
+    /**
+     * Thrown internally whenever the source leaves the common case. Being
+     * stackless, it is cheap to throw.
+     */
+    private static final class FallbackException extends RuntimeException {
+        FallbackException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final FallbackException FALLBACK = new FallbackException();
+
+    private final String fileName;
+    private final byte[] source;
+    private final int sourceOffset;
+    private final int sourceLimit;
+
+    private final CodeBuffer machineCode = new CodeBuffer();
+    private final SymbolTable labelTable;
+    private final SymbolTable dataTable;
+
+    // The pending fixups: the address of the operand and the byte range of
+    // the referenced name.
+    private int[] labelFixups = new int[48];
+    private int labelFixupCount;
+    private int[] dataFixups = new int[48];
+    private int dataFixupCount;
+
+    // The data declarations in the order they appear in the source.
+    private final Map<String, Integer> mapWordNameToWordValue = new HashMap<>();
+    private final Map<String, String> mapStringNameToStringValue =
+            new HashMap<>();
+    private final List<String> dataNameList = new ArrayList<>();
+
+    // The number of labels waiting for the next instruction.
+    private int pendingLabelCount;
+
+    // The token ranges of the line being assembled.
+    private final int[] tokenStarts = new int[MAX_TOKENS];
+    private final int[] tokenEnds = new int[MAX_TOKENS];
+    private int tokenCount;
+
+    // The value of the most recently parsed integer.
+    private int integerValue;
+
+    public AsciiSourceAssembler(String fileName, byte[] source) {
+        this(fileName, ByteBuffer.wrap(Objects.requireNonNull(
+                source, "The input source is null.")));
+    }
+
+    public AsciiSourceAssembler(String fileName, ByteBuffer source) {
+        this.fileName = Objects.requireNonNull(fileName,
+                                               "The input file name is null.");
+        Objects.requireNonNull(source, "The input source is null.");
+
+        if (source.hasArray()) {
+            this.source = source.array();
+            this.sourceOffset = source.arrayOffset() + source.position();
+            this.sourceLimit = source.arrayOffset() + source.limit();
+        } else {
+            this.source = new byte[source.remaining()];
+            source.duplicate().get(this.source);
+            this.sourceOffset = 0;
+            this.sourceLimit = this.source.length;
+        }
+
+        this.labelTable = new SymbolTable(this.source);
+        this.dataTable = new SymbolTable(this.source);
+    }
+
+    /**
+     * Assembles the source into an image.
+     *
+     * @return the image.
+     * @throws AssemblyException if the source is erroneous.
+     */
+    public byte[] assemble() {
+        try {
+            return assembleBytes();
+        } catch (FallbackException ex) {
+            return new ToyVMAssembler(fileName, decodeLines()).assemble();
+        }
+    }
+
+    private byte[] assembleBytes() {
+        int lineStart = sourceOffset;
+
+        while (lineStart < sourceLimit) {
+            int lineEnd = lineStart;
+
+            while (lineEnd < sourceLimit
+                    && source[lineEnd] != '\n'
+                    && source[lineEnd] != '\r') {
+                lineEnd++;
+            }
+
+            assembleLine(lineStart, lineEnd);
+
+            if (lineEnd < sourceLimit
+                    && source[lineEnd] == '\r'
+                    && lineEnd + 1 < sourceLimit
+                    && source[lineEnd + 1] == '\n') {
+                lineEnd++;
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        return link();
+    }
+
+    private void assembleLine(int start, int end) {
+        int commentStart = end;
+
+        for (int i = end - 1; i >= start; --i) {
+            byte b = source[i];
+
+            if ((b < 0x20 && !isWhitespace(b)) || b >= 0x7f) {
+                throw FALLBACK;
+            }
+
+            if (b == '/' && i + 1 < end && source[i + 1] == '/') {
+                commentStart = i;
+            }
+        }
+
+        // Prune the possible comment.
+        end = commentStart;
+
+        start = skipWhitespace(start, end);
+        end = trimEnd(start, end);
+        int colonIndex = indexOf(':', start, end);
+
+        if (colonIndex != NOT_FOUND) {
+            if (indexOf(':', colonIndex + 1, end) != NOT_FOUND) {
+                throw FALLBACK;
+            }
+
+            int labelEnd = trimEnd(start, colonIndex);
+
+            if (isReservedName(start, labelEnd)) {
+                throw FALLBACK;
+            }
+
+            labelTable.put(start, labelEnd, machineCode.size());
+            pendingLabelCount++;
+            start = skipWhitespace(colonIndex + 1, end);
+        }
+
+        if (start == end) {
+            return;
+        }
+
+        tokenize(start, end);
+        int mnemonic = findMnemonic(tokenStarts[0], tokenEnds[0]);
+
+        if (mnemonic == NOT_FOUND) {
+            throw FALLBACK;
+        }
+
+        switch (FORMATS[mnemonic]) {
+            case FORMAT_NONE:
+                expectTokens(1);
+                machineCode.add(OPCODES[mnemonic]);
+                break;
+
+            case FORMAT_REGISTER:
+                expectTokens(2);
+                machineCode.add(OPCODES[mnemonic]);
+                emitRegister(1);
+                break;
+
+            case FORMAT_REGISTER_REGISTER:
+                expectTokens(3);
+
+                if (source[tokenStarts[2]] == '#') {
+                    assembleImmediateForm(OPCODES[mnemonic]);
+                    break;
+                }
+
+                machineCode.add(OPCODES[mnemonic]);
+                emitRegister(1);
+                emitRegister(2);
+                break;
+
+            case FORMAT_THREE_REGISTERS:
+                expectTokens(4);
+                machineCode.add(OPCODES[mnemonic]);
+                emitRegister(1);
+                emitRegister(2);
+                emitRegister(3);
+                break;
+
+            case FORMAT_BRANCH:
+                expectTokens(2);
+                machineCode.add(OPCODES[mnemonic]);
+                emitOperand(1, true);
+                break;
+
+            case FORMAT_REGISTER_ADDRESS:
+            case FORMAT_REGISTER_CONSTANT:
+                expectTokens(3);
+                machineCode.add(OPCODES[mnemonic]);
+                emitRegister(1);
+                emitOperand(2, false);
+                break;
+
+            case FORMAT_INTERRUPT:
+                expectTokens(2);
+
+                if (!parseInteger(tokenStarts[1], tokenEnds[1])) {
+                    throw FALLBACK;
+                }
+
+                machineCode.add(OPCODES[mnemonic]);
+                machineCode.add((byte) integerValue);
+                break;
+
+            case FORMAT_WORD:
+                assembleWord();
+                break;
+
+            case FORMAT_STRING:
+                assembleString(start, end);
+                break;
+        }
+
+        pendingLabelCount = 0;
+    }
+
+    // Assembles 'op regi #constant'.
+    private void assembleImmediateForm(byte opcode) {
+        byte immediateOpcode = toImmediateOpcode(opcode);
+
+        if (immediateOpcode == 0
+                || !parseInteger(tokenStarts[2] + 1, tokenEnds[2])) {
+            throw FALLBACK;
+        }
+
+        machineCode.add(immediateOpcode);
+        emitRegister(1);
+        emitWord(integerValue);
+    }
+
+    private static byte toImmediateOpcode(byte opcode) {
+        switch (opcode) {
+            case ADD:
+                return ADD_IMMEDIATE;
+
+            case MUL:
+                return MUL_IMMEDIATE;
+
+            case DIV:
+                return DIV_IMMEDIATE;
+
+            case MOD:
+                return MOD_IMMEDIATE;
+
+            case CMP:
+                return CMP_IMMEDIATE;
+
+            default:
+                return 0;
+        }
+    }
+
+    private void assembleWord() {
+        expectTokens(3);
+
+        if (!parseInteger(tokenStarts[2], tokenEnds[2])) {
+            throw FALLBACK;
+        }
+
+        String name = declareData(1);
+        mapWordNameToWordValue.put(name, integerValue);
+    }
+
+    private void assembleString(int start, int end) {
+        if (tokenCount < 3) {
+            throw FALLBACK;
+        }
+
+        int contentStart = tokenStarts[2];
+
+        // Require exactly 'str name "content"'.
+        if (source[contentStart] != '"'
+                || source[end - 1] != '"'
+                || end - contentStart < 2
+                || indexOf('"', tokenStarts[1], tokenEnds[1]) != NOT_FOUND) {
+            throw FALLBACK;
+        }
+
+        String name = declareData(1);
+        byte[] content = new byte[end - contentStart - 2];
+        int length = 0;
+
+        for (int i = contentStart + 1; i < end - 1; ++i) {
+            if (source[i] == '\\' && i + 1 < end - 1 && source[i + 1] == 'n') {
+                content[length++] = '\n';
+                i++;
+            } else {
+                content[length++] = source[i];
+            }
+        }
+
+        mapStringNameToStringValue.put(
+                name,
+                new String(content, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    // Registers the data name in the token 'tokenIndex' and returns it.
+    private String declareData(int tokenIndex) {
+        int start = tokenStarts[tokenIndex];
+        int end = tokenEnds[tokenIndex];
+
+        if (pendingLabelCount > 0
+                || isReservedName(start, end)
+                || dataTable.get(start, end) != NOT_FOUND) {
+            throw FALLBACK;
+        }
+
+        dataTable.put(start, end, dataNameList.size());
+        String name = new String(source,
+                                 start,
+                                 end - start,
+                                 StandardCharsets.ISO_8859_1);
+        dataNameList.add(name);
+        return name;
+    }
+
+    private void emitRegister(int tokenIndex) {
+        int start = tokenStarts[tokenIndex];
+        int length = tokenEnds[tokenIndex] - start;
+
+        for (int i = 0; i < REGISTER_NAMES.length; ++i) {
+            if (matches(REGISTER_NAMES[i], start, length)) {
+                machineCode.add(REGISTER_CODES[i]);
+                return;
+            }
+        }
+
+        throw FALLBACK;
+    }
+
+    // Emits an integer or a reference to a label (if 'isLabel') or a data
+    // name.
+    private void emitOperand(int tokenIndex, boolean isLabel) {
+        int start = tokenStarts[tokenIndex];
+        int end = tokenEnds[tokenIndex];
+
+        if (parseInteger(start, end)) {
+            emitWord(integerValue);
+            return;
+        }
+
+        if (isLabel) {
+            labelFixups = addFixup(labelFixups, labelFixupCount, start, end);
+            labelFixupCount += 3;
+        } else {
+            dataFixups = addFixup(dataFixups, dataFixupCount, start, end);
+            dataFixupCount += 3;
+        }
+
+        emitWord(0);
+    }
+
+    private int[] addFixup(int[] fixups, int count, int start, int end) {
+        if (count + 3 > fixups.length) {
+            fixups = Arrays.copyOf(fixups, 2 * fixups.length);
+        }
+
+        fixups[count] = machineCode.size();
+        fixups[count + 1] = start;
+        fixups[count + 2] = end;
+        return fixups;
+    }
+
+    private void emitWord(int word) {
+        machineCode.add((byte) word);
+        machineCode.add((byte) (word >>> 8));
+        machineCode.add((byte) (word >>> 16));
+        machineCode.add((byte) (word >>> 24));
+    }
+
+    private void setWord(int address, int word) {
+        machineCode.set(address, (byte) word);
+        machineCode.set(address + 1, (byte) (word >>> 8));
+        machineCode.set(address + 2, (byte) (word >>> 16));
+        machineCode.set(address + 3, (byte) (word >>> 24));
+    }
+
+    // Lays out the data after the code and patches all the references. The
+    // data is laid out in the same order as ToyVMAssembler does.
+    private byte[] link() {
+        int[] dataAddresses = new int[dataNameList.size()];
+        Map<String, Integer> mapDataNameToIndex = new HashMap<>();
+
+        for (int i = 0; i < dataNameList.size(); ++i) {
+            mapDataNameToIndex.put(dataNameList.get(i), i);
+        }
+
+        for (Map.Entry<String, Integer> entry :
+                mapWordNameToWordValue.entrySet()) {
+            dataAddresses[mapDataNameToIndex.get(entry.getKey())] =
+                    machineCode.size();
+            emitWord(entry.getValue());
+        }
+
+        for (Map.Entry<String, String> entry :
+                mapStringNameToStringValue.entrySet()) {
+            dataAddresses[mapDataNameToIndex.get(entry.getKey())] =
+                    machineCode.size();
+
+            for (int i = 0; i < entry.getValue().length(); ++i) {
+                machineCode.add((byte) entry.getValue().charAt(i));
+            }
+
+            machineCode.add((byte) 0);
+        }
+
+        for (int i = 0; i < labelFixupCount; i += 3) {
+            int address = labelTable.get(labelFixups[i + 1],
+                                         labelFixups[i + 2]);
+
+            if (address == NOT_FOUND) {
+                throw FALLBACK;
+            }
+
+            setWord(labelFixups[i], address);
+        }
+
+        for (int i = 0; i < dataFixupCount; i += 3) {
+            int index = dataTable.get(dataFixups[i + 1], dataFixups[i + 2]);
+
+            if (index == NOT_FOUND) {
+                throw FALLBACK;
+            }
+
+            setWord(dataFixups[i], dataAddresses[index]);
+        }
+
+        return machineCode.toByteArray();
+    }
+
+    // Parses an integer literal into 'integerValue'. Returns false if the 
+    // token is not an integer literal.
+    private boolean parseInteger(int start, int end) {
+        long value = IntegerLiteralParser.parse(source, start, end);
+
+        if (value == IntegerLiteralParser.NOT_AN_INTEGER) {
+            return false;
+        }
+
+        integerValue = (int) value;
+        return true;
+    }
+
+    private void tokenize(int start, int end) {
+        tokenCount = 0;
+        int i = start;
+
+        while (i < end) {
+            int tokenStart = i;
+
+            while (i < end && !isWhitespace(source[i])) {
+                i++;
+            }
+
+            if (tokenCount < MAX_TOKENS) {
+                tokenStarts[tokenCount] = tokenStart;
+                tokenEnds[tokenCount] = i;
+            }
+
+            tokenCount++;
+            i = skipWhitespace(i, end);
+        }
+    }
+
+    private void expectTokens(int expectedTokenCount) {
+        if (tokenCount != expectedTokenCount) {
+            throw FALLBACK;
+        }
+    }
+
+    private int findMnemonic(int start, int end) {
+        for (int i = 0; i < MNEMONICS.length; ++i) {
+            if (matches(MNEMONICS[i], start, end - start)) {
+                return i;
+            }
+        }
+
+        return NOT_FOUND;
+    }
+
+    private boolean isReservedName(int start, int end) {
+        for (byte[] name : RESERVED_NAMES) {
+            if (matches(name, start, end - start)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean matches(byte[] name, int start, int length) {
+        if (name.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            if (source[start + i] != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (source[i] == c) {
+                return i;
+            }
+        }
+
+        return NOT_FOUND;
+    }
+
+    private int skipWhitespace(int start, int end) {
+        while (start < end && isWhitespace(source[start])) {
+            start++;
+        }
+
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isWhitespace(source[end - 1])) {
+            end--;
+        }
+
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == 0x0b || b == '\f';
+    }
+
+    // Decodes the source into lines the same way SourceFileReader does.
+    private List<String> decodeLines() {
+        List<String> lineList = new ArrayList<>();
+        Scanner scanner = new Scanner(new String(source,
+                                                 sourceOffset,
+                                                 sourceLimit - sourceOffset,
+                                                 Charset.defaultCharset()));
+
+        while (scanner.hasNextLine()) {
+            lineList.add(scanner.nextLine());
+        }
+
+        return lineList;
+    }
+
+    /**
+     * This class implements an open addressing hash table mapping the byte
+     * ranges of the source to integers. The hash of a range is the hash code
+     * of the equivalent ASCII string.
+     */
+    private static final class SymbolTable {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final byte[] source;
+        private int[] starts = new int[INITIAL_CAPACITY];
+        private int[] ends = new int[INITIAL_CAPACITY];
+        private int[] values = new int[INITIAL_CAPACITY];
+        private boolean[] occupied = new boolean[INITIAL_CAPACITY];
+        private int size;
+
+        SymbolTable(byte[] source) {
+            this.source = source;
+        }
+
+        int get(int start, int end) {
+            int index = find(start, end);
+            return occupied[index] ? values[index] : NOT_FOUND;
+        }
+
+        void put(int start, int end, int value) {
+            int index = find(start, end);
+
+            if (!occupied[index]) {
+                if (2 * (size + 1) > starts.length) {
+                    grow();
+                    index = find(start, end);
+                }
+
+                occupied[index] = true;
+                starts[index] = start;
+                ends[index] = end;
+                size++;
+            }
+
+            values[index] = value;
+        }
+
+        // Returns the index of the range or of the free slot it belongs to.
+        private int find(int start, int end) {
+            int mask = starts.length - 1;
+            int index = hash(start, end) & mask;
+
+            while (occupied[index]
+                    && !equal(start, end, starts[index], ends[index])) {
+                index = (index + 1) & mask;
+            }
+
+            return index;
+        }
+
+        private void grow() {
+            int[] oldStarts = starts;
+            int[] oldEnds = ends;
+            int[] oldValues = values;
+            boolean[] oldOccupied = occupied;
+            starts = new int[2 * oldStarts.length];
+            ends = new int[2 * oldStarts.length];
+            values = new int[2 * oldStarts.length];
+            occupied = new boolean[2 * oldStarts.length];
+
+            for (int i = 0; i < oldStarts.length; ++i) {
+                if (oldOccupied[i]) {
+                    int index = find(oldStarts[i], oldEnds[i]);
+                    occupied[index] = true;
+                    starts[index] = oldStarts[i];
+                    ends[index] = oldEnds[i];
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+
+        private boolean equal(int start1, int end1, int start2, int end2) {
+            if (end1 - start1 != end2 - start2) {
+                return false;
+            }
+
+            for (int i = 0; i < end1 - start1; ++i) {
+                if (source[start1 + i] != source[start2 + i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private int hash(int start, int end) {
+            int hash = 0;
+
+            for (int i = start; i < end; ++i) {
+                hash = 31 * hash + source[i];
+            }
+
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
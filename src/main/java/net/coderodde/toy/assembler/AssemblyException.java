@@ -1,5 +1,8 @@
 package net.coderodde.toy.assembler;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This class implements an exception thrown whenever the assembly language 
  * syntax is violated.
@@ -9,7 +12,53 @@ package net.coderodde.toy.assembler;
  */
 public class AssemblyException extends RuntimeException {
     
+    private final List<Diagnostic> diagnosticList;
+    
     public AssemblyException(String message) {
         super(message);
+        this.diagnosticList = Collections.<Diagnostic>emptyList();
+    }
+    
+    /**
+     * Constructs an exception reporting all the errors collected while 
+     * assembling.
+     * 
+     * @param diagnosticList the list of errors.
+     */
+    public AssemblyException(List<Diagnostic> diagnosticList) {
+        super(joinDiagnostics(diagnosticList));
+        this.diagnosticList = 
+                Collections.<Diagnostic>unmodifiableList(diagnosticList);
+    }
+    
+    // Constructs an exception without a stack trace. Used for unwinding the
+    // assembly of an erroneous line in the error collecting mode.
+    AssemblyException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+        this.diagnosticList = Collections.<Diagnostic>emptyList();
+    }
+    
+    /**
+     * Returns the list of errors collected while assembling, or an empty list
+     * if the assembly failed fast.
+     * 
+     * @return the list of errors.
+     */
+    public List<Diagnostic> getDiagnosticList() {
+        return diagnosticList;
+    }
+    
+    private static String joinDiagnostics(List<Diagnostic> diagnosticList) {
+        StringBuilder sb = new StringBuilder();
+        
+        for (Diagnostic diagnostic : diagnosticList) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            
+            sb.append(diagnostic);
+        }
+        
+        return sb.toString();
     }
 }
@@ -0,0 +1,231 @@
+package net.coderodde.toy.assembler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * This class collects the wall time spent in each assembly phase along with
+ * the counts of lines, instructions per mnemonic, data directives, labels,
+ * fixups and output bytes. An assembler without statistics does not measure
+ * anything.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 27, 2016)
+ */
+public class AssemblyStatistics {
+
+    /**
+     * Enumerates the measured phases in the order they are run.
+     */
+    public enum Phase {
+        READ               ("read"),
+        REORDER_BLOCKS     ("reorderBlocks"),
+        INLINE_ROUTINES    ("inlineRoutines"),
+        ALLOCATE_REGISTERS ("allocateRegisters"),
+        ENCODE             ("encode"),
+        RELAX_BRANCHES     ("relaxBranches"),
+        RESOLVE_WORDS      ("resolveWords"),
+        RESOLVE_STRINGS    ("resolveStrings"),
+        RESOLVE_DATA_BLOCKS("resolveDataBlocks"),
+        RESOLVE_LABELS     ("resolveLabels"),
+        RESOLVE_REFERENCES ("resolveReferences"),
+        CONVERT            ("convert"),
+        WRITE              ("write");
+
+        private final String name;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final String fileName;
+    private final long[] phaseNanoseconds = new long[Phase.values().length];
+    private final Map<String, Integer> mapMnemonicToCount = new TreeMap<>();
+    private int lines;
+    private int directives;
+    private int labels;
+    private int fixups;
+    private int outputBytes;
+
+    public AssemblyStatistics(String fileName) {
+        this.fileName = Objects.requireNonNull(fileName,
+                                               "The file name is null.");
+    }
+
+    public void addPhaseTime(Phase phase, long nanoseconds) {
+        phaseNanoseconds[phase.ordinal()] += nanoseconds;
+    }
+
+    public void countLine() {
+        lines++;
+    }
+
+    public void countInstruction(String mnemonic) {
+        Integer count = mapMnemonicToCount.get(mnemonic);
+        mapMnemonicToCount.put(mnemonic, count == null ? 1 : count + 1);
+    }
+
+    public void countDirective() {
+        directives++;
+    }
+
+    public void setLabels(int labels) {
+        this.labels = labels;
+    }
+
+    public void setFixups(int fixups) {
+        this.fixups = fixups;
+    }
+
+    public void setOutputBytes(int outputBytes) {
+        this.outputBytes = outputBytes;
+    }
+
+    public long getPhaseNanoseconds(Phase phase) {
+        return phaseNanoseconds[phase.ordinal()];
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    public int getInstructions() {
+        int instructions = 0;
+
+        for (int count : mapMnemonicToCount.values()) {
+            instructions += count;
+        }
+
+        return instructions;
+    }
+
+    public int getInstructionCount(String mnemonic) {
+        Integer count = mapMnemonicToCount.get(mnemonic);
+        return count == null ? 0 : count;
+    }
+
+    public int getDirectives() {
+        return directives;
+    }
+
+    public int getLabels() {
+        return labels;
+    }
+
+    public int getFixups() {
+        return fixups;
+    }
+
+    public int getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Writes the statistics as a JSON object.
+     *
+     * @param writer the writer to write to.
+     * @throws IOException if I/O fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        writer.write("{\"file\":");
+        writeJsonString(writer, fileName);
+        writer.write(",\"phasesNanoseconds\":{");
+
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                writer.write(',');
+            }
+
+            writeJsonString(writer, phase.getName());
+            writer.write(':');
+            writer.write(Long.toString(phaseNanoseconds[phase.ordinal()]));
+        }
+
+        writer.write("},\"lines\":" + lines);
+        writer.write(",\"instructions\":" + getInstructions());
+        writer.write(",\"instructionsPerMnemonic\":{");
+        boolean first = true;
+
+        for (Map.Entry<String, Integer> entry :
+                mapMnemonicToCount.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+
+            first = false;
+            writeJsonString(writer, entry.getKey());
+            writer.write(':');
+            writer.write(entry.getValue().toString());
+        }
+
+        writer.write("},\"directives\":" + directives);
+        writer.write(",\"labels\":" + labels);
+        writer.write(",\"fixups\":" + fixups);
+        writer.write(",\"outputBytes\":" + outputBytes);
+        writer.write('}');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Statistics for \"").append(fileName).append("\":\n");
+
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format("  %-20s %10.3f ms\n",
+                                    phase.getName(),
+                                    phaseNanoseconds[phase.ordinal()] / 1e6));
+        }
+
+        sb.append("  lines:        ").append(lines).append('\n');
+        sb.append("  instructions: ").append(getInstructions()).append('\n');
+
+        for (Map.Entry<String, Integer> entry :
+                mapMnemonicToCount.entrySet()) {
+            sb.append(String.format("    %-10s %d\n",
+                                    entry.getKey(),
+                                    entry.getValue()));
+        }
+
+        sb.append("  directives:   ").append(directives).append('\n');
+        sb.append("  labels:       ").append(labels).append('\n');
+        sb.append("  fixups:       ").append(fixups).append('\n');
+        sb.append("  output bytes: ").append(outputBytes).append('\n');
+        return sb.toString();
+    }
+
+    private static void writeJsonString(Writer writer, String string)
+    throws IOException {
+        writer.write('"');
+
+        for (int i = 0; i < string.length(); ++i) {
+            char c = string.charAt(i);
+
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+
+        writer.write('"');
+    }
+}
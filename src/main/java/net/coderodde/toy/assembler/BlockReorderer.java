@@ -0,0 +1,591 @@
+package net.coderodde.toy.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * This class implements a profile-guided reordering of the basic blocks of a
+ * source file. A basic block starts at a labeled line or after a jump, a
+ * return, a halt or a run of conditional branches, and ends before the next
+ * such point. The layout starts from the entry block and repeatedly appends
+ * the hottest successor of the last placed block, so that the frequently
+ * executed paths become contiguous and fall through; when the last block has
+ * no hot successor left, the hottest remaining block is taken, and the blocks
+ * never executed keep their source order at the end.
+ * <p>
+ * The branches are then rewritten for the new layout. A {@code jmp} to the
+ * next block is dropped, and a block falling through to a block placed
+ * elsewhere gets an explicit {@code jmp}. Since ToyVM has only the {@code ja},
+ * {@code je} and {@code jb} branches, a run of them is inverted by emitting a
+ * branch for each of the three comparison outcomes not continuing to the next
+ * block, so that, for example, {@code ja a} and {@code jb a} followed by the
+ * block {@code b} become {@code je b} when {@code a} is placed next. The
+ * blocks that need a label for this get a generated one.
+ * <p>
+ * The data directives do not occupy the code and are moved after the last
+ * block. The source is returned unchanged if it uses a branch or a call
+ * target that is not a label, or a label on a data directive, as well as if
+ * the layout does not change.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 8, 2016)
+ */
+public class BlockReorderer {
+
+    private static final String COMMENT_START_TOKEN = "//";
+    private static final String GENERATED_LABEL_PREFIX = "__bb";
+    private static final String INDENT = "    ";
+
+    // The branch mnemonics indexed by the comparison outcome they are taken
+    // on: above, equal and below.
+    private static final List<String> BRANCH_MNEMONICS =
+            Arrays.asList("ja", "je", "jb");
+
+    private static final int FALL_THROUGH = 0;
+    private static final int JUMP = 1;
+    private static final int BRANCH = 2;
+    private static final int TERMINAL = 3;
+    // The target of a block falling through past the last block.
+    private static final int NO_BLOCK = -1;
+
+    private final List<String> sourceCodeLineList;
+    private final ExecutionProfile profile;
+    private final List<String> reorderedLineList = new ArrayList<>();
+    private final List<Integer> lineNumberList = new ArrayList<>();
+
+    private final String[] labels;
+    private final boolean[] isInstruction;
+    private final List<BasicBlock> blockList = new ArrayList<>();
+    private final List<Integer> dataLineIndexList = new ArrayList<>();
+    private final List<Integer> trailingLineIndexList = new ArrayList<>();
+    private final Map<String, Integer> mapLabelToBlockIndex = new HashMap<>();
+    private final List<String> calledLabelList = new ArrayList<>();
+    private final Set<String> usedNameSet = new HashSet<>();
+    private int generatedLabels;
+
+    private static final class BasicBlock {
+        final int index;
+        // The lines of the block except the data directives.
+        final List<Integer> lineIndexList = new ArrayList<>();
+        String label;
+        int exitKind = -1;
+        // The index of the 'jmp' line or the first line of the branch run.
+        int exitLineIndex = -1;
+        int lastInstructionLineIndex;
+        String jumpLabel;
+        // The branch target of each outcome, or null if the outcome falls
+        // through.
+        final String[] outcomeLabels = new String[BRANCH_MNEMONICS.size()];
+        final int[] outcomeTargets = new int[BRANCH_MNEMONICS.size()];
+        int target;
+        long count;
+
+        // The rewritten exit: whether to drop the original exit lines and the
+        // mnemonics and the target blocks of the instructions replacing them.
+        boolean dropExit;
+        final List<String> exitMnemonicList = new ArrayList<>(3);
+        final List<Integer> exitTargetList = new ArrayList<>(3);
+
+        BasicBlock(int index) {
+            this.index = index;
+        }
+
+        boolean hasBranchFallThrough() {
+            for (String outcomeLabel : outcomeLabels) {
+                if (outcomeLabel == null) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    public BlockReorderer(List<String> sourceCodeLineList,
+                          ExecutionProfile profile) {
+        this.sourceCodeLineList =
+                Objects.requireNonNull(sourceCodeLineList,
+                                       "The input source code line list is " +
+                                       "null.");
+        this.profile = Objects.requireNonNull(profile,
+                                              "The execution profile is null.");
+        this.labels = new String[sourceCodeLineList.size()];
+        this.isInstruction = new boolean[sourceCodeLineList.size()];
+    }
+
+    /**
+     * Reorders the basic blocks and rewrites the source code.
+     *
+     * @return the rewritten source code lines.
+     */
+    public List<String> reorder() {
+        if (!parseBlocks() || !resolveTargets()) {
+            return keepSourceOrder();
+        }
+
+        int[] layout = computeLayout();
+
+        for (int i = 0; i < layout.length; ++i) {
+            if (layout[i] != i) {
+                rewrite(layout);
+                return reorderedLineList;
+            }
+        }
+
+        return keepSourceOrder();
+    }
+
+    /**
+     * Returns the original line number of the {@code index}th rewritten line.
+     *
+     * @param index the index of the rewritten line.
+     * @return the line number in the original source code.
+     */
+    public int getLineNumber(int index) {
+        return lineNumberList.get(index);
+    }
+
+    private List<String> keepSourceOrder() {
+        reorderedLineList.clear();
+        lineNumberList.clear();
+
+        for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+            reorderedLineList.add(sourceCodeLineList.get(i));
+            lineNumberList.add(i + 1);
+        }
+
+        return reorderedLineList;
+    }
+
+    // Splits the source into the basic blocks. Returns false if the source
+    // must be left as is.
+    private boolean parseBlocks() {
+        BasicBlock block = null;
+        // The lines without an instruction since the last instruction.
+        List<Integer> pendingLineIndexList = new ArrayList<>();
+        List<String> pendingLabelList = new ArrayList<>();
+
+        for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+            String line = sourceCodeLineList.get(i)
+                                            .split(COMMENT_START_TOKEN)[0]
+                                            .trim();
+            int colonIndex = line.indexOf(":");
+
+            if (colonIndex != -1) {
+                if (line.indexOf(":", colonIndex + 1) != -1) {
+                    return false;
+                }
+
+                labels[i] = line.substring(0, colonIndex).trim();
+
+                if (labels[i].isEmpty() || labels[i].split("\\s+").length > 1
+                        || mapLabelToBlockIndex.containsKey(labels[i])
+                        || pendingLabelList.contains(labels[i])) {
+                    return false;
+                }
+
+                usedNameSet.add(labels[i]);
+                line = line.substring(colonIndex + 1).trim();
+            }
+
+            if (line.isEmpty()) {
+                pendingLineIndexList.add(i);
+
+                if (labels[i] != null) {
+                    pendingLabelList.add(labels[i]);
+                }
+
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            usedNameSet.addAll(Arrays.asList(tokens));
+            String mnemonic = tokens[0];
+
+            if (ToyVMAssembler.DATA_MNEMONICS.contains(mnemonic)) {
+                // A label would bind to the code following the directive.
+                if (labels[i] != null || !pendingLabelList.isEmpty()) {
+                    return false;
+                }
+
+                dataLineIndexList.add(i);
+                continue;
+            }
+
+            int outcome = BRANCH_MNEMONICS.indexOf(mnemonic);
+
+            if (block == null
+                    || labels[i] != null
+                    || !pendingLabelList.isEmpty()
+                    || block.exitKind == JUMP
+                    || block.exitKind == TERMINAL
+                    || (block.exitKind == BRANCH && outcome == -1)) {
+                if (block != null && block.exitKind == -1) {
+                    block.exitKind = FALL_THROUGH;
+                }
+
+                block = new BasicBlock(blockList.size());
+                blockList.add(block);
+            }
+
+            block.lineIndexList.addAll(pendingLineIndexList);
+            block.lineIndexList.add(i);
+            pendingLineIndexList.clear();
+
+            if (labels[i] != null) {
+                pendingLabelList.add(labels[i]);
+            }
+
+            for (String label : pendingLabelList) {
+                mapLabelToBlockIndex.put(label, block.index);
+
+                if (block.label == null) {
+                    block.label = label;
+                }
+            }
+
+            pendingLabelList.clear();
+            isInstruction[i] = true;
+            block.lastInstructionLineIndex = i;
+            block.count = Math.max(block.count, profile.getCount(i + 1));
+
+            if (outcome != -1) {
+                if (tokens.length != 2) {
+                    return false;
+                }
+
+                if (block.exitKind != BRANCH) {
+                    block.exitKind = BRANCH;
+                    block.exitLineIndex = i;
+                }
+
+                if (block.outcomeLabels[outcome] == null) {
+                    block.outcomeLabels[outcome] = tokens[1];
+                }
+
+                continue;
+            }
+
+            switch (mnemonic) {
+                case "jmp":
+                    if (tokens.length != 2) {
+                        return false;
+                    }
+
+                    block.exitKind = JUMP;
+                    block.exitLineIndex = i;
+                    block.jumpLabel = tokens[1];
+                    break;
+
+                case "ret":
+                case "halt":
+                    block.exitKind = TERMINAL;
+                    break;
+
+                case "call":
+                    if (tokens.length != 2) {
+                        return false;
+                    }
+
+                    calledLabelList.add(tokens[1]);
+                    break;
+            }
+        }
+
+        // Labels at the end of the source are never bound.
+        if (!pendingLabelList.isEmpty()) {
+            return false;
+        }
+
+        if (block != null && block.exitKind == -1) {
+            block.exitKind = FALL_THROUGH;
+        }
+
+        trailingLineIndexList.addAll(pendingLineIndexList);
+        return !blockList.isEmpty();
+    }
+
+    // Maps the branch and call targets to the blocks. Returns false if a
+    // target is not a label.
+    private boolean resolveTargets() {
+        for (String label : calledLabelList) {
+            if (!mapLabelToBlockIndex.containsKey(label)) {
+                return false;
+            }
+        }
+
+        for (BasicBlock block : blockList) {
+            int next = block.index + 1 < blockList.size() ?
+                       block.index + 1 :
+                       NO_BLOCK;
+
+            switch (block.exitKind) {
+                case FALL_THROUGH:
+                    block.target = next;
+                    break;
+
+                case JUMP:
+                    Integer target = mapLabelToBlockIndex.get(block.jumpLabel);
+
+                    if (target == null) {
+                        return false;
+                    }
+
+                    block.target = target;
+                    break;
+
+                case BRANCH:
+                    for (int i = 0; i < block.outcomeLabels.length; ++i) {
+                        if (block.outcomeLabels[i] == null) {
+                            block.outcomeTargets[i] = next;
+                            continue;
+                        }
+
+                        target = mapLabelToBlockIndex.get(
+                                block.outcomeLabels[i]);
+
+                        if (target == null) {
+                            return false;
+                        }
+
+                        block.outcomeTargets[i] = target;
+                    }
+
+                    break;
+            }
+        }
+
+        return true;
+    }
+
+    // Returns the block indices in the layout order.
+    private int[] computeLayout() {
+        int[] layout = new int[blockList.size()];
+        boolean[] placed = new boolean[blockList.size()];
+        BasicBlock lastBlock = blockList.get(blockList.size() - 1);
+        // A block falling through past the end must stay the last one.
+        int pinned = fallsPastEnd(lastBlock) ? lastBlock.index : NO_BLOCK;
+        int current = 0;
+
+        for (int i = 0; i < layout.length; ++i) {
+            layout[i] = current;
+            placed[current] = true;
+
+            if (i + 1 == layout.length) {
+                break;
+            }
+
+            int next = NO_BLOCK;
+
+            for (int successor : getSuccessors(blockList.get(current))) {
+                if (successor != NO_BLOCK
+                        && successor != pinned
+                        && !placed[successor]
+                        && blockList.get(successor).count > 0L
+                        && isHotter(successor, next, current + 1)) {
+                    next = successor;
+                }
+            }
+
+            if (next == NO_BLOCK) {
+                for (BasicBlock block : blockList) {
+                    if (block.index != pinned
+                            && !placed[block.index]
+                            && isHotter(block.index, next, current + 1)) {
+                        next = block.index;
+                    }
+                }
+            }
+
+            current = next == NO_BLOCK ? pinned : next;
+        }
+
+        return layout;
+    }
+
+    private boolean fallsPastEnd(BasicBlock block) {
+        switch (block.exitKind) {
+            case FALL_THROUGH:
+                return true;
+
+            case BRANCH:
+                return block.hasBranchFallThrough();
+
+            default:
+                return false;
+        }
+    }
+
+    private int[] getSuccessors(BasicBlock block) {
+        switch (block.exitKind) {
+            case FALL_THROUGH:
+            case JUMP:
+                return new int[]{ block.target };
+
+            case BRANCH:
+                return block.outcomeTargets;
+
+            default:
+                return new int[0];
+        }
+    }
+
+    // Tells whether the block 'candidate' should be placed rather than the
+    // block 'best'. Among equally hot blocks, the block 'preferred' following
+    // the last placed one in the source wins, and then the earliest one.
+    private boolean isHotter(int candidate, int best, int preferred) {
+        if (best == NO_BLOCK) {
+            return true;
+        }
+
+        long candidateCount = blockList.get(candidate).count;
+        long bestCount = blockList.get(best).count;
+
+        if (candidateCount != bestCount) {
+            return candidateCount > bestCount;
+        }
+
+        if (candidate == preferred || best == preferred) {
+            return candidate == preferred;
+        }
+
+        return candidate < best;
+    }
+
+    private void rewrite(int[] layout) {
+        boolean[] needsLabel = new boolean[blockList.size()];
+
+        for (int i = 0; i < layout.length; ++i) {
+            BasicBlock block = blockList.get(layout[i]);
+            int next = i + 1 < layout.length ? layout[i + 1] : NO_BLOCK;
+            planExit(block, next);
+
+            for (int target : block.exitTargetList) {
+                needsLabel[target] = true;
+            }
+        }
+
+        boolean[] hasGeneratedLabel = new boolean[blockList.size()];
+
+        for (BasicBlock block : blockList) {
+            if (needsLabel[block.index] && block.label == null) {
+                block.label = generateLabel();
+                hasGeneratedLabel[block.index] = true;
+            }
+        }
+
+        for (int blockIndex : layout) {
+            BasicBlock block = blockList.get(blockIndex);
+
+            if (hasGeneratedLabel[blockIndex]) {
+                emit(block.label + ":", block.lineIndexList.get(0));
+            }
+
+            for (int lineIndex : block.lineIndexList) {
+                if (block.dropExit
+                        && isInstruction[lineIndex]
+                        && lineIndex >= block.exitLineIndex) {
+                    if (labels[lineIndex] != null) {
+                        emit(labels[lineIndex] + ":", lineIndex);
+                    }
+                } else {
+                    emit(sourceCodeLineList.get(lineIndex), lineIndex);
+                }
+            }
+
+            int exitLineIndex = block.exitLineIndex == -1 ?
+                                block.lastInstructionLineIndex :
+                                block.exitLineIndex;
+
+            for (int i = 0; i < block.exitMnemonicList.size(); ++i) {
+                emit(INDENT + block.exitMnemonicList.get(i) + " " +
+                     blockList.get(block.exitTargetList.get(i)).label,
+                     exitLineIndex);
+            }
+        }
+
+        for (int lineIndex : dataLineIndexList) {
+            emit(sourceCodeLineList.get(lineIndex), lineIndex);
+        }
+
+        for (int lineIndex : trailingLineIndexList) {
+            emit(sourceCodeLineList.get(lineIndex), lineIndex);
+        }
+    }
+
+    // Decides how the block continues to its successors when followed by the
+    // block 'next'.
+    private void planExit(BasicBlock block, int next) {
+        switch (block.exitKind) {
+            case FALL_THROUGH:
+                if (block.target != next) {
+                    block.exitMnemonicList.add("jmp");
+                    block.exitTargetList.add(block.target);
+                }
+
+                break;
+
+            case JUMP:
+                block.dropExit = block.target == next;
+                break;
+
+            case BRANCH:
+                int fallThrough = block.index + 1 < blockList.size() ?
+                                  block.index + 1 :
+                                  NO_BLOCK;
+
+                if (!block.hasBranchFallThrough() || fallThrough == next) {
+                    // The original branches are still valid.
+                    break;
+                }
+
+                block.dropExit = true;
+                int[] targets = block.outcomeTargets;
+                int jumpTarget = NO_BLOCK;
+
+                if (targets[0] != next
+                        && targets[1] != next
+                        && targets[2] != next) {
+                    // Jump to the target of the most outcomes.
+                    jumpTarget = targets[1] == targets[2] ?
+                                 targets[1] :
+                                 targets[0];
+                }
+
+                for (int i = 0; i < targets.length; ++i) {
+                    if (targets[i] != next && targets[i] != jumpTarget) {
+                        block.exitMnemonicList.add(BRANCH_MNEMONICS.get(i));
+                        block.exitTargetList.add(targets[i]);
+                    }
+                }
+
+                if (jumpTarget != NO_BLOCK) {
+                    block.exitMnemonicList.add("jmp");
+                    block.exitTargetList.add(jumpTarget);
+                }
+
+                break;
+        }
+    }
+
+    private String generateLabel() {
+        String label;
+
+        do {
+            label = GENERATED_LABEL_PREFIX + generatedLabels++;
+        } while (usedNameSet.contains(label));
+
+        return label;
+    }
+
+    private void emit(String line, int lineIndex) {
+        reorderedLineList.add(line);
+        lineNumberList.add(lineIndex + 1);
+    }
+}
@@ -0,0 +1,139 @@
+package net.coderodde.toy.assembler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * This class implements a growable buffer of machine code bytes. Unlike a list
+ * of boxed bytes, the buffer stores the bytes in a primitive array that keeps
+ * its capacity when cleared, so that an assembler reused for many programs
+ * stops allocating once the buffer has grown large enough.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 28, 2016)
+ */
+final class CodeBuffer {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private byte[] bytes;
+    private int size;
+
+    CodeBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CodeBuffer(int capacity) {
+        this.bytes = new byte[Math.max(capacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte get(int index) {
+        checkIndex(index);
+        return bytes[index];
+    }
+
+    void set(int index, byte b) {
+        checkIndex(index);
+        bytes[index] = b;
+    }
+
+    void add(byte b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = b;
+    }
+
+    /**
+     * Appends the bytes {@code source[fromIndex], ..., source[toIndex - 1]}.
+     *
+     * @param source    the buffer to copy from.
+     * @param fromIndex the index of the first byte to copy.
+     * @param toIndex   the index one past the last byte to copy.
+     */
+    void append(CodeBuffer source, int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > source.size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + fromIndex + ", " + toIndex + ") is out of " +
+                    "bounds for size " + source.size + ".");
+        }
+
+        int length = toIndex - fromIndex;
+        ensureCapacity(size + length);
+        System.arraycopy(source.bytes, fromIndex, bytes, size, length);
+        size += length;
+    }
+
+    void append(byte[] source) {
+        ensureCapacity(size + source.length);
+        System.arraycopy(source, 0, bytes, size, source.length);
+        size += source.length;
+    }
+
+    void appendZeros(int length) {
+        ensureCapacity(size + length);
+        // The bytes past 'size' may hold the data of a previous program.
+        Arrays.fill(bytes, size, size + length, (byte) 0);
+        size += length;
+    }
+
+    /**
+     * Appends the first {@code length} bytes of the file open in
+     * {@code channel}. The bytes are read straight into the buffer.
+     *
+     * @param channel the channel to read from.
+     * @param length  the number of bytes to append.
+     * @throws IOException if I/O fails or the file is too short.
+     */
+    void append(FileChannel channel, int length) throws IOException {
+        ensureCapacity(size + length);
+        ByteBuffer target = ByteBuffer.wrap(bytes, size, length);
+        long position = 0L;
+
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+
+            if (read < 0) {
+                throw new EOFException(
+                        "The file ended after " + position + " bytes, " +
+                        "expected " + length + ".");
+            }
+
+            position += read;
+        }
+
+        size += length;
+    }
+
+    /**
+     * Removes all the bytes but keeps the capacity.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int requestedCapacity) {
+        if (requestedCapacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes,
+                                  Math.max(requestedCapacity,
+                                           2 * bytes.length));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                    "Index " + index + " is out of bounds for size " + size +
+                    ".");
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class implements the compressed container for ToyVM images. The image
+ * is split into blocks of equal size (the last one may be shorter), and each
+ * block is compressed independently with DEFLATE, so that a loader may
+ * decompress the blocks in parallel or only when they are needed. All the
+ * integers are big-endian. The layout is:
+ * <pre>
+ * magic      4 bytes  'T' 'V' 'M' 'Z'
+ * blockSize  int      the uncompressed size of a block
+ * imageSize  int      the uncompressed size of the image
+ * checksum   int      the CRC-32 of the uncompressed image
+ * blockCount int
+ * index      int[blockCount]  the compressed size of each block
+ * blocks     the zlib streams of the blocks, one after another
+ * </pre>
+ * A plain image never starts with the magic, as {@code 'T'} is the opcode of
+ * {@code lsp}, and {@code 'V'} is not a register.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 1, 2016)
+ */
+public final class CompressedImage {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = { 'T', 'V', 'M', 'Z' };
+    private static final int HEADER_SIZE = MAGIC.length + 4 * 4;
+
+    private final ByteBuffer container;
+    private final int blockSize;
+    private final int imageSize;
+    private final int checksum;
+    // The offsets of the compressed blocks within the container; the last
+    // entry is the end of the last block.
+    private final int[] blockOffsets;
+
+    private CompressedImage(ByteBuffer container,
+                            int blockSize,
+                            int imageSize,
+                            int checksum,
+                            int[] blockOffsets) {
+        this.container = container;
+        this.blockSize = blockSize;
+        this.imageSize = imageSize;
+        this.checksum = checksum;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Compresses {@code image} into a container.
+     *
+     * @param image     the image to compress.
+     * @param blockSize the uncompressed size of a block.
+     * @return the container.
+     */
+    public static byte[] compress(byte[] image, int blockSize) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        try {
+            write(image, blockSize, stream);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return stream.toByteArray();
+    }
+
+    /**
+     * Compresses {@code image} and writes the container to
+     * {@code outputStream}.
+     *
+     * @param image        the image to compress.
+     * @param blockSize    the uncompressed size of a block.
+     * @param outputStream the stream to write to.
+     * @throws IOException if I/O fails.
+     */
+    public static void write(byte[] image,
+                             int blockSize,
+                             OutputStream outputStream) throws IOException {
+        Objects.requireNonNull(image, "The image is null.");
+        Objects.requireNonNull(outputStream, "The output stream is null.");
+
+        if (blockSize < 1) {
+            throw new IllegalArgumentException(
+                    "The block size must be positive: " + blockSize + ".");
+        }
+
+        int blockCount = (image.length + blockSize - 1) / blockSize;
+        byte[][] blocks = new byte[blockCount][];
+        byte[] buffer = new byte[blockSize + blockSize / 2 + 64];
+        Deflater deflater = new Deflater();
+
+        try {
+            for (int i = 0; i < blockCount; ++i) {
+                int offset = i * blockSize;
+                deflater.reset();
+                deflater.setInput(image,
+                                  offset,
+                                  Math.min(blockSize, image.length - offset));
+                deflater.finish();
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+                while (!deflater.finished()) {
+                    block.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+                blocks[i] = block.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length);
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(MAGIC);
+        out.writeInt(blockSize);
+        out.writeInt(image.length);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(blockCount);
+
+        for (byte[] block : blocks) {
+            out.writeInt(block.length);
+        }
+
+        for (byte[] block : blocks) {
+            out.write(block);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Returns {@code true} if {@code data} starts with the container magic.
+     *
+     * @param data the data to check.
+     * @return {@code true} if {@code data} is a compressed container.
+     */
+    public static boolean isCompressed(ByteBuffer data) {
+        if (data.remaining() < MAGIC.length) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (data.get(data.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses the header and the block index of the container. The blocks are
+     * not decompressed.
+     *
+     * @param container the container starting at its position. It must not be
+     *                  modified while the returned object is in use.
+     * @return the compressed image.
+     * @throws IOException if the container is malformed.
+     */
+    public static CompressedImage read(ByteBuffer container)
+    throws IOException {
+        ByteBuffer buffer = container.slice();
+
+        if (!isCompressed(buffer) || buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a compressed ToyVM image.");
+        }
+
+        buffer.position(MAGIC.length);
+        int blockSize = buffer.getInt();
+        int imageSize = buffer.getInt();
+        int checksum = buffer.getInt();
+        int blockCount = buffer.getInt();
+
+        if (blockSize < 1
+                || imageSize < 0
+                || blockCount != (int) ((imageSize + (long) blockSize - 1)
+                                        / blockSize)
+                || buffer.remaining() / 4 < blockCount) {
+            throw new IOException("Malformed compressed image header.");
+        }
+
+        int[] blockOffsets = new int[blockCount + 1];
+        long offset = HEADER_SIZE + 4L * blockCount;
+
+        for (int i = 0; i < blockCount; ++i) {
+            blockOffsets[i] = (int) offset;
+            offset += buffer.getInt() & 0xffffffffL;
+
+            if (offset > buffer.limit()) {
+                throw new IOException("Truncated compressed image.");
+            }
+        }
+
+        blockOffsets[blockCount] = (int) offset;
+        return new CompressedImage(buffer,
+                                   blockSize,
+                                   imageSize,
+                                   checksum,
+                                   blockOffsets);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockOffsets.length - 1;
+    }
+
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns the uncompressed length of the block {@code blockIndex}.
+     *
+     * @param blockIndex the index of the block.
+     * @return the length of the block.
+     */
+    public int getBlockLength(int blockIndex) {
+        return Math.min(blockSize, imageSize - blockIndex * blockSize);
+    }
+
+    /**
+     * Decompresses the block {@code blockIndex} into
+     * {@code destination[offset], ..., destination[offset + length - 1]},
+     * where {@code length} is the length of the block. This method may be
+     * called concurrently.
+     *
+     * @param blockIndex  the index of the block.
+     * @param destination the buffer to decompress into.
+     * @param offset      the offset in {@code destination}.
+     * @throws IOException if the block is corrupt.
+     */
+    public void decompressBlock(int blockIndex, byte[] destination, int offset)
+    throws IOException {
+        int length = getBlockLength(blockIndex);
+        int compressedOffset = blockOffsets[blockIndex];
+        int compressedLength = blockOffsets[blockIndex + 1] - compressedOffset;
+        Inflater inflater = new Inflater();
+
+        try {
+            if (container.hasArray()) {
+                inflater.setInput(container.array(),
+                                  container.arrayOffset() + compressedOffset,
+                                  compressedLength);
+            } else {
+                byte[] input = new byte[compressedLength];
+                ByteBuffer view = container.duplicate();
+                view.position(compressedOffset);
+                view.get(input);
+                inflater.setInput(input);
+            }
+
+            int inflated = 0;
+
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(destination,
+                                         offset + inflated,
+                                         length - inflated);
+
+                if (n == 0 && (inflater.needsInput()
+                               || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += n;
+            }
+
+            if (inflated != length) {
+                throw new IOException(
+                        "Block " + blockIndex + " of the compressed image " +
+                        "is truncated.");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(
+                    "Block " + blockIndex + " of the compressed image is " +
+                    "corrupt: " + ex.getMessage(), ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the whole image into {@code destination} starting at
+     * {@code offset} and verifies the checksum.
+     *
+     * @param destination the preallocated buffer to decompress into.
+     * @param offset      the offset in {@code destination}.
+     * @param parallel    whether to decompress the blocks in parallel.
+     * @throws IOException if the image is corrupt.
+     */
+    public void decompress(byte[] destination, int offset, boolean parallel)
+    throws IOException {
+        Objects.requireNonNull(destination, "The destination is null.");
+
+        if (offset < 0 || destination.length - offset < imageSize) {
+            throw new IllegalArgumentException(
+                    "The image of " + imageSize + " bytes does not fit " +
+                    "into the destination at offset " + offset + ".");
+        }
+
+        IntStream blockIndices = IntStream.range(0, getBlockCount());
+
+        try {
+            (parallel ? blockIndices.parallel() : blockIndices)
+                    .forEach((blockIndex) -> {
+                try {
+                    decompressBlock(blockIndex,
+                                    destination,
+                                    offset + blockIndex * blockSize);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(destination, offset, imageSize);
+
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("The checksum of the compressed image " +
+                                  "does not match.");
+        }
+    }
+
+    /**
+     * Decompresses the whole image into a new array.
+     *
+     * @return the image.
+     * @throws IOException if the image is corrupt.
+     */
+    public byte[] decompress() throws IOException {
+        byte[] image = new byte[imageSize];
+        decompress(image, 0, false);
+        return image;
+    }
+}
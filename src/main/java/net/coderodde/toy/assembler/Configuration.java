@@ -1,30 +1,266 @@
 package net.coderodde.toy.assembler;
 
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
 
 /**
- * This class defines the constants involved in assembling the machine code.
- * 
+ * This class defines the constants involved in assembling the machine code:
+ * the register set, the opcode table, the byte order of the multibyte values
+ * and the encoding of the string literals. A configuration is immutable and,
+ * thus, may be shared by any number of assemblers running in different threads
+ * without synchronization. The maps given to the constructor are compiled once
+ * into lookup arrays, so that the assemblers never consult a map while
+ * emitting code.
+ * <p>
+ * The opcode table renumbers the instructions: the mnemonics absent from the
+ * table as well as the short branch and superinstruction opcodes keep their
+ * ToyVM opcodes. Note that {@link ToyVMInterpreter} and
+ * {@link ToyVMDisassembler} understand only the images assembled with
+ * {@link #DEFAULT}.
+ *
  * @author Rodion "rodde" Efremov
- * @version 1.6 (Mar 17, 2016)
+ * @version 1.6 (Mar 29, 2016)
  */
-public class Configuration {
-    
-    private static final Map<String, 
-                             Byte> mapRegisterNameToCodeImpl = new HashMap<>();
-    
-    public static final Map<String, 
-                            Byte> mapRegisterNameToCode = 
-            Collections.<String, 
-                         Byte>unmodifiableMap(mapRegisterNameToCodeImpl);
-    
-    static {
-        mapRegisterNameToCode.put("reg1", (byte) 0x00);
-        mapRegisterNameToCode.put("reg2", (byte) 0x01);
-        mapRegisterNameToCode.put("reg3", (byte) 0x02);
-        mapRegisterNameToCode.put("reg4", (byte) 0x03);
-        
+public final class Configuration {
+
+    private static final int NUMBER_OF_OPCODES = 256;
+
+    /**
+     * The opcodes that are not listed in the opcode table but are emitted for
+     * the immediate and memory operand forms, by the branch relaxation and by
+     * the superinstruction fusion.
+     */
+    private static final byte[] EXTENDED_OPCODES = {
+        ADD_IMMEDIATE, MUL_IMMEDIATE, DIV_IMMEDIATE, MOD_IMMEDIATE,
+        CMP_IMMEDIATE, RLOAD_SP, RSTORE_SP, RLOAD_INDEXED, RSTORE_INDEXED,
+        JA_SHORT, JE_SHORT, JB_SHORT, JMP_SHORT, CALL_SHORT,
+        CMP_JA, CMP_JE, CMP_JB, CONST_ADD,
+        PUSHA_PUSH, PUSHA_PUSH_CALL, POP_POPA
+    };
+
+    /**
+     * The configuration of ToyVM: four registers {@code reg1} through
+     * {@code reg4}, the standard opcodes, little-endian words and the strings
+     * encoded in ISO-8859-1.
+     */
+    public static final Configuration DEFAULT =
+            new Configuration(defaultRegisterMap(),
+                              defaultOpcodeMap(),
+                              ByteOrder.LITTLE_ENDIAN,
+                              StandardCharsets.ISO_8859_1);
+
+    private final Map<String, Byte> mapRegisterNameToCode;
+    private final Map<String, Byte> mapMnemonicToOpcode;
+    private final ByteOrder byteOrder;
+    private final Charset charset;
+
+    // The open addressing hash table over the register names.
+    private final String[] registerNameTable;
+    private final byte[] registerCodeTable;
+    private final int registerTableMask;
+
+    // Map the ToyVM opcodes to the configured ones and back.
+    private final byte[] encodeOpcodeTable = new byte[NUMBER_OF_OPCODES];
+    private final byte[] decodeOpcodeTable = new byte[NUMBER_OF_OPCODES];
+    private final boolean bigEndian;
+
+    public Configuration(Map<String, Byte> mapRegisterNameToCode,
+                         Map<String, Byte> mapMnemonicToOpcode,
+                         ByteOrder byteOrder,
+                         Charset charset) {
+        Objects.requireNonNull(mapRegisterNameToCode,
+                               "The register map is null.");
+        Objects.requireNonNull(mapMnemonicToOpcode, "The opcode map is null.");
+        this.byteOrder = Objects.requireNonNull(byteOrder,
+                                                "The byte order is null.");
+        this.charset = Objects.requireNonNull(charset, "The charset is null.");
+        this.mapRegisterNameToCode = Collections.unmodifiableMap(
+                new LinkedHashMap<>(mapRegisterNameToCode));
+        this.mapMnemonicToOpcode = Collections.unmodifiableMap(
+                new LinkedHashMap<>(mapMnemonicToOpcode));
+        this.bigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+
+        int capacity = Integer.highestOneBit(
+                Math.max(1, 2 * this.mapRegisterNameToCode.size()) * 2 - 1);
+        this.registerNameTable = new String[capacity];
+        this.registerCodeTable = new byte[capacity];
+        this.registerTableMask = capacity - 1;
+        compileRegisterTable();
+        compileOpcodeTables();
+    }
+
+    public Map<String, Byte> getRegisterMap() {
+        return mapRegisterNameToCode;
+    }
+
+    public Map<String, Byte> getOpcodeMap() {
+        return mapMnemonicToOpcode;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the code of the register named {@code registerName}.
+     *
+     * @param registerName the register name.
+     * @return the register code in the range {@code [0, 255]}, or -1 if there
+     *         is no such register.
+     */
+    public int getRegisterCode(String registerName) {
+        int index = registerName.hashCode() & registerTableMask;
+
+        while (registerNameTable[index] != null) {
+            if (registerNameTable[index].equals(registerName)) {
+                return registerCodeTable[index] & 0xff;
+            }
+
+            index = (index + 1) & registerTableMask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Maps a ToyVM opcode to the opcode of this configuration.
+     *
+     * @param opcode the ToyVM opcode.
+     * @return the configured opcode.
+     */
+    public byte encodeOpcode(byte opcode) {
+        return encodeOpcodeTable[opcode & 0xff];
+    }
+
+    /**
+     * Maps an opcode of this configuration back to the ToyVM opcode.
+     *
+     * @param opcode the configured opcode.
+     * @return the ToyVM opcode.
+     */
+    public byte decodeOpcode(byte opcode) {
+        return decodeOpcodeTable[opcode & 0xff];
+    }
+
+    public boolean isBigEndian() {
+        return bigEndian;
+    }
+
+    private void compileRegisterTable() {
+        for (Map.Entry<String, Byte> entry :
+                mapRegisterNameToCode.entrySet()) {
+            String registerName = Objects.requireNonNull(
+                    entry.getKey(), "A register name is null.");
+            Byte code = Objects.requireNonNull(
+                    entry.getValue(),
+                    "The code of register \"" + registerName + "\" is null.");
+            int index = registerName.hashCode() & registerTableMask;
+
+            while (registerNameTable[index] != null) {
+                index = (index + 1) & registerTableMask;
+            }
+
+            registerNameTable[index] = registerName;
+            registerCodeTable[index] = code;
+        }
+    }
+
+    private void compileOpcodeTables() {
+        Map<String, Byte> mapMnemonicToDefaultOpcode = defaultOpcodeMap();
+
+        for (int i = 0; i < NUMBER_OF_OPCODES; ++i) {
+            encodeOpcodeTable[i] = (byte) i;
+        }
+
+        for (Map.Entry<String, Byte> entry : mapMnemonicToOpcode.entrySet()) {
+            Byte defaultOpcode =
+                    mapMnemonicToDefaultOpcode.get(entry.getKey());
+
+            if (defaultOpcode == null) {
+                throw new IllegalArgumentException(
+                        "Unknown mnemonic in the opcode table: \"" +
+                        entry.getKey() + "\".");
+            }
+
+            Byte opcode = Objects.requireNonNull(
+                    entry.getValue(),
+                    "The opcode of \"" + entry.getKey() + "\" is null.");
+            encodeOpcodeTable[defaultOpcode & 0xff] = opcode;
+        }
+
+        // Any opcode the assembler may emit must decode unambiguously.
+        boolean[] used = new boolean[NUMBER_OF_OPCODES];
+
+        for (Byte defaultOpcode : mapMnemonicToDefaultOpcode.values()) {
+            markUsed(defaultOpcode, used);
+        }
+
+        for (byte extendedOpcode : EXTENDED_OPCODES) {
+            markUsed(extendedOpcode, used);
+        }
+    }
+
+    private void markUsed(byte defaultOpcode, boolean[] used) {
+        int opcode = encodeOpcodeTable[defaultOpcode & 0xff] & 0xff;
+
+        if (used[opcode]) {
+            throw new IllegalArgumentException(
+                    String.format("Opcode 0x%02x is assigned twice.", opcode));
+        }
+
+        used[opcode] = true;
+        decodeOpcodeTable[opcode] = defaultOpcode;
+    }
+
+    private static Map<String, Byte> defaultRegisterMap() {
+        Map<String, Byte> mapRegisterNameToCode = new LinkedHashMap<>();
+        mapRegisterNameToCode.put("reg1", REG1);
+        mapRegisterNameToCode.put("reg2", REG2);
+        mapRegisterNameToCode.put("reg3", REG3);
+        mapRegisterNameToCode.put("reg4", REG4);
+        return mapRegisterNameToCode;
+    }
+
+    private static Map<String, Byte> defaultOpcodeMap() {
+        Map<String, Byte> mapMnemonicToOpcode = new LinkedHashMap<>();
+        mapMnemonicToOpcode.put("add",    ADD);
+        mapMnemonicToOpcode.put("neg",    NEG);
+        mapMnemonicToOpcode.put("mul",    MUL);
+        mapMnemonicToOpcode.put("div",    DIV);
+        mapMnemonicToOpcode.put("mod",    MOD);
+        mapMnemonicToOpcode.put("cmp",    CMP);
+        mapMnemonicToOpcode.put("ja",     JA);
+        mapMnemonicToOpcode.put("je",     JE);
+        mapMnemonicToOpcode.put("jb",     JB);
+        mapMnemonicToOpcode.put("jmp",    JMP);
+        mapMnemonicToOpcode.put("call",   CALL);
+        mapMnemonicToOpcode.put("ret",    RET);
+        mapMnemonicToOpcode.put("load",   LOAD);
+        mapMnemonicToOpcode.put("store",  STORE);
+        mapMnemonicToOpcode.put("const",  CONST);
+        mapMnemonicToOpcode.put("rload",  RLOAD);
+        mapMnemonicToOpcode.put("rstore", RSTORE);
+        mapMnemonicToOpcode.put("memcpy", MEMCPY);
+        mapMnemonicToOpcode.put("memset", MEMSET);
+        mapMnemonicToOpcode.put("halt",   HALT);
+        mapMnemonicToOpcode.put("int",    INT);
+        mapMnemonicToOpcode.put("nop",    NOP);
+        mapMnemonicToOpcode.put("hcall",  HCALL);
+        mapMnemonicToOpcode.put("push",   PUSH);
+        mapMnemonicToOpcode.put("pusha",  PUSH_ALL);
+        mapMnemonicToOpcode.put("pop",    POP);
+        mapMnemonicToOpcode.put("popa",   POP_ALL);
+        mapMnemonicToOpcode.put("lsp",    LSP);
+        return mapMnemonicToOpcode;
     }
 }
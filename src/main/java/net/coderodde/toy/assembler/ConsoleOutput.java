@@ -0,0 +1,167 @@
+package net.coderodde.toy.assembler;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * This class implements the console output of {@link ToyVMInterpreter}. The
+ * printed bytes are accumulated in a reusable buffer and written to the
+ * underlying channel in large batches: whenever the buffer is full, when the
+ * program halts and on an explicit {@link #flush()}. The integers are
+ * converted to digits directly in the buffer without creating strings.
+ * <p>
+ * The I/O errors are rethrown as {@link UncheckedIOException}. This class is
+ * not thread-safe.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 5, 2016)
+ */
+public final class ConsoleOutput implements Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The smallest buffer size, which holds any integer with its sign.
+     */
+    public static final int MIN_BUFFER_SIZE = 16;
+
+    private final WritableByteChannel channel;
+    // The stream under the channel, if any, flushed after the channel.
+    private final Flushable stream;
+    private final byte[] buffer;
+    private final ByteBuffer byteBuffer;
+    private int size;
+
+    public ConsoleOutput(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ConsoleOutput(WritableByteChannel channel, int bufferSize) {
+        this(Objects.requireNonNull(channel, "The channel is null."),
+             null,
+             bufferSize);
+    }
+
+    public ConsoleOutput(OutputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ConsoleOutput(OutputStream stream, int bufferSize) {
+        this(Channels.newChannel(
+                     Objects.requireNonNull(stream, "The stream is null.")),
+             stream,
+             bufferSize);
+    }
+
+    private ConsoleOutput(WritableByteChannel channel,
+                          Flushable stream,
+                          int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException(
+                    "The buffer size must be at least " + MIN_BUFFER_SIZE +
+                    ": " + bufferSize + ".");
+        }
+
+        this.channel = channel;
+        this.stream = stream;
+        this.buffer = new byte[bufferSize];
+        this.byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    public void writeByte(int b) {
+        if (size == buffer.length) {
+            flushBuffer();
+        }
+
+        buffer[size++] = (byte) b;
+    }
+
+    /**
+     * Writes the decimal representation of {@code value}.
+     *
+     * @param value the integer to write.
+     */
+    public void writeInt(int value) {
+        // Work with the negated value so that Integer.MIN_VALUE fits.
+        int negated = value < 0 ? value : -value;
+        int length = value < 0 ? 2 : 1;
+
+        for (int v = negated; v <= -10; v /= 10) {
+            length++;
+        }
+
+        if (length > buffer.length - size) {
+            flushBuffer();
+        }
+
+        if (value < 0) {
+            buffer[size] = '-';
+        }
+
+        int end = size + length;
+
+        for (int i = end - 1; negated != 0 || i == end - 1; --i) {
+            buffer[i] = (byte) ('0' - negated % 10);
+            negated /= 10;
+        }
+
+        size = end;
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        if (length > buffer.length - size) {
+            flushBuffer();
+
+            if (length > buffer.length) {
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+                return;
+            }
+        }
+
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel and flushes the underlying
+     * stream, if any.
+     */
+    @Override
+    public void flush() {
+        flushBuffer();
+
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void flushBuffer() {
+        if (size == 0) {
+            return;
+        }
+
+        byteBuffer.clear().limit(size);
+        size = 0;
+        writeFully(byteBuffer);
+    }
+
+    private void writeFully(ByteBuffer data) {
+        try {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
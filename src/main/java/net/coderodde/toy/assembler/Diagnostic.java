@@ -0,0 +1,51 @@
+package net.coderodde.toy.assembler;
+
+import java.util.Objects;
+
+/**
+ * This class describes a single assembly error: the file, the line and the 
+ * column it was detected at, and the message.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 26, 2016)
+ */
+public class Diagnostic {
+    
+    private final String fileName;
+    private final int lineNumber;
+    private final int columnNumber;
+    private final String message;
+    
+    public Diagnostic(String fileName, 
+                      int lineNumber, 
+                      int columnNumber, 
+                      String message) {
+        this.fileName = Objects.requireNonNull(fileName, 
+                                               "The file name is null.");
+        this.message = Objects.requireNonNull(message, "The message is null.");
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+    }
+    
+    public String getFileName() {
+        return fileName;
+    }
+    
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    
+    public int getColumnNumber() {
+        return columnNumber;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    @Override
+    public String toString() {
+        return "Error in file \"" + fileName + "\" at line " + lineNumber + 
+               ", column " + columnNumber + ": " + message;
+    }
+}
@@ -0,0 +1,128 @@
+package net.coderodde.toy.assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class implements an execution profile of a program attributed to its
+ * source code lines. The profile is obtained by running an image built with a
+ * {@link SourceMap} under {@link ToyVMProfiler}, and it is consumed by the
+ * {@link BlockReorderer} when the same source is assembled again. The count
+ * of a line is the number of executions of the instruction it assembles to.
+ * <p>
+ * The text form contains one line {@code lineNumber count} for each executed
+ * source line.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 8, 2016)
+ */
+public final class ExecutionProfile {
+
+    // The count of each line; the index is the line number.
+    private final long[] lineCounts;
+
+    public ExecutionProfile(long[] lineCounts) {
+        this.lineCounts = Objects.requireNonNull(lineCounts,
+                                                 "The line counts are null.")
+                                 .clone();
+    }
+
+    /**
+     * Attributes the per-address execution counts of an image to the source
+     * lines through the source map of the image.
+     *
+     * @param executionCounts the execution count of each address.
+     * @param sourceMap       the source map of the profiled image.
+     * @return the profile.
+     */
+    public static ExecutionProfile fromExecutionCounts(long[] executionCounts,
+                                                       SourceMap sourceMap) {
+        Objects.requireNonNull(executionCounts,
+                               "The execution counts are null.");
+        Objects.requireNonNull(sourceMap, "The source map is null.");
+        long[] lineCounts = new long[0];
+        int codeLength = Math.min(executionCounts.length,
+                                  sourceMap.getCodeLength());
+
+        for (int address = 0; address < codeLength; ++address) {
+            int line = sourceMap.getLine(address);
+
+            if (executionCounts[address] == 0L || line < 0) {
+                continue;
+            }
+
+            if (line >= lineCounts.length) {
+                lineCounts = Arrays.copyOf(lineCounts,
+                                           Math.max(line + 1,
+                                                    2 * lineCounts.length));
+            }
+
+            lineCounts[line] = Math.max(lineCounts[line],
+                                        executionCounts[address]);
+        }
+
+        return new ExecutionProfile(lineCounts);
+    }
+
+    public long getCount(int lineNumber) {
+        return lineNumber >= 0 && lineNumber < lineCounts.length ?
+               lineCounts[lineNumber] :
+               0L;
+    }
+
+    public void write(Writer writer) throws IOException {
+        for (int line = 0; line < lineCounts.length; ++line) {
+            if (lineCounts[line] != 0L) {
+                writer.write(line + " " + lineCounts[line] + "\n");
+            }
+        }
+
+        writer.flush();
+    }
+
+    public static ExecutionProfile read(Reader reader) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        long[] lineCounts = new long[0];
+        String text;
+
+        while ((text = bufferedReader.readLine()) != null) {
+            text = text.trim();
+
+            if (text.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = text.split("\\s+");
+            int line;
+            long count;
+
+            try {
+                line = Integer.parseInt(fields[0]);
+                count = Long.parseLong(fields[1]);
+            } catch (NumberFormatException
+                     | ArrayIndexOutOfBoundsException ex) {
+                throw new IOException("Malformed profile line \"" + text +
+                                      "\".");
+            }
+
+            if (fields.length != 2 || line < 0 || count < 0L) {
+                throw new IOException("Malformed profile line \"" + text +
+                                      "\".");
+            }
+
+            if (line >= lineCounts.length) {
+                lineCounts = Arrays.copyOf(lineCounts,
+                                           Math.max(line + 1,
+                                                    2 * lineCounts.length));
+            }
+
+            lineCounts[line] = count;
+        }
+
+        return new ExecutionProfile(lineCounts);
+    }
+}
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.Objects;
 
 /**
@@ -37,4 +39,61 @@ public final class FileUtilities {
             stream.write(data);
         }
     }
+    
+    /**
+     * Reads the entire content of the file {@code file}.
+     * 
+     * @param file the file to read.
+     * @return the content of the file.
+     * 
+     * @throws IOException thrown if I/O fails.
+     * 
+     * @throws FileNotFoundException thrown if {@code file} does not represent
+     *                               an existing file.
+     */
+    public static byte[] readFile(File file) 
+    throws IOException, FileNotFoundException {
+        Objects.requireNonNull(file, "The input file is null.");
+        
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        
+        return Files.readAllBytes(file.toPath());
+    }
+    
+    /**
+     * Reads the ToyVM image stored in the file {@code file}. If the file is a
+     * compressed container, the image is decompressed. The
+     * {@link ImageHeader}, if any, is kept in front of the image.
+     * 
+     * @param file the file to read.
+     * @return the image.
+     * 
+     * @throws IOException thrown if I/O fails or the container is corrupt.
+     * 
+     * @throws FileNotFoundException thrown if {@code file} does not represent
+     *                               an existing file.
+     */
+    public static byte[] readImage(File file) 
+    throws IOException, FileNotFoundException {
+        byte[] data = readFile(file);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int headerSize = 0;
+        
+        if (ImageHeader.isPresent(buffer)) {
+            headerSize = ImageHeader.read(buffer).getSize();
+            buffer.position(headerSize);
+        }
+        
+        if (!CompressedImage.isCompressed(buffer)) {
+            return data;
+        }
+        
+        CompressedImage compressedImage = CompressedImage.read(buffer);
+        byte[] image = new byte[headerSize + compressedImage.getImageSize()];
+        System.arraycopy(data, 0, image, 0, headerSize);
+        compressedImage.decompress(image, headerSize, true);
+        return image;
+    }
 }
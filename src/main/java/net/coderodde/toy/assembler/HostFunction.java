@@ -0,0 +1,39 @@
+package net.coderodde.toy.assembler;
+
+/**
+ * This interface defines a routine implemented in Java and called from ToyVM
+ * code through the instruction {@code hcall name}. A host function receives
+ * its arguments in the registers or on the stack, as documented by the
+ * function, and usually returns its result in {@code reg1}.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 4, 2016)
+ */
+@FunctionalInterface
+public interface HostFunction {
+
+    /**
+     * The view of the calling machine given to a host function.
+     */
+    interface Context {
+
+        int getRegister(int registerIndex);
+
+        void setRegister(int registerIndex, int value);
+
+        int pop();
+
+        void push(int value);
+
+        Memory getMemory();
+
+        ConsoleOutput getOutput();
+    }
+
+    /**
+     * Runs the function.
+     *
+     * @param context the calling machine.
+     */
+    void call(Context context);
+}
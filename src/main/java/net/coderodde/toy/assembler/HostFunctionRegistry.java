@@ -0,0 +1,173 @@
+package net.coderodde.toy.assembler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+/**
+ * This class implements an immutable registry of host functions. The functions
+ * are numbered in the iteration order of the map given to the constructor;
+ * the assembler translates the name in {@code hcall name} to that number, and
+ * the interpreter calls the function by the number. Thus, the image must be
+ * run with the registry it was assembled with, or with one that extends it.
+ * <p>
+ * {@link #STANDARD} provides the following functions, each taking its
+ * arguments in {@code reg1} and {@code reg2} and returning its result in
+ * {@code reg1}:
+ * <ul>
+ *   <li>{@code strlen}: the length of the zero-terminated string at
+ *       {@code reg1},</li>
+ *   <li>{@code strcmp}: a negative, zero or positive value as the string at
+ *       {@code reg1} is less than, equal to or greater than the string at
+ *       {@code reg2},</li>
+ *   <li>{@code hash}: the 32-bit FNV-1a hash of the {@code reg2} bytes at
+ *       {@code reg1},</li>
+ *   <li>{@code print_hex}: prints {@code reg1} as eight hexadecimal digits
+ *       and leaves {@code reg1} as is.</li>
+ * </ul>
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 4, 2016)
+ */
+public final class HostFunctionRegistry {
+
+    private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    /**
+     * The registry of the standard host functions.
+     */
+    public static final HostFunctionRegistry STANDARD =
+            new HostFunctionRegistry(standardFunctionMap());
+
+    private final Map<String, HostFunction> mapNameToFunction;
+    private final Map<String, Integer> mapNameToId = new HashMap<>();
+    private final HostFunction[] functions;
+    private final String[] names;
+
+    public HostFunctionRegistry(Map<String, HostFunction> mapNameToFunction) {
+        Objects.requireNonNull(mapNameToFunction,
+                               "The host function map is null.");
+        this.mapNameToFunction = Collections.unmodifiableMap(
+                new LinkedHashMap<>(mapNameToFunction));
+        this.functions = new HostFunction[this.mapNameToFunction.size()];
+        this.names = new String[functions.length];
+        int id = 0;
+
+        for (Map.Entry<String, HostFunction> entry :
+                this.mapNameToFunction.entrySet()) {
+            names[id] = Objects.requireNonNull(entry.getKey(),
+                                               "A host function name is null.");
+            functions[id] = Objects.requireNonNull(
+                    entry.getValue(),
+                    "The host function \"" + names[id] + "\" is null.");
+            mapNameToId.put(names[id], id++);
+        }
+    }
+
+    /**
+     * Returns the functions by their names in the order of their numbers. A
+     * copy of the map may be extended and passed to the constructor in order
+     * to create a registry compatible with this one.
+     *
+     * @return the function map.
+     */
+    public Map<String, HostFunction> getFunctionMap() {
+        return mapNameToFunction;
+    }
+
+    public int size() {
+        return functions.length;
+    }
+
+    /**
+     * Returns the number of the function {@code name}.
+     *
+     * @param name the name of the function.
+     * @return the number of the function, or -1 if there is no such function.
+     */
+    public int getId(String name) {
+        Integer id = mapNameToId.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the function number {@code id}.
+     *
+     * @param id the number of the function.
+     * @return the function, or {@code null} if there is no such function.
+     */
+    public HostFunction getFunction(int id) {
+        return id >= 0 && id < functions.length ? functions[id] : null;
+    }
+
+    public String getName(int id) {
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+
+    private static Map<String, HostFunction> standardFunctionMap() {
+        Map<String, HostFunction> mapNameToFunction = new LinkedHashMap<>();
+        mapNameToFunction.put("strlen", HostFunctionRegistry::strlen);
+        mapNameToFunction.put("strcmp", HostFunctionRegistry::strcmp);
+        mapNameToFunction.put("hash", HostFunctionRegistry::hash);
+        mapNameToFunction.put("print_hex", HostFunctionRegistry::printHex);
+        return mapNameToFunction;
+    }
+
+    private static void strlen(HostFunction.Context context) {
+        Memory memory = context.getMemory();
+        int address = context.getRegister(REG1);
+        int length = 0;
+
+        while (memory.getByte(address + length) != 0) {
+            length++;
+        }
+
+        context.setRegister(REG1, length);
+    }
+
+    private static void strcmp(HostFunction.Context context) {
+        Memory memory = context.getMemory();
+        int address1 = context.getRegister(REG1);
+        int address2 = context.getRegister(REG2);
+
+        for (int i = 0;; ++i) {
+            int c1 = memory.getByte(address1 + i) & 0xff;
+            int c2 = memory.getByte(address2 + i) & 0xff;
+
+            if (c1 != c2 || c1 == 0) {
+                context.setRegister(REG1, c1 - c2);
+                return;
+            }
+        }
+    }
+
+    private static void hash(HostFunction.Context context) {
+        Memory memory = context.getMemory();
+        int address = context.getRegister(REG1);
+        int length = context.getRegister(REG2);
+        int hash = FNV_OFFSET_BASIS;
+
+        for (int i = 0; i < length; ++i) {
+            hash = (hash ^ (memory.getByte(address + i) & 0xff)) * FNV_PRIME;
+        }
+
+        context.setRegister(REG1, hash);
+    }
+
+    private static void printHex(HostFunction.Context context) {
+        ConsoleOutput output = context.getOutput();
+        int value = context.getRegister(REG1);
+
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            output.writeByte(HEX_DIGITS[(value >>> shift) & 0xf]);
+        }
+    }
+}
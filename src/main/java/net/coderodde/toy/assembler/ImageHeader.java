@@ -0,0 +1,184 @@
+package net.coderodde.toy.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class implements the optional header of a ToyVM image. The header
+ * describes the memory the image needs beyond its own bytes; it is not loaded
+ * into the memory, so that the first byte after the header is at address
+ * zero. The assembler emits the header only when needed, and the plain images
+ * stay compatible with ToyVM. All the integers are big-endian. The layout is:
+ * <pre>
+ * magic         4 bytes  0xFF 'T' 'V' 'M'
+ * headerSize    int      the size of the header including the magic
+ * reservedSize  int      the number of zero bytes following the image
+ * maxStackDepth int      the proven bound of the stack usage in bytes, or -1
+ * </pre>
+ * A reader ignores the fields it does not know, and the fields missing from a
+ * shorter header take the values of an image without a header: no reserved
+ * bytes and no stack bound. The bytes after the header may be a
+ * {@link CompressedImage} container. A plain image never starts with the
+ * magic, as {@code 0xFF} is not an opcode of the default instruction set.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 6, 2016)
+ */
+public final class ImageHeader {
+
+    private static final byte[] MAGIC = { (byte) 0xff, 'T', 'V', 'M' };
+    private static final int MIN_HEADER_SIZE = MAGIC.length + 4;
+    private static final int RESERVED_SIZE_OFFSET = MIN_HEADER_SIZE;
+    private static final int MAX_STACK_DEPTH_OFFSET = RESERVED_SIZE_OFFSET + 4;
+    private static final int HEADER_SIZE = MAX_STACK_DEPTH_OFFSET + 4;
+
+    /**
+     * The value of {@link #getMaxStackDepth()} for an image whose stack usage
+     * is not verified.
+     */
+    public static final int UNKNOWN_STACK_DEPTH = -1;
+
+    private final int size;
+    private final int reservedSize;
+    private final int maxStackDepth;
+
+    public ImageHeader(int reservedSize) {
+        this(reservedSize, UNKNOWN_STACK_DEPTH);
+    }
+
+    public ImageHeader(int reservedSize, int maxStackDepth) {
+        this(HEADER_SIZE, reservedSize, maxStackDepth);
+    }
+
+    private ImageHeader(int size, int reservedSize, int maxStackDepth) {
+        if (reservedSize < 0) {
+            throw new IllegalArgumentException(
+                    "The reserved size is negative: " + reservedSize + ".");
+        }
+
+        if (maxStackDepth < UNKNOWN_STACK_DEPTH) {
+            throw new IllegalArgumentException(
+                    "Bad maximum stack depth: " + maxStackDepth + ".");
+        }
+
+        this.size = size;
+        this.reservedSize = reservedSize;
+        this.maxStackDepth = maxStackDepth;
+    }
+
+    /**
+     * Returns the number of bytes the header occupies in the image file.
+     *
+     * @return the size of the header.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of zero bytes the loader allocates right after the
+     * image.
+     *
+     * @return the size of the reserved region.
+     */
+    public int getReservedSize() {
+        return reservedSize;
+    }
+
+    /**
+     * Returns the number of stack bytes the program never exceeds, as proven
+     * by {@link StackVerifier}, or {@link #UNKNOWN_STACK_DEPTH}.
+     *
+     * @return the maximum stack depth.
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    /**
+     * Returns {@code true} if {@code data} starts with the header magic.
+     *
+     * @param data the data to check.
+     * @return {@code true} if {@code data} has a header.
+     */
+    public static boolean isPresent(ByteBuffer data) {
+        if (data.remaining() < MAGIC.length) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (data.get(data.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static boolean isPresent(byte[] image) {
+        return isPresent(ByteBuffer.wrap(image));
+    }
+
+    /**
+     * Parses the header at the position of {@code data}. The position is not
+     * changed.
+     *
+     * @param data the image starting with the header.
+     * @return the header.
+     * @throws IOException if the header is malformed.
+     */
+    public static ImageHeader read(ByteBuffer data) throws IOException {
+        if (!isPresent(data) || data.remaining() < MIN_HEADER_SIZE) {
+            throw new IOException("Not a ToyVM image header.");
+        }
+
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = buffer.position();
+        int size = buffer.getInt(start + MAGIC.length);
+
+        if (size < MIN_HEADER_SIZE || size > buffer.remaining()) {
+            throw new IOException("Malformed ToyVM image header.");
+        }
+
+        int reservedSize = size >= MAX_STACK_DEPTH_OFFSET ?
+                           buffer.getInt(start + RESERVED_SIZE_OFFSET) :
+                           0;
+        int maxStackDepth = size >= HEADER_SIZE ?
+                            buffer.getInt(start + MAX_STACK_DEPTH_OFFSET) :
+                            UNKNOWN_STACK_DEPTH;
+
+        if (reservedSize < 0 || maxStackDepth < UNKNOWN_STACK_DEPTH) {
+            throw new IOException("Malformed ToyVM image header.");
+        }
+
+        return new ImageHeader(size, reservedSize, maxStackDepth);
+    }
+
+    public static ImageHeader read(byte[] image) throws IOException {
+        return read(ByteBuffer.wrap(image));
+    }
+
+    /**
+     * Returns the header followed by {@code image}.
+     *
+     * @param image the image without a header.
+     * @return the image with this header.
+     */
+    public byte[] prependTo(byte[] image) {
+        ByteBuffer buffer = ByteBuffer.allocate(size + image.length);
+        buffer.put(MAGIC).putInt(size);
+
+        if (size >= MAX_STACK_DEPTH_OFFSET) {
+            buffer.putInt(reservedSize);
+        }
+
+        if (size >= HEADER_SIZE) {
+            buffer.putInt(maxStackDepth);
+        }
+
+        buffer.position(size);
+        buffer.put(image);
+        return buffer.array();
+    }
+}
@@ -38,6 +38,22 @@ public class Instruction {
         this.instructionLength = computeInstructionLength();
     }
     
+    public String getOpcodeMnemonic() {
+        return opcodeMnemonic;
+    }
+    
+    public byte getOpcode() {
+        return opcode;
+    }
+    
+    public List<TokenDescriptor> getArgumentTokenDescriptorList() {
+        return argumentTokenDescriptorList;
+    }
+    
+    public int getInstructionLength() {
+        return instructionLength;
+    }
+    
     public List<Byte> assemble(String[] tokens) {
         checkNumberOfTokens(tokens.length);
         List<Byte> code = new ArrayList<>(instructionLength);
@@ -75,14 +91,14 @@ public class Instruction {
     }
     
     private void emitRegister(String token, List<Byte> code) {
-        Byte registerIndex = Configuration.mapRegisterNameToCode.get(token);
+        int registerIndex = Configuration.DEFAULT.getRegisterCode(token);
         
-        if (registerIndex == null) {
+        if (registerIndex < 0) {
             throw new AssemblyException(
                     "Unknown register name: \"" + token + ".\"");
         }
         
-        code.add(registerIndex);
+        code.add((byte) registerIndex);
     }
     
     private void checkNumberOfTokens(int numberOfTokens) {
@@ -103,6 +119,11 @@ public class Instruction {
                 case ADDRESS:
                 case WORD_DATA:
                 case BYTE_DATA:
+                case DISPLACEMENT:
+                case IMMEDIATE:
+                case STACK_DISPLACEMENT:
+                case BASE_REGISTER:
+                case BASE_DISPLACEMENT:
                     break;
                     
                 default:
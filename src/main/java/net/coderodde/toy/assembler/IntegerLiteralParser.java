@@ -0,0 +1,251 @@
+package net.coderodde.toy.assembler;
+
+/**
+ * This class implements a single-pass parser for the integer literals of the
+ * ToyVM assembly language. A literal is classified and evaluated in one scan
+ * without throwing exceptions or allocating, so that the operands that are not
+ * literals (labels and data names) are rejected cheaply. The supported forms
+ * are:
+ * <ul>
+ *   <li>decimal: {@code 42}, {@code -7}, {@code +3}; the value must fit in an
+ *       {@code int},</li>
+ *   <li>hexadecimal: {@code 0x2a}, {@code 0X2A},</li>
+ *   <li>binary: {@code 0b101010},</li>
+ *   <li>octal: {@code 0o52},</li>
+ *   <li>character: {@code 'a'}, {@code '\n'}, {@code '\t'}, {@code '\r'},
+ *       {@code '\0'}, {@code '\\'}, {@code '\''}.</li>
+ * </ul>
+ * The digits of a prefixed literal may be preceded by a sign and must fit in a
+ * {@code long}; the value is truncated to its lowest 32 bits.
+ * <p>
+ * A character literal holds any single character except the quote and the
+ * backslash, which are escaped, and the colon and the whitespace: the
+ * assemblers split a line at its first colon and between the tokens before
+ * the literal is parsed, so {@code ':'} and {@code ' '} are rejected and must
+ * be written by their codes, such as {@code 58} and {@code 32}.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 31, 2016)
+ */
+public final class IntegerLiteralParser {
+
+    /**
+     * The value returned for a token that is not an integer literal. No
+     * literal evaluates to it, as all the values fit in an {@code int}.
+     */
+    public static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+
+    /**
+     * Parses the integer literal {@code token}.
+     *
+     * @param token the token to parse.
+     * @return the value of the literal, or {@link #NOT_AN_INTEGER}.
+     */
+    public static long parse(CharSequence token) {
+        return parse(token, null, 0, token.length());
+    }
+
+    /**
+     * Parses the integer literal in the characters
+     * {@code chars[startIndex], ..., chars[endIndex - 1]}.
+     *
+     * @param chars      the characters holding the token.
+     * @param startIndex the index of the first character of the token.
+     * @param endIndex   the index one past the last character of the token.
+     * @return the value of the literal, or {@link #NOT_AN_INTEGER}.
+     */
+    public static long parse(CharSequence chars,
+                             int startIndex,
+                             int endIndex) {
+        return parse(chars, null, startIndex, endIndex);
+    }
+
+    /**
+     * Parses the integer literal in
+     * {@code bytes[startIndex], ..., bytes[endIndex - 1]}, each byte being an
+     * ISO-8859-1 character.
+     *
+     * @param bytes      the bytes holding the token.
+     * @param startIndex the index of the first byte of the token.
+     * @param endIndex   the index one past the last byte of the token.
+     * @return the value of the literal, or {@link #NOT_AN_INTEGER}.
+     */
+    public static long parse(byte[] bytes, int startIndex, int endIndex) {
+        return parse(null, bytes, startIndex, endIndex);
+    }
+
+    // Reads the characters from 'chars' if not null, and from 'bytes'
+    // otherwise.
+    private static long parse(CharSequence chars,
+                              byte[] bytes,
+                              int startIndex,
+                              int endIndex) {
+        if (startIndex >= endIndex) {
+            return NOT_AN_INTEGER;
+        }
+
+        char first = charAt(chars, bytes, startIndex);
+
+        if (first == '\'') {
+            return parseCharacter(chars, bytes, startIndex, endIndex);
+        }
+
+        if (first == '0' && endIndex - startIndex > 2) {
+            int radix = toRadix(charAt(chars, bytes, startIndex + 1));
+
+            if (radix != 0) {
+                return parseDigits(chars,
+                                   bytes,
+                                   startIndex + 2,
+                                   endIndex,
+                                   radix,
+                                   Long.MAX_VALUE);
+            }
+        }
+
+        return parseDigits(chars,
+                           bytes,
+                           startIndex,
+                           endIndex,
+                           10,
+                           Integer.MAX_VALUE);
+    }
+
+    // Parses an optionally signed sequence of digits whose magnitude may not
+    // exceed 'maxValue' (or 'maxValue + 1' if negative). As in
+    // Long.parseLong, the value is accumulated negatively so that the most
+    // negative value does not overflow.
+    private static long parseDigits(CharSequence chars,
+                                    byte[] bytes,
+                                    int startIndex,
+                                    int endIndex,
+                                    int radix,
+                                    long maxValue) {
+        char first = charAt(chars, bytes, startIndex);
+        boolean negative = first == '-';
+        int index = startIndex;
+
+        if (first == '-' || first == '+') {
+            index++;
+        }
+
+        if (index == endIndex) {
+            return NOT_AN_INTEGER;
+        }
+
+        long limit = negative ? -maxValue - 1 : -maxValue;
+        long limitBeforeMultiplication = limit / radix;
+        long value = 0;
+
+        for (; index < endIndex; ++index) {
+            int digit = toDigit(charAt(chars, bytes, index));
+
+            if (digit < 0 || digit >= radix
+                    || value < limitBeforeMultiplication) {
+                return NOT_AN_INTEGER;
+            }
+
+            value *= radix;
+
+            if (value < limit + digit) {
+                return NOT_AN_INTEGER;
+            }
+
+            value -= digit;
+        }
+
+        return (int) (negative ? value : -value);
+    }
+
+    private static long parseCharacter(CharSequence chars,
+                                       byte[] bytes,
+                                       int startIndex,
+                                       int endIndex) {
+        int length = endIndex - startIndex;
+
+        if (length < 3 || length > 4
+                || charAt(chars, bytes, endIndex - 1) != '\'') {
+            return NOT_AN_INTEGER;
+        }
+
+        char c = charAt(chars, bytes, startIndex + 1);
+
+        if (length == 3) {
+            return c == '\'' || c == '\\' || isSeparator(c) ?
+                   NOT_AN_INTEGER :
+                   c;
+        }
+
+        if (c != '\\') {
+            return NOT_AN_INTEGER;
+        }
+
+        switch (charAt(chars, bytes, startIndex + 2)) {
+            case 'n':
+                return '\n';
+
+            case 't':
+                return '\t';
+
+            case 'r':
+                return '\r';
+
+            case '0':
+                return 0;
+
+            case '\\':
+                return '\\';
+
+            case '\'':
+                return '\'';
+
+            default:
+                return NOT_AN_INTEGER;
+        }
+    }
+
+    // Tells whether 'c' separates the labels or the tokens of a line.
+    private static boolean isSeparator(char c) {
+        return c == ':' || c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private static int toRadix(char prefix) {
+        switch (prefix) {
+            case 'x':
+            case 'X':
+                return 16;
+
+            case 'b':
+            case 'B':
+                return 2;
+
+            case 'o':
+            case 'O':
+                return 8;
+
+            default:
+                return 0;
+        }
+    }
+
+    private static int toDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 10;
+        }
+
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+
+    private static char charAt(CharSequence chars, byte[] bytes, int index) {
+        return chars != null ? chars.charAt(index) :
+                               (char) (bytes[index] & 0xff);
+    }
+}
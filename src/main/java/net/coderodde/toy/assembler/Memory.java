@@ -0,0 +1,220 @@
+package net.coderodde.toy.assembler;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class defines the address space of {@link ToyVMInterpreter}. The words
+ * are 32-bit little-endian integers. An access outside of the memory throws
+ * {@link ArrayIndexOutOfBoundsException}, which the interpreter reports as a
+ * bad memory access.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 2, 2016)
+ */
+public abstract class Memory {
+
+    /**
+     * Returns the number of addressable bytes.
+     *
+     * @return the size of the memory.
+     */
+    public abstract int size();
+
+    /**
+     * Returns the number of bytes of the image loaded at address zero.
+     *
+     * @return the size of the image.
+     */
+    public abstract int getImageSize();
+
+    /**
+     * Returns the header of the image loaded at address zero.
+     *
+     * @return the image header, or {@code null} if the image has none.
+     */
+    public ImageHeader getImageHeader() {
+        return null;
+    }
+
+    public abstract byte getByte(int address);
+
+    public abstract void setByte(int address, byte value);
+
+    public int getWord(int address) {
+        return (getByte(address) & 0xff)
+            | ((getByte(address + 1) & 0xff) << 8)
+            | ((getByte(address + 2) & 0xff) << 16)
+            | ((getByte(address + 3) & 0xff) << 24);
+    }
+
+    public void setWord(int address, int value) {
+        setByte(address,     (byte) value);
+        setByte(address + 1, (byte)(value >>> 8));
+        setByte(address + 2, (byte)(value >>> 16));
+        setByte(address + 3, (byte)(value >>> 24));
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code sourceAddress} to
+     * {@code targetAddress}. The ranges may overlap.
+     *
+     * @param sourceAddress the address of the first byte to copy.
+     * @param targetAddress the address to copy to.
+     * @param length        the number of bytes to copy.
+     */
+    public void copy(int sourceAddress, int targetAddress, int length) {
+        checkRange(sourceAddress, length);
+        checkRange(targetAddress, length);
+
+        if (targetAddress <= sourceAddress) {
+            for (int i = 0; i < length; ++i) {
+                setByte(targetAddress + i, getByte(sourceAddress + i));
+            }
+        } else {
+            for (int i = length - 1; i >= 0; --i) {
+                setByte(targetAddress + i, getByte(sourceAddress + i));
+            }
+        }
+    }
+
+    /**
+     * Sets {@code length} bytes starting at {@code address} to {@code value}.
+     *
+     * @param address the address of the first byte to set.
+     * @param length  the number of bytes to set.
+     * @param value   the value to set.
+     */
+    public void fill(int address, int length, byte value) {
+        checkRange(address, length);
+
+        for (int i = 0; i < length; ++i) {
+            setByte(address + i, value);
+        }
+    }
+
+    /**
+     * Throws {@link ArrayIndexOutOfBoundsException} unless the range of
+     * {@code length} bytes starting at {@code address} is within the memory.
+     *
+     * @param address the address of the range.
+     * @param length  the length of the range.
+     */
+    protected final void checkRange(int address, int length) {
+        if (address < 0 || length < 0 || address > size() - length) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "Range of " + length + " bytes at " + address + ".");
+        }
+    }
+
+    /**
+     * Creates a memory of {@code size} bytes backed by an array, with
+     * {@code image} copied to address zero. The {@link ImageHeader} of the
+     * image, if any, is not copied, and its reserved region counts as a part
+     * of the image.
+     *
+     * @param image the image to load.
+     * @param size  the size of the memory.
+     * @return the memory.
+     */
+    public static Memory fromImage(byte[] image, int size) {
+        Objects.requireNonNull(image, "The input image is null.");
+        ImageHeader header = null;
+        int headerSize = 0;
+        int reservedSize = 0;
+
+        if (ImageHeader.isPresent(image)) {
+            try {
+                header = ImageHeader.read(image);
+                headerSize = header.getSize();
+                reservedSize = header.getReservedSize();
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(ex.getMessage(), ex);
+            }
+        }
+
+        long imageSize = (long) image.length - headerSize + reservedSize;
+
+        if (imageSize > size) {
+            throw new IllegalArgumentException(
+                    "The image of " + imageSize + " bytes does not fit " +
+                    "into " + size + " bytes of memory.");
+        }
+
+        return new ArrayMemory(image, header, (int) imageSize, size);
+    }
+
+    private static final class ArrayMemory extends Memory {
+
+        private final byte[] bytes;
+        private final int imageSize;
+        private final ImageHeader header;
+
+        ArrayMemory(byte[] image, ImageHeader header, int imageSize, int size) {
+            int offset = header == null ? 0 : header.getSize();
+            this.bytes = new byte[size];
+            this.imageSize = imageSize;
+            this.header = header;
+            System.arraycopy(image, offset, bytes, 0, image.length - offset);
+        }
+
+        @Override
+        public ImageHeader getImageHeader() {
+            return header;
+        }
+
+        @Override
+        public int size() {
+            return bytes.length;
+        }
+
+        @Override
+        public int getImageSize() {
+            return imageSize;
+        }
+
+        @Override
+        public byte getByte(int address) {
+            return bytes[address];
+        }
+
+        @Override
+        public void setByte(int address, byte value) {
+            bytes[address] = value;
+        }
+
+        @Override
+        public void copy(int sourceAddress, int targetAddress, int length) {
+            checkRange(sourceAddress, length);
+            checkRange(targetAddress, length);
+            System.arraycopy(bytes,
+                             sourceAddress,
+                             bytes,
+                             targetAddress,
+                             length);
+        }
+
+        @Override
+        public void fill(int address, int length, byte value) {
+            checkRange(address, length);
+            Arrays.fill(bytes, address, address + length, value);
+        }
+
+        @Override
+        public int getWord(int address) {
+            return (bytes[address] & 0xff)
+                | ((bytes[address + 1] & 0xff) << 8)
+                | ((bytes[address + 2] & 0xff) << 16)
+                | ((bytes[address + 3] & 0xff) << 24);
+        }
+
+        @Override
+        public void setWord(int address, int value) {
+            bytes[address]     = (byte) value;
+            bytes[address + 1] = (byte)(value >>> 8);
+            bytes[address + 2] = (byte)(value >>> 16);
+            bytes[address + 3] = (byte)(value >>> 24);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package net.coderodde.toy.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This class implements a demand-paged address space over a memory-mapped
+ * image file, so that the startup time of a program is proportional to the
+ * code it actually touches rather than to the size of the image.
+ * <p>
+ * The memory is divided into pages. A page of a plain image is read straight
+ * from the mapping (the operating system faults it in) until the program
+ * writes to it; the first write copies the page into a private array, and the
+ * file is never modified. A page of a compressed container is a block of the
+ * container, and it is decompressed on the first access. The pages past the
+ * image, including the region reserved by the {@link ImageHeader}, are
+ * zero-filled and allocated on the first write. As the blocks are
+ * inflated one at a time, the checksum of a compressed image is not verified.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 2, 2016)
+ */
+public final class PagedImageMemory extends Memory {
+
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private static final int WORD_SIZE = 4;
+
+    private final ByteBuffer mapping;
+    private final CompressedImage compressedImage;
+    private final int size;
+    private final int imageSize;
+    private final ImageHeader header;
+    private final int pageSize;
+    private final int pageShift;
+    private final int pageMask;
+    // The private copies of the pages; null until a page is faulted in.
+    private final byte[][] pages;
+    private int residentPageCount;
+
+    private PagedImageMemory(ByteBuffer mapping,
+                             CompressedImage compressedImage,
+                             int size,
+                             int imageSize,
+                             ImageHeader header,
+                             int pageSize) {
+        this.mapping = mapping;
+        this.compressedImage = compressedImage;
+        this.size = size;
+        this.imageSize = imageSize;
+        this.header = header;
+        this.pageSize = pageSize;
+        this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+        this.pageMask = pageSize - 1;
+        this.pages = new byte[(int) ((size + (long) pageSize - 1)
+                                     / pageSize)][];
+    }
+
+    /**
+     * Maps the image file {@code file}, which may be a compressed container,
+     * as a memory of {@code size} bytes. No page is read yet.
+     *
+     * @param file the image file.
+     * @param size the size of the memory.
+     * @return the memory.
+     * @throws IOException if I/O fails or the container is malformed.
+     */
+    public static PagedImageMemory map(File file, int size)
+    throws IOException {
+        Objects.requireNonNull(file, "The file is null.");
+        ByteBuffer mapping;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file \"" + file.getPath() +
+                                      "\" is too large.");
+            }
+
+            // The mapping stays valid after the channel is closed.
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                                  0L,
+                                  channel.size());
+        }
+
+        ImageHeader header = null;
+        int reservedSize = 0;
+
+        if (ImageHeader.isPresent(mapping)) {
+            header = ImageHeader.read(mapping);
+            reservedSize = header.getReservedSize();
+            mapping.position(header.getSize());
+            mapping = mapping.slice();
+        }
+
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        CompressedImage compressedImage = null;
+        int imageSize = mapping.capacity();
+        int pageSize = DEFAULT_PAGE_SIZE;
+
+        if (CompressedImage.isCompressed(mapping)) {
+            compressedImage = CompressedImage.read(mapping);
+            imageSize = compressedImage.getImageSize();
+            pageSize = compressedImage.getBlockSize();
+
+            if (Integer.bitCount(pageSize) != 1) {
+                throw new IOException(
+                        "The block size of the compressed image is not a " +
+                        "power of two: " + pageSize + ".");
+            }
+        }
+
+        if ((long) imageSize + reservedSize > size) {
+            throw new IllegalArgumentException(
+                    "The image of " + ((long) imageSize + reservedSize) +
+                    " bytes does not fit " +
+                    "into " + size + " bytes of memory.");
+        }
+
+        return new PagedImageMemory(mapping,
+                                    compressedImage,
+                                    size,
+                                    imageSize,
+                                    header,
+                                    pageSize);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getImageSize() {
+        return header == null ?
+               imageSize :
+               imageSize + header.getReservedSize();
+    }
+
+    @Override
+    public ImageHeader getImageHeader() {
+        return header;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the number of pages copied, decompressed or allocated so far.
+     *
+     * @return the number of resident pages.
+     */
+    public int getResidentPageCount() {
+        return residentPageCount;
+    }
+
+    @Override
+    public byte getByte(int address) {
+        checkAddress(address);
+        byte[] page = pages[address >>> pageShift];
+
+        if (page != null) {
+            return page[address & pageMask];
+        }
+
+        if (compressedImage == null) {
+            return address < imageSize ? mapping.get(address) : 0;
+        }
+
+        return faultIn(address >>> pageShift)[address & pageMask];
+    }
+
+    @Override
+    public void setByte(int address, byte value) {
+        checkAddress(address);
+        page(address >>> pageShift)[address & pageMask] = value;
+    }
+
+    @Override
+    public int getWord(int address) {
+        if (!isWordWithinPage(address)) {
+            return super.getWord(address);
+        }
+
+        byte[] page = pages[address >>> pageShift];
+
+        if (page == null) {
+            if (compressedImage == null && address <= imageSize - WORD_SIZE) {
+                return mapping.getInt(address);
+            }
+
+            page = faultIn(address >>> pageShift);
+        }
+
+        int offset = address & pageMask;
+        return (page[offset] & 0xff)
+            | ((page[offset + 1] & 0xff) << 8)
+            | ((page[offset + 2] & 0xff) << 16)
+            | ((page[offset + 3] & 0xff) << 24);
+    }
+
+    @Override
+    public void setWord(int address, int value) {
+        if (!isWordWithinPage(address)) {
+            super.setWord(address, value);
+            return;
+        }
+
+        byte[] page = page(address >>> pageShift);
+        int offset = address & pageMask;
+        page[offset]     = (byte) value;
+        page[offset + 1] = (byte)(value >>> 8);
+        page[offset + 2] = (byte)(value >>> 16);
+        page[offset + 3] = (byte)(value >>> 24);
+    }
+
+    @Override
+    public void fill(int address, int length, byte value) {
+        checkRange(address, length);
+        int end = address + length;
+
+        while (address < end) {
+            int offset = address & pageMask;
+            int chunk = Math.min(end - address, pageSize - offset);
+            Arrays.fill(page(address >>> pageShift),
+                        offset,
+                        offset + chunk,
+                        value);
+            address += chunk;
+        }
+    }
+
+    private boolean isWordWithinPage(int address) {
+        return address >= 0
+                && address <= size - WORD_SIZE
+                && (address & pageMask) <= pageSize - WORD_SIZE;
+    }
+
+    private byte[] page(int pageIndex) {
+        byte[] page = pages[pageIndex];
+        return page != null ? page : faultIn(pageIndex);
+    }
+
+    private byte[] faultIn(int pageIndex) {
+        byte[] page = new byte[pageSize];
+        int pageStart = pageIndex << pageShift;
+
+        if (pageStart < imageSize) {
+            if (compressedImage != null) {
+                try {
+                    compressedImage.decompressBlock(pageIndex, page, 0);
+                } catch (IOException ex) {
+                    throw new ToyVMException(ex.getMessage());
+                }
+            } else {
+                ByteBuffer view = mapping.duplicate();
+                view.position(pageStart);
+                view.get(page, 0, Math.min(pageSize, imageSize - pageStart));
+            }
+        }
+
+        pages[pageIndex] = page;
+        residentPageCount++;
+        return page;
+    }
+
+    private void checkAddress(int address) {
+        if (address < 0 || address >= size) {
+            throw new ArrayIndexOutOfBoundsException(address);
+        }
+    }
+}
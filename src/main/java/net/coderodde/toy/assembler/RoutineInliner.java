@@ -0,0 +1,487 @@
+package net.coderodde.toy.assembler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * This class implements the inlining of small leaf routines at their call
+ * sites. A routine is the code from the label named in a {@code call} through
+ * the first {@code ret} after which no branch of the routine leads further.
+ * A routine is inlined if
+ * <ul>
+ *   <li>it has at most {@code maxInstructions} instructions,</li>
+ *   <li>it contains no {@code call} and no {@code hcall}, and thus is not
+ *       recursive,</li>
+ *   <li>its branches stay within it and no branch outside of it leads into
+ *       it, except to its entry label,</li>
+ *   <li>it contains no data directives, and</li>
+ *   <li>its pushes and pops balance at each {@code ret} without ever popping
+ *       more than it pushed.</li>
+ * </ul>
+ * Each inlined copy renames the labels of the routine with a unique prefix,
+ * and each {@code ret} other than the last one becomes a jump past the copy.
+ * The stack layout of a routine reading the stack pointer through
+ * {@code lsp} or an {@code [sp+displacement]} operand depends on the return
+ * address, so such a routine is inlined only at the call sites whose next
+ * instruction overwrites a register without reading it: the copy pushes that
+ * register in place of the return address and pops the slot into it in place
+ * of each {@code ret}. The routines themselves are kept, so that the call
+ * sites not inlined and the other references still work.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 8, 2016)
+ */
+public class RoutineInliner {
+
+    private static final String COMMENT_START_TOKEN = "//";
+    private static final String INLINED_LABEL_PREFIX = "__inl";
+    private static final String RETURN_LABEL_SUFFIX = "ret";
+    private static final String STACK_POINTER_OPERAND_PREFIX =
+            "[" + ToyVMAssembler.STACK_POINTER_NAME;
+    private static final String INDENT = "    ";
+    private static final int WORD_SIZE = 4;
+    private static final int ALL_REGISTERS_SIZE = 4 * WORD_SIZE;
+
+    private static final Set<String> BRANCH_MNEMONICS =
+            new HashSet<>(Arrays.asList("ja", "je", "jb", "jmp"));
+    // The instructions writing their first operand without reading it.
+    private static final Set<String> OVERWRITING_MNEMONICS =
+            new HashSet<>(Arrays.asList("pop", "const", "load", "lsp"));
+
+    private final List<String> sourceCodeLineList;
+    private final int maxInstructions;
+    private final List<String> inlinedLineList = new ArrayList<>();
+    private final List<Integer> lineNumberList = new ArrayList<>();
+
+    private final String[] labels;
+    // The tokens of the instruction on each line, or null.
+    private final String[][] tokens;
+    private final Map<String, Integer> mapLabelToLineIndex = new HashMap<>();
+    private final Map<String, Routine> mapLabelToRoutine = new HashMap<>();
+    private final Set<String> usedNameSet = new HashSet<>();
+    private int inlinedCopies;
+    private int inlinedCalls;
+
+    private static final class Routine {
+        final int startLineIndex;
+        final int endLineIndex;
+        final boolean readsStackPointer;
+
+        Routine(int startLineIndex,
+                int endLineIndex,
+                boolean readsStackPointer) {
+            this.startLineIndex = startLineIndex;
+            this.endLineIndex = endLineIndex;
+            this.readsStackPointer = readsStackPointer;
+        }
+    }
+
+    public RoutineInliner(List<String> sourceCodeLineList,
+                          int maxInstructions) {
+        this.sourceCodeLineList =
+                Objects.requireNonNull(sourceCodeLineList,
+                                       "The input source code line list is " +
+                                       "null.");
+
+        if (maxInstructions < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum number of instructions is negative: " +
+                    maxInstructions + ".");
+        }
+
+        this.maxInstructions = maxInstructions;
+        this.labels = new String[sourceCodeLineList.size()];
+        this.tokens = new String[sourceCodeLineList.size()][];
+    }
+
+    /**
+     * Inlines the routines and rewrites the source code.
+     *
+     * @return the rewritten source code lines.
+     */
+    public List<String> inline() {
+        inlinedLineList.clear();
+        lineNumberList.clear();
+        inlinedCalls = 0;
+
+        if (parseLines()) {
+            findRoutines();
+        }
+
+        for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+            if (!inlineCall(i)) {
+                emit(sourceCodeLineList.get(i), i);
+            }
+        }
+
+        return inlinedLineList;
+    }
+
+    /**
+     * Returns the original line number of the {@code index}th rewritten line.
+     * The lines of an inlined copy keep the line numbers of the routine.
+     *
+     * @param index the index of the rewritten line.
+     * @return the line number in the original source code.
+     */
+    public int getLineNumber(int index) {
+        return lineNumberList.get(index);
+    }
+
+    public int getNumberOfInlinedCalls() {
+        return inlinedCalls;
+    }
+
+    // Returns false if the labels are malformed, in which case nothing is
+    // inlined and the assembler reports the error.
+    private boolean parseLines() {
+        for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+            String line = sourceCodeLineList.get(i)
+                                            .split(COMMENT_START_TOKEN)[0]
+                                            .trim();
+            int colonIndex = line.indexOf(":");
+
+            if (colonIndex != -1) {
+                labels[i] = line.substring(0, colonIndex).trim();
+
+                if (line.indexOf(":", colonIndex + 1) != -1
+                        || mapLabelToLineIndex.containsKey(labels[i])) {
+                    return false;
+                }
+
+                mapLabelToLineIndex.put(labels[i], i);
+                usedNameSet.add(labels[i]);
+                line = line.substring(colonIndex + 1).trim();
+            }
+
+            if (!line.isEmpty()) {
+                tokens[i] = line.split("\\s+");
+                usedNameSet.addAll(Arrays.asList(tokens[i]));
+            }
+        }
+
+        return true;
+    }
+
+    private void findRoutines() {
+        for (String[] lineTokens : tokens) {
+            if (lineTokens != null
+                    && lineTokens[0].equals("call")
+                    && lineTokens.length == 2
+                    && !mapLabelToRoutine.containsKey(lineTokens[1])) {
+                Integer startLineIndex = mapLabelToLineIndex.get(lineTokens[1]);
+
+                if (startLineIndex != null) {
+                    mapLabelToRoutine.put(lineTokens[1],
+                                          findRoutine(startLineIndex));
+                }
+            }
+        }
+    }
+
+    // Returns the routine starting at the line 'startLineIndex', or null if it
+    // may not be inlined.
+    private Routine findRoutine(int startLineIndex) {
+        Set<String> routineLabelSet = new HashSet<>();
+        Set<String> pendingLabelSet = new HashSet<>();
+        boolean readsStackPointer = false;
+        int instructions = 0;
+
+        for (int i = startLineIndex; i < sourceCodeLineList.size(); ++i) {
+            if (labels[i] != null) {
+                routineLabelSet.add(labels[i]);
+                pendingLabelSet.remove(labels[i]);
+            }
+
+            String[] lineTokens = tokens[i];
+
+            if (lineTokens == null) {
+                continue;
+            }
+
+            if (++instructions > maxInstructions) {
+                return null;
+            }
+
+            String mnemonic = lineTokens[0];
+
+            if (mnemonic.equals("call")
+                    || mnemonic.equals("hcall")
+                    || ToyVMAssembler.DATA_MNEMONICS.contains(mnemonic)) {
+                return null;
+            }
+
+            if (BRANCH_MNEMONICS.contains(mnemonic)) {
+                if (lineTokens.length != 2
+                        || !mapLabelToLineIndex.containsKey(lineTokens[1])) {
+                    return null;
+                }
+
+                if (!routineLabelSet.contains(lineTokens[1])) {
+                    if (mapLabelToLineIndex.get(lineTokens[1]) < i) {
+                        // A backward branch out of the routine.
+                        return null;
+                    }
+
+                    pendingLabelSet.add(lineTokens[1]);
+                }
+            }
+
+            for (String token : lineTokens) {
+                if (token.startsWith(STACK_POINTER_OPERAND_PREFIX)) {
+                    readsStackPointer = true;
+                }
+            }
+
+            if (mnemonic.equals("lsp")) {
+                readsStackPointer = true;
+            }
+
+            if (mnemonic.equals("ret") && pendingLabelSet.isEmpty()) {
+                Routine routine = new Routine(startLineIndex,
+                                              i,
+                                              readsStackPointer);
+                return hasSingleEntry(routine, routineLabelSet)
+                        && isStackBalanced(routine) ? routine : null;
+            }
+        }
+
+        return null;
+    }
+
+    // Checks that only the entry label of the routine is referenced from
+    // outside of it, and that no other token of the routine refers to its
+    // labels.
+    private boolean hasSingleEntry(Routine routine,
+                                   Set<String> routineLabelSet) {
+        for (int i = 0; i < tokens.length; ++i) {
+            if (tokens[i] == null) {
+                continue;
+            }
+
+            boolean inside = i >= routine.startLineIndex
+                          && i <= routine.endLineIndex;
+
+            for (int j = 1; j < tokens[i].length; ++j) {
+                if (!routineLabelSet.contains(tokens[i][j])) {
+                    continue;
+                }
+
+                if (inside && (j != 1 || !BRANCH_MNEMONICS.contains(
+                                                 tokens[i][0]))) {
+                    return false;
+                }
+
+                if (!inside && !tokens[i][j].equals(
+                                    labels[routine.startLineIndex])) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Follows the branches of the routine and checks that the stack depth
+    // relative to the entry is consistent, never negative and zero at each
+    // 'ret'.
+    private boolean isStackBalanced(Routine routine) {
+        Map<Integer, Integer> mapLineIndexToDepth = new HashMap<>();
+        Deque<Integer> workList = new ArrayDeque<>();
+        mapLineIndexToDepth.put(routine.startLineIndex, 0);
+        workList.push(routine.startLineIndex);
+
+        while (!workList.isEmpty()) {
+            int lineIndex = workList.pop();
+            int depth = mapLineIndexToDepth.get(lineIndex);
+            String[] lineTokens = tokens[lineIndex];
+            String mnemonic = lineTokens == null ? "" : lineTokens[0];
+            boolean fallsThrough = true;
+
+            switch (mnemonic) {
+                case "push":
+                    depth += WORD_SIZE;
+                    break;
+
+                case "pusha":
+                    depth += ALL_REGISTERS_SIZE;
+                    break;
+
+                case "pop":
+                case "int":
+                    depth -= WORD_SIZE;
+                    break;
+
+                case "popa":
+                    depth -= ALL_REGISTERS_SIZE;
+                    break;
+
+                case "ret":
+                    if (depth != 0) {
+                        return false;
+                    }
+
+                    fallsThrough = false;
+                    break;
+
+                case "halt":
+                    fallsThrough = false;
+                    break;
+            }
+
+            if (depth < 0) {
+                return false;
+            }
+
+            List<Integer> successorList = new ArrayList<>(2);
+
+            if (BRANCH_MNEMONICS.contains(mnemonic)) {
+                successorList.add(mapLabelToLineIndex.get(lineTokens[1]));
+                fallsThrough = !mnemonic.equals("jmp");
+            }
+
+            if (fallsThrough) {
+                // The routine ends in 'ret', so the next line is within it.
+                successorList.add(lineIndex + 1);
+            }
+
+            for (int successor : successorList) {
+                Integer knownDepth = mapLineIndexToDepth.get(successor);
+
+                if (knownDepth == null) {
+                    mapLineIndexToDepth.put(successor, depth);
+                    workList.push(successor);
+                } else if (knownDepth != depth) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Emits the inlined copy of the routine called on the line 'lineIndex'.
+    // Returns false if the call is not inlined.
+    private boolean inlineCall(int lineIndex) {
+        String[] lineTokens = tokens[lineIndex];
+
+        if (lineTokens == null || !lineTokens[0].equals("call")
+                || lineTokens.length != 2) {
+            return false;
+        }
+
+        Routine routine = mapLabelToRoutine.get(lineTokens[1]);
+
+        if (routine == null) {
+            return false;
+        }
+
+        String slotRegister = null;
+
+        if (routine.readsStackPointer) {
+            slotRegister = findOverwrittenRegister(lineIndex);
+
+            if (slotRegister == null) {
+                return false;
+            }
+        }
+
+        String prefix = generatePrefix();
+        String returnLabel = prefix + RETURN_LABEL_SUFFIX;
+        boolean returnLabelUsed = false;
+
+        if (labels[lineIndex] != null) {
+            emit(labels[lineIndex] + ":", lineIndex);
+        }
+
+        if (slotRegister != null) {
+            emit(INDENT + "push " + slotRegister, lineIndex);
+        }
+
+        for (int i = routine.startLineIndex; i <= routine.endLineIndex; ++i) {
+            if (labels[i] != null) {
+                emit(prefix + labels[i] + ":", i);
+            }
+
+            if (tokens[i] == null) {
+                continue;
+            }
+
+            String mnemonic = tokens[i][0];
+
+            if (mnemonic.equals("ret")) {
+                if (slotRegister != null) {
+                    emit(INDENT + "pop " + slotRegister, i);
+                }
+
+                if (i != routine.endLineIndex) {
+                    emit(INDENT + "jmp " + returnLabel, i);
+                    returnLabelUsed = true;
+                }
+            } else if (BRANCH_MNEMONICS.contains(mnemonic)) {
+                emit(INDENT + mnemonic + " " + prefix + tokens[i][1], i);
+            } else {
+                emit(INDENT + String.join(" ", tokens[i]), i);
+            }
+        }
+
+        if (returnLabelUsed) {
+            emit(returnLabel + ":", lineIndex);
+        }
+
+        inlinedCalls++;
+        return true;
+    }
+
+    // Returns the register the instruction following the call on the line
+    // 'lineIndex' overwrites without reading, or null if there is none.
+    private String findOverwrittenRegister(int lineIndex) {
+        for (int i = lineIndex + 1; i < tokens.length; ++i) {
+            String[] lineTokens = tokens[i];
+
+            if (lineTokens == null
+                    || ToyVMAssembler.DATA_MNEMONICS.contains(lineTokens[0])) {
+                continue;
+            }
+
+            if (lineTokens[0].equals("popa")) {
+                return "reg1";
+            }
+
+            return OVERWRITING_MNEMONICS.contains(lineTokens[0])
+                    && lineTokens.length >= 2 ? lineTokens[1] : null;
+        }
+
+        return null;
+    }
+
+    private String generatePrefix() {
+        String prefix;
+
+        search:
+        while (true) {
+            prefix = INLINED_LABEL_PREFIX + inlinedCopies++ + "_";
+
+            for (String name : usedNameSet) {
+                if (name.startsWith(prefix)) {
+                    continue search;
+                }
+            }
+
+            return prefix;
+        }
+    }
+
+    private void emit(String line, int lineIndex) {
+        inlinedLineList.add(line);
+        lineNumberList.add(lineIndex + 1);
+    }
+}
@@ -0,0 +1,296 @@
+package net.coderodde.toy.assembler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class maps the code addresses of an assembled image to the source code
+ * lines and labels they originate from. Each entry marks the address at which
+ * the code of a source line starts; the code of that line extends up to the
+ * next entry or the end of the code. The lookups are binary searches over the
+ * sorted entry addresses.
+ * <p>
+ * The binary form starts with the magic bytes {@code TSM1} followed by the
+ * source file name, the code length, the line entries and the labels. All
+ * integers are written as variable-length quantities; the entry addresses and
+ * lines as well as the label addresses are delta-encoded.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 24, 2016)
+ */
+public class SourceMap {
+
+    private static final byte[] MAGIC = { 'T', 'S', 'M', '1' };
+
+    private final String fileName;
+    private final int codeLength;
+    private final int[] entryAddresses;
+    private final int[] entryLines;
+    private final int[] labelAddresses;
+    private final String[] labelNames;
+
+    public SourceMap(String fileName,
+                     int codeLength,
+                     int[] entryAddresses,
+                     int[] entryLines,
+                     Map<String, Integer> labelMap) {
+        this.fileName = Objects.requireNonNull(fileName,
+                                               "The file name is null.");
+        Objects.requireNonNull(labelMap, "The label map is null.");
+
+        if (entryAddresses.length != entryLines.length) {
+            throw new IllegalArgumentException(
+                    "The number of entry addresses and lines differ.");
+        }
+
+        this.codeLength = codeLength;
+        this.entryAddresses = entryAddresses.clone();
+        this.entryLines = entryLines.clone();
+
+        List<Map.Entry<String, Integer>> labelList =
+                new ArrayList<>(labelMap.entrySet());
+        labelList.sort((a, b) -> Integer.compare(a.getValue(), b.getValue()));
+        this.labelAddresses = new int[labelList.size()];
+        this.labelNames = new String[labelList.size()];
+
+        for (int i = 0; i < labelList.size(); ++i) {
+            labelAddresses[i] = labelList.get(i).getValue();
+            labelNames[i] = labelList.get(i).getKey();
+        }
+    }
+
+    private SourceMap(String fileName,
+                      int codeLength,
+                      int[] entryAddresses,
+                      int[] entryLines,
+                      int[] labelAddresses,
+                      String[] labelNames) {
+        this.fileName = fileName;
+        this.codeLength = codeLength;
+        this.entryAddresses = entryAddresses;
+        this.entryLines = entryLines;
+        this.labelAddresses = labelAddresses;
+        this.labelNames = labelNames;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getCodeLength() {
+        return codeLength;
+    }
+
+    /**
+     * Returns the source line the code at {@code address} originates from.
+     *
+     * @param address the code address.
+     * @return the line number, or -1 if the address is not in the code.
+     */
+    public int getLine(int address) {
+        if (address < 0 || address >= codeLength) {
+            return -1;
+        }
+
+        int index = floorIndex(entryAddresses, address);
+        return index < 0 ? -1 : entryLines[index];
+    }
+
+    /**
+     * Returns the nearest label at or before {@code address}.
+     *
+     * @param address the address.
+     * @return the label name, or {@code null} if there is no such label.
+     */
+    public String getLabel(int address) {
+        int index = floorIndex(labelAddresses, address);
+        return index < 0 ? null : labelNames[index];
+    }
+
+    /**
+     * Returns the address of the nearest label at or before {@code address}.
+     *
+     * @param address the address.
+     * @return the label address, or -1 if there is no such label.
+     */
+    public int getLabelAddress(int address) {
+        int index = floorIndex(labelAddresses, address);
+        return index < 0 ? -1 : labelAddresses[index];
+    }
+
+    /**
+     * Describes {@code address} as {@code label+offset (file:line)}.
+     *
+     * @param address the address to describe.
+     * @return the description.
+     */
+    public String describe(int address) {
+        StringBuilder sb = new StringBuilder();
+        int labelIndex = floorIndex(labelAddresses, address);
+
+        if (labelIndex < 0) {
+            sb.append(String.format("0x%08x", address));
+        } else {
+            sb.append(labelNames[labelIndex]);
+
+            if (address != labelAddresses[labelIndex]) {
+                sb.append('+').append(address - labelAddresses[labelIndex]);
+            }
+        }
+
+        int line = getLine(address);
+
+        if (line != -1) {
+            sb.append(" (").append(fileName).append(':').append(line)
+              .append(')');
+        }
+
+        return sb.toString();
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(MAGIC);
+        writeString(out, fileName);
+        writeVarInt(out, codeLength);
+        writeVarInt(out, entryAddresses.length);
+        int previousAddress = 0;
+        int previousLine = 0;
+
+        for (int i = 0; i < entryAddresses.length; ++i) {
+            writeVarInt(out, entryAddresses[i] - previousAddress);
+            writeVarInt(out, zigZag(entryLines[i] - previousLine));
+            previousAddress = entryAddresses[i];
+            previousLine = entryLines[i];
+        }
+
+        writeVarInt(out, labelAddresses.length);
+        previousAddress = 0;
+
+        for (int i = 0; i < labelAddresses.length; ++i) {
+            writeVarInt(out, labelAddresses[i] - previousAddress);
+            writeString(out, labelNames[i]);
+            previousAddress = labelAddresses[i];
+        }
+
+        out.flush();
+    }
+
+    public static SourceMap read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a source map.");
+            }
+        }
+
+        String fileName = readString(in);
+        int codeLength = readVarInt(in);
+        int entries = readVarInt(in);
+        int[] entryAddresses = new int[entries];
+        int[] entryLines = new int[entries];
+        int address = 0;
+        int line = 0;
+
+        for (int i = 0; i < entries; ++i) {
+            address += readVarInt(in);
+            line += unZigZag(readVarInt(in));
+            entryAddresses[i] = address;
+            entryLines[i] = line;
+        }
+
+        int labels = readVarInt(in);
+        int[] labelAddresses = new int[labels];
+        String[] labelNames = new String[labels];
+        address = 0;
+
+        for (int i = 0; i < labels; ++i) {
+            address += readVarInt(in);
+            labelAddresses[i] = address;
+            labelNames[i] = readString(in);
+        }
+
+        return new SourceMap(fileName,
+                             codeLength,
+                             entryAddresses,
+                             entryLines,
+                             labelAddresses,
+                             labelNames);
+    }
+
+    // Returns the index of the last element not exceeding 'key', or -1.
+    // Among equal elements, the last one is chosen.
+    private static int floorIndex(int[] array, int key) {
+        int low = 0;
+        int high = array.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (array[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high;
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value)
+    throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable-length integer.");
+    }
+
+    private static void writeString(DataOutputStream out, String string)
+    throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
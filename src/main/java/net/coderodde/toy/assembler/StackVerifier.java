@@ -0,0 +1,302 @@
+package net.coderodde.toy.assembler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+/**
+ * This class implements a static verifier of the stack usage of an assembled
+ * program. Starting from the entry point at address zero, it follows the
+ * branches and the calls and computes the stack depth before each
+ * instruction. The program is verified if
+ * <ul>
+ *   <li>each instruction is reached with the same depth along all the
+ *       paths,</li>
+ *   <li>the stack never underflows,</li>
+ *   <li>each called routine returns at the depth it was entered at and is not
+ *       recursive, and</li>
+ *   <li>the program contains no {@code hcall}, as a host function may use the
+ *       stack arbitrarily.</li>
+ * </ul>
+ * The maximum depth of a routine is the largest of the depths within its body
+ * and, for each call, the depth at the call plus the return address plus the
+ * maximum depth of the callee. The verifier assumes that the program does not
+ * overwrite the return addresses through the memory operands.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 7, 2016)
+ */
+final class StackVerifier {
+
+    private static final int WORD_SIZE = 4;
+    private static final int ALL_REGISTERS_SIZE = 4 * WORD_SIZE;
+    // Marks a routine whose verification has started but not finished.
+    private static final int IN_PROGRESS = -2;
+    private static final int NO_TARGET = Integer.MIN_VALUE;
+
+    private final CodeBuffer code;
+    private final int codeLength;
+    private final Configuration configuration;
+    // Maps the entry address of each routine to its maximum depth.
+    private final Map<Integer, Integer> mapEntryToMaxDepth = new HashMap<>();
+    private String failureMessage;
+
+    /**
+     * The exception used for abandoning the verification. Being stackless, it
+     * is cheap to throw.
+     */
+    private static final class VerificationException extends RuntimeException {
+
+        VerificationException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Constructs a verifier of the code {@code code[0], ...,
+     * code[codeLength - 1]} whose labels are already resolved.
+     *
+     * @param code          the assembled image.
+     * @param codeLength    the length of the code at the start of the image.
+     * @param configuration the configuration the image was assembled with.
+     */
+    StackVerifier(CodeBuffer code,
+                  int codeLength,
+                  Configuration configuration) {
+        this.code = code;
+        this.codeLength = codeLength;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Verifies the program.
+     *
+     * @return the maximum stack depth in bytes, or
+     *         {@link ImageHeader#UNKNOWN_STACK_DEPTH} if the program cannot be
+     *         verified.
+     */
+    int verify() {
+        mapEntryToMaxDepth.clear();
+        failureMessage = null;
+
+        try {
+            return verifyRoutine(0, false);
+        } catch (VerificationException ex) {
+            failureMessage = ex.getMessage();
+            return ImageHeader.UNKNOWN_STACK_DEPTH;
+        }
+    }
+
+    /**
+     * Returns the reason the last verification failed.
+     *
+     * @return the failure message, or {@code null} if the program was
+     *         verified.
+     */
+    String getFailureMessage() {
+        return failureMessage;
+    }
+
+    // Returns the maximum depth of the routine at 'entry', not counting its
+    // return address. The main program is not a routine and must not return.
+    private int verifyRoutine(int entry, boolean isRoutine) {
+        if (isRoutine) {
+            Integer knownMaxDepth = mapEntryToMaxDepth.get(entry);
+
+            if (knownMaxDepth != null) {
+                if (knownMaxDepth == IN_PROGRESS) {
+                    throw new VerificationException(
+                            "The routine at address " + entry + " is " +
+                            "recursive.");
+                }
+
+                return knownMaxDepth;
+            }
+
+            mapEntryToMaxDepth.put(entry, IN_PROGRESS);
+        }
+
+        Map<Integer, Integer> mapAddressToDepth = new HashMap<>();
+        Deque<Integer> workList = new ArrayDeque<>();
+        visit(entry, 0, mapAddressToDepth, workList);
+        int maxDepth = 0;
+
+        while (!workList.isEmpty()) {
+            int address = workList.pop();
+            int depth = mapAddressToDepth.get(address);
+            byte opcode = configuration.decodeOpcode(code.get(address));
+            Instruction instruction = ToyVMDisassembler.getInstruction(opcode);
+
+            if (instruction == null) {
+                throw new VerificationException(
+                        "Unknown opcode at address " + address + ".");
+            }
+
+            int next = address + instruction.getInstructionLength();
+
+            if (next > codeLength) {
+                throw new VerificationException(
+                        "The instruction at address " + address + " runs " +
+                        "past the end of the code.");
+            }
+
+            int target = NO_TARGET;
+            boolean fallsThrough = true;
+
+            switch (opcode) {
+                case PUSH:
+                    depth += WORD_SIZE;
+                    break;
+
+                case PUSH_ALL:
+                    depth += ALL_REGISTERS_SIZE;
+                    break;
+
+                case PUSHA_PUSH:
+                    depth += ALL_REGISTERS_SIZE + WORD_SIZE;
+                    break;
+
+                case POP:
+                case INT:
+                    depth -= WORD_SIZE;
+                    break;
+
+                case POP_ALL:
+                    depth -= ALL_REGISTERS_SIZE;
+                    break;
+
+                case POP_POPA:
+                    depth -= WORD_SIZE + ALL_REGISTERS_SIZE;
+                    break;
+
+                case CALL:
+                    maxDepth = Math.max(maxDepth,
+                                        depth + WORD_SIZE + verifyRoutine(
+                                                readWord(address + 1),
+                                                true));
+                    break;
+
+                case CALL_SHORT:
+                    maxDepth = Math.max(maxDepth,
+                                        depth + WORD_SIZE + verifyRoutine(
+                                                next + code.get(address + 1),
+                                                true));
+                    break;
+
+                case PUSHA_PUSH_CALL:
+                    depth += ALL_REGISTERS_SIZE + WORD_SIZE;
+                    maxDepth = Math.max(maxDepth,
+                                        depth + WORD_SIZE + verifyRoutine(
+                                                readWord(address + 2),
+                                                true));
+                    break;
+
+                case RET:
+                    if (!isRoutine) {
+                        throw new VerificationException(
+                                "The 'ret' at address " + address + " is " +
+                                "not within a routine.");
+                    }
+
+                    if (depth != 0) {
+                        throw new VerificationException(
+                                "The routine returns at address " + address +
+                                " with " + depth + " bytes on the stack.");
+                    }
+
+                    fallsThrough = false;
+                    break;
+
+                case HALT:
+                    fallsThrough = false;
+                    break;
+
+                case HCALL:
+                    throw new VerificationException(
+                            "The host function called at address " +
+                            address + " may use the stack.");
+
+                case JMP:
+                    target = readWord(address + 1);
+                    fallsThrough = false;
+                    break;
+
+                case JMP_SHORT:
+                    target = next + code.get(address + 1);
+                    fallsThrough = false;
+                    break;
+
+                case JA:
+                case JE:
+                case JB:
+                    target = readWord(address + 1);
+                    break;
+
+                case JA_SHORT:
+                case JE_SHORT:
+                case JB_SHORT:
+                    target = next + code.get(address + 1);
+                    break;
+
+                case CMP_JA:
+                case CMP_JE:
+                case CMP_JB:
+                    target = readWord(address + 3);
+                    break;
+            }
+
+            if (depth < 0) {
+                throw new VerificationException(
+                        "The stack underflows at address " + address + ".");
+            }
+
+            maxDepth = Math.max(maxDepth, depth);
+
+            if (target != NO_TARGET) {
+                visit(target, depth, mapAddressToDepth, workList);
+            }
+
+            if (fallsThrough) {
+                visit(next, depth, mapAddressToDepth, workList);
+            }
+        }
+
+        if (isRoutine) {
+            mapEntryToMaxDepth.put(entry, maxDepth);
+        }
+
+        return maxDepth;
+    }
+
+    private void visit(int address,
+                       int depth,
+                       Map<Integer, Integer> mapAddressToDepth,
+                       Deque<Integer> workList) {
+        if (address < 0 || address >= codeLength) {
+            throw new VerificationException(
+                    "The control flows to the address " + address + " " +
+                    "outside of the code.");
+        }
+
+        Integer knownDepth = mapAddressToDepth.get(address);
+
+        if (knownDepth == null) {
+            mapAddressToDepth.put(address, depth);
+            workList.push(address);
+        } else if (knownDepth != depth) {
+            throw new VerificationException(
+                    "The stack depth at address " + address + " is both " +
+                    knownDepth + " and " + depth + " bytes.");
+        }
+    }
+
+    private int readWord(int address) {
+        int word = (code.get(address) & 0xff)
+                | ((code.get(address + 1) & 0xff) << 8)
+                | ((code.get(address + 2) & 0xff) << 16)
+                | ((code.get(address + 3) & 0xff) << 24);
+        return configuration.isBigEndian() ? Integer.reverseBytes(word) : word;
+    }
+}
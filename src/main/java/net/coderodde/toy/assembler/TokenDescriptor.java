@@ -10,7 +10,12 @@ public enum TokenDescriptor {
     REGISTER  (1),
     ADDRESS   (4),
     WORD_DATA (4),
-    BYTE_DATA (1);
+    BYTE_DATA (1),
+    DISPLACEMENT (1),
+    IMMEDIATE (4),
+    STACK_DISPLACEMENT (4),
+    BASE_REGISTER (1),
+    BASE_DISPLACEMENT (4);
     
     private final int bytes;
     
@@ -1,10 +1,19 @@
 package net.coderodde.toy.assembler;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * This class is responsible for assembling a ToyVM source file.
@@ -25,14 +34,44 @@ public class ToyVMAssembler {
     public static final byte DIV = 0x04;
     public static final byte MOD = 0x05;
 
+    // Immediate forms 'op regi #constant' storing 'regi op constant' in regi:
+    // the opcode is followed by regi and the constant.
+    public static final byte ADD_IMMEDIATE = 0x06;
+    public static final byte MUL_IMMEDIATE = 0x07;
+    public static final byte DIV_IMMEDIATE = 0x08;
+    public static final byte MOD_IMMEDIATE = 0x09;
+
     public static final byte CMP = 0x10;
     public static final byte JA  = 0x11;
     public static final byte JE  = 0x12;
     public static final byte JB  = 0x13;
     public static final byte JMP = 0x14;
 
+    // Short branch forms: the opcode is followed by a single signed byte 
+    // holding the displacement relative to the next instruction.
+    public static final byte JA_SHORT  = 0x15;
+    public static final byte JE_SHORT  = 0x16;
+    public static final byte JB_SHORT  = 0x17;
+    public static final byte JMP_SHORT = 0x18;
+
+    // Superinstructions fusing 'cmp regi regj' with the following conditional
+    // jump: the opcode is followed by two registers and the jump address.
+    public static final byte CMP_JA = 0x19;
+    public static final byte CMP_JE = 0x1a;
+    public static final byte CMP_JB = 0x1b;
+
+    // Compares regi against a constant: 'cmp regi #constant'.
+    public static final byte CMP_IMMEDIATE = 0x1c;
+
+    /**
+     * The prefix of the immediate operands.
+     */
+    public static final String IMMEDIATE_PREFIX = "#";
+
     public static final byte CALL = 0x20;
     public static final byte RET  = 0x21;
+    
+    public static final byte CALL_SHORT = 0x22;
 
     public static final byte LOAD   = 0x30;
     public static final byte STORE  = 0x31;
@@ -40,27 +79,99 @@ public class ToyVMAssembler {
     public static final byte RLOAD  = 0x33;
     public static final byte RSTORE = 0x34;
 
+    // Base-plus-displacement forms 'rload regi [base+displacement]' and
+    // 'rstore regi [base+displacement]'. With the stack pointer as the base,
+    // the opcode is followed by regi and the displacement; with a register as
+    // the base, by regi, the base register and the displacement.
+    public static final byte RLOAD_SP       = 0x36;
+    public static final byte RSTORE_SP      = 0x37;
+    public static final byte RLOAD_INDEXED  = 0x38;
+    public static final byte RSTORE_INDEXED = 0x39;
+
+    // Bulk memory instructions: 'memcpy regd regs regn' copies regn bytes
+    // from address regs to address regd, and 'memset regd regv regn' sets
+    // regn bytes at address regd to the lowest byte of regv.
+    public static final byte MEMCPY = 0x3a;
+    public static final byte MEMSET = 0x3b;
+
+    /**
+     * The name of the stack pointer as the base of a memory operand.
+     */
+    public static final String STACK_POINTER_NAME = "sp";
+    
+    // Fuses 'const regi constant' and 'add regi regj': the opcode is followed
+    // by regi, the constant and regj.
+    public static final byte CONST_ADD = 0x35;
+
     public static final byte HALT = 0x40;
     public static final byte INT  = 0x41;
     public static final byte NOP  = 0x42;
 
+    // Calls a host function: the opcode is followed by the number of the
+    // function in the host function registry.
+    public static final byte HCALL = 0x43;
+
     public static final byte PUSH     = 0x50;
     public static final byte PUSH_ALL = 0x51;
     public static final byte POP      = 0x52;
     public static final byte POP_ALL  = 0x53;
     public static final byte LSP      = 0x54;
+    
+    // Superinstructions for the calling sequence
+    // 'pusha', 'push regi', 'call address', 'pop regi', 'popa'.
+    public static final byte PUSHA_PUSH      = 0x55;
+    public static final byte PUSHA_PUSH_CALL = 0x56;
+    public static final byte POP_POPA        = 0x57;
 
     /**
      * Specifies the token starting a one-line comment.
      */
     private static final String COMMENT_START_TOKEN = "//";
+    
+    /**
+     * The number of bytes saved by encoding a branch in the short form.
+     */
+    private static final int SHORT_BRANCH_SAVING = 3;
+    
+    /**
+     * The length of a short branch instruction in bytes.
+     */
+    private static final int SHORT_BRANCH_LENGTH = 2;
+
+    /**
+     * The directives emitting data instead of instructions. The source-level
+     * passes rely on this set to tell the data lines from the code.
+     */
+    static final Set<String> DATA_MNEMONICS =
+            Collections.unmodifiableSet(
+                    new HashSet<>(Arrays.asList("word", "str", "words",
+                                                "bytes", "space", "incbin",
+                                                "reserve")));
+
+    /**
+     * Maps each mnemonic to the method assembling it. The table is immutable 
+     * and shared by all the assembler instances.
+     */
+    private static final Map<String, InstructionAssembler> 
+            mapOpcodeToAssembler = buildOpcodeMap();
 
-    private final List<String> sourceCodeLineList;
-    private final List<Byte> machineCode = new ArrayList<>();
+    /**
+     * Returns the names reserved for the mnemonics and the directives, which
+     * may be used neither as labels nor as data names.
+     * 
+     * @return the set of the mnemonics.
+     */
+    static Set<String> getMnemonics() {
+        return mapOpcodeToAssembler.keySet();
+    }
+
+    private List<String> sourceCodeLineList;
+    private CodeBuffer machineCode = new CodeBuffer();
+    // The buffer the relaxed code is built into. Swapped with 'machineCode'
+    // after the relaxation so that both keep their capacity on reset.
+    private CodeBuffer relaxedCode = new CodeBuffer();
     private final Map<Integer, String> mapAddressToLabel = new HashMap<>();
     private final Map<String, Integer> mapLabelToAddress = new HashMap<>();
-    private final Map<String, InstructionAssembler> mapOpcodeToAssembler 
-            = new HashMap<>();
 
     private final Map<String, Integer> mapWordNameToWordValue = new HashMap<>();
     private final Map<String, String> mapStringNameToStringValue 
@@ -69,72 +180,498 @@ public class ToyVMAssembler {
     private final Map<String, Integer> mapWordNameToAddress   = new HashMap<>();
     private final Map<String, Integer> mapStringNameToAddress = new HashMap<>();
 
+    // The blocks declared by 'words', 'bytes', 'space' and 'incbin' in the
+    // order of declaration.
+    private final Map<String, DataBlock> mapDataBlockNameToDataBlock
+            = new LinkedHashMap<>();
+    private final Map<String, Integer> mapDataBlockNameToAddress
+            = new HashMap<>();
+    // The total size of the reserved blocks.
+    private long reservedSize;
+    private boolean stackVerification;
+    private int maxStackDepth = ImageHeader.UNKNOWN_STACK_DEPTH;
+    private String stackVerificationFailure;
+
     private final Map<Integer, String> mapAddressToWordName = new HashMap<>();
     private final Map<Integer, String> mapAddressToStringName = new HashMap<>();
 
     private final Map<Integer, String> mapAddressToName = new HashMap<>();
 
     private final List<String> pendingLabels = new ArrayList<>();
-    private final String fileName;
+    
+    // Holds the addresses of all branch instructions that jump to a label and,
+    // thus, may be relaxed to the short form.
+    private final List<Integer> relaxableBranchList = new ArrayList<>();
+    private boolean branchRelaxation;
+    // Whether a branch or a call targets a numeric address, which would no
+    // longer hold the same instruction once the code in front of it shrinks.
+    private boolean hasNumericBranchTarget;
+    
+    private boolean superinstructions;
+    private boolean virtualRegisters;
+    private ExecutionProfile executionProfile;
+    private int inlineThreshold;
+    private HostFunctionRegistry hostFunctionRegistry =
+            HostFunctionRegistry.STANDARD;
+    
+    // The addresses at which the code of source lines starts and the 
+    // respective line numbers.
+    private final List<Integer> sourceMapAddressList = new ArrayList<>();
+    private final List<Integer> sourceMapLineList = new ArrayList<>();
+    private boolean sourceMapEnabled;
+    private SourceMap sourceMap;
+    // The address of the most recently emitted (possibly fused) instruction.
+    private int previousInstructionAddress = -1;
+    // The address of the instruction being currently assembled.
+    private int currentInstructionAddress;
+    // The largest address a label was bound to.
+    private int lastLabelAddress = -1;
+    private String fileName;
+    private final Configuration configuration;
     private int lineNumber = 1;
+    private String currentLine = "";
+    
+    /**
+     * The exception used for abandoning the assembly of an erroneous line in 
+     * the error collecting mode. Being stackless, it is cheap to throw.
+     */
+    private static final AssemblyException LINE_RECOVERY = 
+            new AssemblyException("Recovering from an assembly error.", false);
+    
+    private final List<Diagnostic> diagnosticList = new ArrayList<>();
+    private final List<Reference> referenceList = new ArrayList<>();
+    private int maxErrors;
+    private AssemblyStatistics statistics;
+    
+    // Describes a reference to a label or a data name in the error collecting
+    // mode.
+    private static final class Reference {
+        final String name;
+        final boolean isLabel;
+        final int lineNumber;
+        final int columnNumber;
+        
+        Reference(String name, 
+                  boolean isLabel, 
+                  int lineNumber, 
+                  int columnNumber) {
+            this.name = name;
+            this.isLabel = isLabel;
+            this.lineNumber = lineNumber;
+            this.columnNumber = columnNumber;
+        }
+    }
+
+    // Describes a block of data emitted after the strings. The content is
+    // either 'bytes', the file 'file' or 'length' zero bytes. A reserved block
+    // is not emitted but placed after the end of the image.
+    private static final class DataBlock {
+        final byte[] bytes;
+        final File file;
+        final int length;
+        final boolean reserved;
+
+        DataBlock(byte[] bytes, File file, int length) {
+            this(bytes, file, length, false);
+        }
+
+        DataBlock(byte[] bytes, File file, int length, boolean reserved) {
+            this.bytes = bytes;
+            this.file = file;
+            this.length = length;
+            this.reserved = reserved;
+        }
+    }
 
     @FunctionalInterface
     private interface InstructionAssembler {
-        void assemble(String line);
+        void assemble(ToyVMAssembler assembler, String line);
     }
 
     public ToyVMAssembler(String fileName, List<String> sourceCodeLineList) {
+        this(fileName, sourceCodeLineList, Configuration.DEFAULT);
+    }
+    
+    public ToyVMAssembler(String fileName, 
+                          List<String> sourceCodeLineList,
+                          Configuration configuration) {
         Objects.requireNonNull(sourceCodeLineList,
                                "The input source code line list is null.");
         Objects.requireNonNull(fileName, "The input file name is null.");
+        Objects.requireNonNull(configuration, "The configuration is null.");
 
         this.sourceCodeLineList  = sourceCodeLineList;
         this.fileName = fileName;
+        this.configuration = configuration;
+    }
+    
+    /**
+     * Prepares this assembler for assembling another program. All the state 
+     * of the previous assembly is cleared, yet the code buffers and the maps 
+     * keep their grown capacity so that assembling many small programs with 
+     * the same assembler allocates little. The options (branch relaxation, 
+     * superinstructions, virtual registers, source map, error limit and 
+     * statistics) are retained.
+     * 
+     * @param fileName           the name of the source file.
+     * @param sourceCodeLineList the source code lines.
+     */
+    public void reset(String fileName, List<String> sourceCodeLineList) {
+        Objects.requireNonNull(sourceCodeLineList,
+                               "The input source code line list is null.");
+        Objects.requireNonNull(fileName, "The input file name is null.");
 
-        buildOpcodeMap();
-    }
-
-    private void buildOpcodeMap() {
-        mapOpcodeToAssembler.put("add",    this::assembleAdd    );
-        mapOpcodeToAssembler.put("neg",    this::assembleNeg    );
-        mapOpcodeToAssembler.put("mul",    this::assembleMul    );
-        mapOpcodeToAssembler.put("div",    this::assembleDiv    );
-        mapOpcodeToAssembler.put("mod",    this::assembleMod    );
-        mapOpcodeToAssembler.put("cmp",    this::assembleCmp    );
-        mapOpcodeToAssembler.put("ja",     this::assembleJa     );
-        mapOpcodeToAssembler.put("je",     this::assembleJe     );
-        mapOpcodeToAssembler.put("jb",     this::assembleJb     );
-        mapOpcodeToAssembler.put("jmp",    this::assembleJmp    );
-        mapOpcodeToAssembler.put("call",   this::assembleCall   );
-        mapOpcodeToAssembler.put("ret",    this::assembleRet    );
-        mapOpcodeToAssembler.put("load",   this::assembleLoad   );
-        mapOpcodeToAssembler.put("store",  this::assembleStore  );
-        mapOpcodeToAssembler.put("const",  this::assembleConst  );
-        mapOpcodeToAssembler.put("rload",  this::assembleRload  );
-        mapOpcodeToAssembler.put("rstore", this::assembleRstore );
-        mapOpcodeToAssembler.put("halt",   this::assembleHalt   );
-        mapOpcodeToAssembler.put("int",    this::assembleInt    );
-        mapOpcodeToAssembler.put("nop",    this::assembleNop    );
-        mapOpcodeToAssembler.put("push",   this::assemblePush   );
-        mapOpcodeToAssembler.put("pusha",  this::assemblePushAll);
-        mapOpcodeToAssembler.put("pop",    this::assemblePop    );
-        mapOpcodeToAssembler.put("popa",   this::assemblePopAll );
-        mapOpcodeToAssembler.put("lsp",    this::assembleLsp    );
-        mapOpcodeToAssembler.put("word",   this::assembleWord   );
-        mapOpcodeToAssembler.put("str",    this::assembleString );
+        this.sourceCodeLineList = sourceCodeLineList;
+        this.fileName = fileName;
+        
+        machineCode.clear();
+        relaxedCode.clear();
+        mapAddressToLabel.clear();
+        mapLabelToAddress.clear();
+        mapWordNameToWordValue.clear();
+        mapStringNameToStringValue.clear();
+        mapWordNameToAddress.clear();
+        mapStringNameToAddress.clear();
+        mapDataBlockNameToDataBlock.clear();
+        mapDataBlockNameToAddress.clear();
+        reservedSize = 0L;
+        maxStackDepth = ImageHeader.UNKNOWN_STACK_DEPTH;
+        stackVerificationFailure = null;
+        mapAddressToWordName.clear();
+        mapAddressToStringName.clear();
+        mapAddressToName.clear();
+        pendingLabels.clear();
+        relaxableBranchList.clear();
+        hasNumericBranchTarget = false;
+        sourceMapAddressList.clear();
+        sourceMapLineList.clear();
+        sourceMap = null;
+        previousInstructionAddress = -1;
+        currentInstructionAddress = 0;
+        lastLabelAddress = -1;
+        lineNumber = 1;
+        currentLine = "";
+        diagnosticList.clear();
+        referenceList.clear();
     }
 
-    public byte[] assemble() {
-        for (String sourceCodeLine : sourceCodeLineList) {
-            assembleSourceCodeLine(sourceCodeLine);
-            lineNumber++;
+    private static Map<String, InstructionAssembler> buildOpcodeMap() {
+        Map<String, InstructionAssembler> mapOpcodeToAssembler = 
+                new HashMap<>();
+        
+        mapOpcodeToAssembler.put("add",    ToyVMAssembler::assembleAdd    );
+        mapOpcodeToAssembler.put("neg",    ToyVMAssembler::assembleNeg    );
+        mapOpcodeToAssembler.put("mul",    ToyVMAssembler::assembleMul    );
+        mapOpcodeToAssembler.put("div",    ToyVMAssembler::assembleDiv    );
+        mapOpcodeToAssembler.put("mod",    ToyVMAssembler::assembleMod    );
+        mapOpcodeToAssembler.put("cmp",    ToyVMAssembler::assembleCmp    );
+        mapOpcodeToAssembler.put("ja",     ToyVMAssembler::assembleJa     );
+        mapOpcodeToAssembler.put("je",     ToyVMAssembler::assembleJe     );
+        mapOpcodeToAssembler.put("jb",     ToyVMAssembler::assembleJb     );
+        mapOpcodeToAssembler.put("jmp",    ToyVMAssembler::assembleJmp    );
+        mapOpcodeToAssembler.put("call",   ToyVMAssembler::assembleCall   );
+        mapOpcodeToAssembler.put("ret",    ToyVMAssembler::assembleRet    );
+        mapOpcodeToAssembler.put("load",   ToyVMAssembler::assembleLoad   );
+        mapOpcodeToAssembler.put("store",  ToyVMAssembler::assembleStore  );
+        mapOpcodeToAssembler.put("const",  ToyVMAssembler::assembleConst  );
+        mapOpcodeToAssembler.put("rload",  ToyVMAssembler::assembleRload  );
+        mapOpcodeToAssembler.put("rstore", ToyVMAssembler::assembleRstore );
+        mapOpcodeToAssembler.put("memcpy", ToyVMAssembler::assembleMemcpy );
+        mapOpcodeToAssembler.put("memset", ToyVMAssembler::assembleMemset );
+        mapOpcodeToAssembler.put("halt",   ToyVMAssembler::assembleHalt   );
+        mapOpcodeToAssembler.put("int",    ToyVMAssembler::assembleInt    );
+        mapOpcodeToAssembler.put("nop",    ToyVMAssembler::assembleNop    );
+        mapOpcodeToAssembler.put("hcall",  ToyVMAssembler::assembleHcall  );
+        mapOpcodeToAssembler.put("push",   ToyVMAssembler::assemblePush   );
+        mapOpcodeToAssembler.put("pusha",  ToyVMAssembler::assemblePushAll);
+        mapOpcodeToAssembler.put("pop",    ToyVMAssembler::assemblePop    );
+        mapOpcodeToAssembler.put("popa",   ToyVMAssembler::assemblePopAll );
+        mapOpcodeToAssembler.put("lsp",    ToyVMAssembler::assembleLsp    );
+        mapOpcodeToAssembler.put("word",   ToyVMAssembler::assembleWord   );
+        mapOpcodeToAssembler.put("str",    ToyVMAssembler::assembleString );
+        mapOpcodeToAssembler.put("words",  ToyVMAssembler::assembleWords  );
+        mapOpcodeToAssembler.put("bytes",  ToyVMAssembler::assembleBytes  );
+        mapOpcodeToAssembler.put("space",  ToyVMAssembler::assembleSpace  );
+        mapOpcodeToAssembler.put("incbin", ToyVMAssembler::assembleIncbin );
+        mapOpcodeToAssembler.put("reserve", ToyVMAssembler::assembleReserve);
+        return Collections.unmodifiableMap(mapOpcodeToAssembler);
+    }
+
+    /**
+     * Enables or disables the branch relaxation. When enabled, each branch 
+     * (including {@code call}) to a label is encoded in the short form whenever
+     * the target is within the reach of a signed byte displacement. Note that
+     * the resulting image may be run only on a ToyVM that understands the short
+     * branch opcodes. Also, the absolute addresses written explicitly in the 
+     * source code are not adjusted as the code shrinks, so a source file with
+     * a branch or a call to a numeric address keeps all its branches long.
+     * 
+     * @param branchRelaxation whether to relax the branches.
+     */
+    public void setBranchRelaxation(boolean branchRelaxation) {
+        this.branchRelaxation = branchRelaxation;
+    }
+
+    /**
+     * Enables or disables the fusion of common instruction sequences into 
+     * superinstructions. The recognized sequences are {@code cmp} followed by
+     * {@code ja}, {@code je} or {@code jb}; {@code const regi} followed by 
+     * {@code add regi regj}; {@code pusha}, {@code push regi} and 
+     * {@code call}; and finally {@code pop regi} followed by {@code popa}. A 
+     * sequence is not fused if any of its instructions but the first one is 
+     * labelled. The resulting image may be run only on a ToyVM that 
+     * understands the superinstruction opcodes.
+     * 
+     * @param superinstructions whether to emit superinstructions.
+     */
+    public void setSuperinstructions(boolean superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    /**
+     * Enables or disables the virtual registers {@code v0}, {@code v1}, ... 
+     * When enabled, the virtual registers are mapped to the physical registers
+     * not referenced in the source code by {@link VirtualRegisterAllocator}.
+     * 
+     * @param virtualRegisters whether to allow virtual registers.
+     */
+    public void setVirtualRegisters(boolean virtualRegisters) {
+        this.virtualRegisters = virtualRegisters;
+    }
+
+    /**
+     * Sets the execution profile guiding the layout of the basic blocks. When
+     * set, {@link BlockReorderer} places the hot blocks so that they fall
+     * through to each other. The profile must come from an image assembled
+     * from the same source with the source map enabled.
+     * 
+     * @param executionProfile the execution profile, or {@code null} for the
+     *                         source order.
+     */
+    public void setExecutionProfile(ExecutionProfile executionProfile) {
+        this.executionProfile = executionProfile;
+    }
+
+    /**
+     * Sets the maximum number of instructions of a routine inlined at its call
+     * sites by {@link RoutineInliner}. If zero (the default), nothing is 
+     * inlined.
+     * 
+     * @param inlineThreshold the maximum size of an inlined routine.
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        if (inlineThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "The inline threshold is negative: " + 
+                    inlineThreshold + ".");
         }
+        
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Sets the registry resolving the names in {@code hcall name}. The image
+     * must be run with the same registry. The default is
+     * {@link HostFunctionRegistry#STANDARD}.
+     * 
+     * @param hostFunctionRegistry the host function registry.
+     */
+    public void setHostFunctionRegistry(
+            HostFunctionRegistry hostFunctionRegistry) {
+        this.hostFunctionRegistry = 
+                Objects.requireNonNull(hostFunctionRegistry,
+                                       "The host function registry is null.");
+    }
+
+    /**
+     * Enables or disables the stack verification. When enabled, the
+     * {@link StackVerifier} tries to prove a bound on the stack usage of the
+     * program, and a proven bound is written into the {@link ImageHeader}, so
+     * that {@link ToyVMInterpreter} may skip the stack checks. A program that
+     * cannot be verified is assembled as usual.
+     *
+     * @param stackVerification whether to verify the stack usage.
+     */
+    public void setStackVerification(boolean stackVerification) {
+        this.stackVerification = stackVerification;
+    }
+
+    /**
+     * Returns the maximum stack depth proven by the last {@link #assemble()}.
+     *
+     * @return the maximum stack depth in bytes, or
+     *         {@link ImageHeader#UNKNOWN_STACK_DEPTH}.
+     */
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
 
+    /**
+     * Returns the reason the stack verification of the last
+     * {@link #assemble()} failed.
+     *
+     * @return the failure message, or {@code null}.
+     */
+    public String getStackVerificationFailure() {
+        return stackVerificationFailure;
+    }
+
+    /**
+     * Enables or disables building the source map of the image.
+     * 
+     * @param sourceMapEnabled whether to build the source map.
+     */
+    public void setSourceMap(boolean sourceMapEnabled) {
+        this.sourceMapEnabled = sourceMapEnabled;
+    }
+
+    /**
+     * Returns the source map of the assembled image, or {@code null} if the 
+     * source map is not enabled. Meaningful only after {@link #assemble()}.
+     * 
+     * @return the source map.
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Sets the maximum number of errors to collect. If zero (the default), 
+     * the assembly stops at the first error. Otherwise, the assembler records
+     * each error as a {@link Diagnostic}, recovers at the next line and, at 
+     * the end, throws an {@link AssemblyException} listing all the collected
+     * errors. The assembly stops as soon as {@code maxErrors} errors are 
+     * collected.
+     * 
+     * @param maxErrors the maximum number of errors to collect.
+     */
+    public void setMaxErrors(int maxErrors) {
+        if (maxErrors < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum number of errors is negative: " + 
+                    maxErrors + ".");
+        }
+        
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Sets the statistics object to record the phase timings and the counts 
+     * into. If {@code null} (the default), nothing is measured.
+     * 
+     * @param statistics the statistics to record into, or {@code null}.
+     */
+    public void setStatistics(AssemblyStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public byte[] assemble() {
+        long time = startTiming();
+        List<String> lineList = sourceCodeLineList;
+        BlockReorderer reorderer = null;
+        
+        if (executionProfile != null) {
+            reorderer = new BlockReorderer(sourceCodeLineList, 
+                                           executionProfile);
+            lineList = reorderer.reorder();
+            time = endPhase(AssemblyStatistics.Phase.REORDER_BLOCKS, time);
+        }
+        
+        RoutineInliner inliner = null;
+        
+        if (inlineThreshold > 0) {
+            inliner = new RoutineInliner(lineList, inlineThreshold);
+            lineList = inliner.inline();
+            time = endPhase(AssemblyStatistics.Phase.INLINE_ROUTINES, time);
+        }
+        
+        VirtualRegisterAllocator allocator = null;
+        
+        if (virtualRegisters) {
+            allocator = new VirtualRegisterAllocator(fileName, lineList);
+            lineList = allocator.allocate();
+            time = endPhase(AssemblyStatistics.Phase.ALLOCATE_REGISTERS, time);
+        }
+        
+        for (int i = 0; i < lineList.size() && !isErrorLimitReached(); ++i) {
+            // Map the line back through the passes to the original source.
+            int index = allocator == null ? i : 
+                                            allocator.getLineNumber(i) - 1;
+            index = inliner == null ? index : 
+                                      inliner.getLineNumber(index) - 1;
+            lineNumber = reorderer == null ? index + 1 : 
+                                             reorderer.getLineNumber(index);
+            assembleSourceCodeLineRecovering(lineList.get(i));
+        }
+        
+        if (maxErrors > 0) {
+            checkReferences();
+            
+            if (!diagnosticList.isEmpty()) {
+                throw new AssemblyException(diagnosticList);
+            }
+        }
+        
+        time = endPhase(AssemblyStatistics.Phase.ENCODE, time);
+        relaxBranches();
+        
+        if (sourceMapEnabled) {
+            buildSourceMap();
+        }
+        
+        time = endPhase(AssemblyStatistics.Phase.RELAX_BRANCHES, time);
+        
+        if (statistics != null) {
+            statistics.setLabels(mapLabelToAddress.size());
+            statistics.setFixups(mapAddressToLabel.size() + 
+                                 mapAddressToWordName.size() + 
+                                 mapAddressToStringName.size() + 
+                                 mapAddressToName.size());
+        }
+        
+        int codeLength = machineCode.size();
         resolveWords();
+        time = endPhase(AssemblyStatistics.Phase.RESOLVE_WORDS, time);
         resolveStrings();
+        time = endPhase(AssemblyStatistics.Phase.RESOLVE_STRINGS, time);
+        resolveDataBlocks();
+        time = endPhase(AssemblyStatistics.Phase.RESOLVE_DATA_BLOCKS, time);
         resolveLabels(); 
+        time = endPhase(AssemblyStatistics.Phase.RESOLVE_LABELS, time);
         resolveReferences();
-        return convertMachineCodeToByteArray();
+        time = endPhase(AssemblyStatistics.Phase.RESOLVE_REFERENCES, time);
+        
+        if (stackVerification) {
+            StackVerifier verifier = 
+                    new StackVerifier(machineCode, codeLength, configuration);
+            maxStackDepth = verifier.verify();
+            stackVerificationFailure = verifier.getFailureMessage();
+        }
+        
+        byte[] code = convertMachineCodeToByteArray();
+        endPhase(AssemblyStatistics.Phase.CONVERT, time);
+        
+        if (statistics != null) {
+            statistics.setOutputBytes(code.length);
+        }
+        
+        return code;
+    }
+    
+    private long startTiming() {
+        return statistics == null ? 0L : System.nanoTime();
+    }
+    
+    // Attributes the time elapsed since 'startTime' to 'phase' and returns the
+    // start time of the next phase.
+    private long endPhase(AssemblyStatistics.Phase phase, long startTime) {
+        if (statistics == null) {
+            return 0L;
+        }
+        
+        long now = System.nanoTime();
+        statistics.addPhaseTime(phase, now - startTime);
+        return now;
     }
 
     private void resolveWords() {
@@ -165,6 +702,67 @@ public class ToyVMAssembler {
         }
     }
 
+    private void resolveDataBlocks() {
+        long reservedAddress = machineCode.size();
+
+        for (Map.Entry<String, DataBlock> entry :
+                mapDataBlockNameToDataBlock.entrySet()) {
+            if (entry.getValue().reserved) {
+                reservedAddress += entry.getValue().length;
+            }
+        }
+
+        if (reservedAddress > Integer.MAX_VALUE) {
+            throw new AssemblyException(
+                    "ERROR: The reserved blocks do not fit into the address " +
+                    "space.");
+        }
+
+        for (Map.Entry<String, DataBlock> entry :
+                mapDataBlockNameToDataBlock.entrySet()) {
+            DataBlock dataBlock = entry.getValue();
+
+            if (dataBlock.reserved) {
+                continue;
+            }
+
+            mapDataBlockNameToAddress.put(entry.getKey(), machineCode.size());
+
+            if (dataBlock.bytes != null) {
+                machineCode.append(dataBlock.bytes);
+            } else if (dataBlock.file != null) {
+                emitFile(dataBlock.file, dataBlock.length);
+            } else {
+                machineCode.appendZeros(dataBlock.length);
+            }
+        }
+
+        // The reserved blocks follow the image in the declaration order.
+        reservedAddress = machineCode.size();
+
+        for (Map.Entry<String, DataBlock> entry :
+                mapDataBlockNameToDataBlock.entrySet()) {
+            if (entry.getValue().reserved) {
+                mapDataBlockNameToAddress.put(entry.getKey(),
+                                              (int) reservedAddress);
+                reservedAddress += entry.getValue().length;
+            }
+        }
+
+        reservedSize = reservedAddress - machineCode.size();
+    }
+
+    private void emitFile(File file, int length) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            machineCode.append(channel, length);
+        } catch (IOException ex) {
+            throw new AssemblyException(
+                    "ERROR: Cannot include the file \"" + file.getPath() +
+                    "\": " + ex.getMessage());
+        }
+    }
+
     // Resolves all symbolical references (labels).
     private void resolveLabels() {
         for (Map.Entry<Integer, String> entry : mapAddressToLabel.entrySet()) {
@@ -188,6 +786,8 @@ public class ToyVMAssembler {
                 setAddress(entry.getKey(), mapStringNameToAddress.get(name));
             } else if (mapWordNameToAddress.containsKey(name)) {
                 setAddress(entry.getKey(), mapWordNameToAddress.get(name));
+            } else if (mapDataBlockNameToAddress.containsKey(name)) {
+                setAddress(entry.getKey(), mapDataBlockNameToAddress.get(name));
             } else {
                 throw new AssemblyException(
                         errorHeader() +
@@ -196,6 +796,314 @@ public class ToyVMAssembler {
         }
     }
 
+    private void buildSourceMap() {
+        int[] entryAddresses = new int[sourceMapAddressList.size()];
+        int[] entryLines = new int[sourceMapLineList.size()];
+
+        for (int i = 0; i < entryAddresses.length; ++i) {
+            entryAddresses[i] = sourceMapAddressList.get(i);
+            entryLines[i] = sourceMapLineList.get(i);
+        }
+
+        sourceMap = new SourceMap(fileName, 
+                                  machineCode.size(),
+                                  entryAddresses,
+                                  entryLines, 
+                                  mapLabelToAddress);
+    }
+
+    /**
+     * Returns the map from each label to its address in the assembled image.
+     * Meaningful only after {@link #assemble()}.
+     * 
+     * @return the read-only label map.
+     */
+    public Map<String, Integer> getLabelMap() {
+        return Collections.unmodifiableMap(mapLabelToAddress);
+    }
+
+    // Iteratively chooses the shortest encoding for each branch to a label. We
+    // start by assuming that all the branches are short and expand each branch
+    // whose target is out of reach until no more branches need expansion.
+    // Since the expansions only grow distances, the process terminates.
+    private void relaxBranches() {
+        int branches = relaxableBranchList.size();
+
+        if (branches == 0 || hasNumericBranchTarget) {
+            return;
+        }
+
+        int[] branchAddresses = new int[branches];
+        int[] targetAddresses = new int[branches];
+        boolean[] isLong = new boolean[branches];
+
+        for (int i = 0; i < branches; ++i) {
+            branchAddresses[i] = relaxableBranchList.get(i);
+            Integer targetAddress = mapLabelToAddress.get(
+                    mapAddressToLabel.get(branchAddresses[i] + 1));
+
+            if (targetAddress == null) {
+                // Leave the undefined labels to 'resolveLabels()'.
+                isLong[i] = true;
+            } else {
+                targetAddresses[i] = targetAddress;
+            }
+        }
+
+        int[] shortBranchesBefore = new int[branches + 1];
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            countShortBranches(isLong, shortBranchesBefore);
+
+            for (int i = 0; i < branches; ++i) {
+                if (isLong[i]) {
+                    continue;
+                }
+
+                int nextInstructionAddress = 
+                        relocate(branchAddresses[i], 
+                                 branchAddresses, 
+                                 shortBranchesBefore) + SHORT_BRANCH_LENGTH;
+                int displacement = relocate(targetAddresses[i],
+                                            branchAddresses,
+                                            shortBranchesBefore) 
+                                 - nextInstructionAddress;
+
+                if (displacement < Byte.MIN_VALUE 
+                        || displacement > Byte.MAX_VALUE) {
+                    isLong[i] = true;
+                    changed = true;
+                }
+            }
+        }
+
+        countShortBranches(isLong, shortBranchesBefore);
+        
+        if (shortBranchesBefore[branches] == 0) {
+            return;
+        }
+
+        relaxedCode.clear();
+        int address = 0;
+
+        for (int i = 0; i < branches; ++i) {
+            if (isLong[i]) {
+                continue;
+            }
+
+            relaxedCode.append(machineCode, address, branchAddresses[i]);
+            int nextInstructionAddress = relaxedCode.size() 
+                                       + SHORT_BRANCH_LENGTH;
+            int displacement = relocate(targetAddresses[i],
+                                        branchAddresses, 
+                                        shortBranchesBefore)
+                             - nextInstructionAddress;
+
+            byte opcode = configuration.decodeOpcode(
+                    machineCode.get(branchAddresses[i]));
+            relaxedCode.add(
+                    configuration.encodeOpcode(toShortBranchOpcode(opcode)));
+            relaxedCode.add((byte) displacement);
+            mapAddressToLabel.remove(branchAddresses[i] + 1);
+            address = branchAddresses[i] + 1 + 
+                      TokenDescriptor.ADDRESS.getLengthInBytes();
+        }
+
+        relaxedCode.append(machineCode, address, machineCode.size());
+        CodeBuffer swap = machineCode;
+        machineCode = relaxedCode;
+        relaxedCode = swap;
+
+        for (Map.Entry<String, Integer> entry : mapLabelToAddress.entrySet()) {
+            entry.setValue(relocate(entry.getValue(),
+                                    branchAddresses,
+                                    shortBranchesBefore));
+        }
+
+        relocateKeys(mapAddressToLabel, branchAddresses, shortBranchesBefore);
+        relocateKeys(mapAddressToWordName, 
+                     branchAddresses, 
+                     shortBranchesBefore);
+        relocateKeys(mapAddressToStringName, 
+                     branchAddresses, 
+                     shortBranchesBefore);
+        relocateKeys(mapAddressToName, branchAddresses, shortBranchesBefore);
+
+        for (int i = 0; i < sourceMapAddressList.size(); ++i) {
+            sourceMapAddressList.set(i, relocate(sourceMapAddressList.get(i),
+                                                 branchAddresses,
+                                                 shortBranchesBefore));
+        }
+    }
+
+    private static void countShortBranches(boolean[] isLong, 
+                                           int[] shortBranchesBefore) {
+        for (int i = 0; i < isLong.length; ++i) {
+            shortBranchesBefore[i + 1] = shortBranchesBefore[i] +
+                                         (isLong[i] ? 0 : 1);
+        }
+    }
+
+    // Maps an address in the unrelaxed code to the address in the relaxed 
+    // code.
+    private static int relocate(int address,
+                                int[] branchAddresses,
+                                int[] shortBranchesBefore) {
+        // Find the number of branches strictly before 'address'.
+        int index = Arrays.binarySearch(branchAddresses, address);
+
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        return address - SHORT_BRANCH_SAVING * shortBranchesBefore[index];
+    }
+
+    private static void relocateKeys(Map<Integer, String> map,
+                                     int[] branchAddresses,
+                                     int[] shortBranchesBefore) {
+        Map<Integer, String> relocatedMap = new HashMap<>(map.size());
+
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            relocatedMap.put(relocate(entry.getKey(),
+                                      branchAddresses,
+                                      shortBranchesBefore), 
+                             entry.getValue());
+        }
+
+        map.clear();
+        map.putAll(relocatedMap);
+    }
+
+    private static byte toShortBranchOpcode(byte opcode) {
+        switch (opcode) {
+            case JA:
+                return JA_SHORT;
+
+            case JE:
+                return JE_SHORT;
+
+            case JB:
+                return JB_SHORT;
+
+            case JMP:
+                return JMP_SHORT;
+
+            case CALL:
+                return CALL_SHORT;
+
+            default:
+                throw new IllegalStateException(
+                        "Not a relaxable branch opcode: " + opcode);
+        }
+    }
+
+    private void assembleSourceCodeLineRecovering(String line) {
+        currentLine = line;
+        
+        if (statistics != null) {
+            statistics.countLine();
+        }
+        
+        if (maxErrors == 0) {
+            assembleSourceCodeLine(line);
+            return;
+        }
+        
+        try {
+            assembleSourceCodeLine(line);
+        } catch (AssemblyException ex) {
+            if (ex != LINE_RECOVERY) {
+                throw ex;
+            }
+            
+            // The error is recorded, and the label of the line is lost.
+            pendingLabels.clear();
+        }
+    }
+    
+    private boolean isErrorLimitReached() {
+        return maxErrors > 0 && diagnosticList.size() >= maxErrors;
+    }
+    
+    // Reports all the undefined labels and names referenced in the source.
+    private void checkReferences() {
+        for (Reference reference : referenceList) {
+            if (isErrorLimitReached()) {
+                return;
+            }
+            
+            if (reference.isLabel) {
+                if (!mapLabelToAddress.containsKey(reference.name)) {
+                    diagnosticList.add(new Diagnostic(
+                            fileName, 
+                            reference.lineNumber, 
+                            reference.columnNumber,
+                            "Label \"" + reference.name + 
+                            "\" is not defined."));
+                }
+            } else if (!mapWordNameToWordValue.containsKey(reference.name) 
+                    && !mapStringNameToStringValue
+                        .containsKey(reference.name)
+                    && !mapDataBlockNameToDataBlock
+                        .containsKey(reference.name)) {
+                diagnosticList.add(new Diagnostic(
+                        fileName,
+                        reference.lineNumber,
+                        reference.columnNumber,
+                        "\"" + reference.name + "\" is not declared."));
+            }
+        }
+    }
+    
+    private void recordReference(String name, boolean isLabel) {
+        if (maxErrors > 0) {
+            referenceList.add(new Reference(name, 
+                                            isLabel, 
+                                            lineNumber, 
+                                            computeColumnNumber(name)));
+        }
+    }
+    
+    // Returns the error to throw. In the error collecting mode, the error is 
+    // recorded and the shared stackless exception is returned for unwinding 
+    // to the next line.
+    private AssemblyException error(String message) {
+        return error(message, null);
+    }
+    
+    private AssemblyException error(String message, String token) {
+        if (maxErrors == 0) {
+            return new AssemblyException(errorHeader() + message);
+        }
+        
+        diagnosticList.add(new Diagnostic(fileName,
+                                          lineNumber, 
+                                          computeColumnNumber(token),
+                                          message));
+        return LINE_RECOVERY;
+    }
+    
+    // Returns the one-based column of 'token' in the current line, or the 
+    // column of the first non-whitespace character if 'token' is null or not
+    // found.
+    private int computeColumnNumber(String token) {
+        int index = token == null ? -1 : currentLine.indexOf(token);
+        
+        if (index == -1) {
+            index = 0;
+            
+            while (index < currentLine.length() 
+                    && Character.isWhitespace(currentLine.charAt(index))) {
+                index++;
+            }
+        }
+        
+        return index + 1;
+    }
+
     private void assembleSourceCodeLine(String line) {
         // Prune the possible comment.
         line = line.split(COMMENT_START_TOKEN)[0].trim();
@@ -218,49 +1126,91 @@ public class ToyVMAssembler {
         // Resolve all preceding labels.
         pendingLabels.stream().forEach((label) -> {
             mapLabelToAddress.put(label, machineCode.size());
+            lastLabelAddress = machineCode.size();
         });
 
         pendingLabels.clear();
 
         // Switch to assembing the actual instruction.
+        String mnemonic = toTokens(actualLine)[0];
         InstructionAssembler instructionAssembler = 
-                mapOpcodeToAssembler.get(toTokens(actualLine)[0]);
+                mapOpcodeToAssembler.get(mnemonic);
 
         if (instructionAssembler == null) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "Unknown instruction \"" + actualLine + "\".");
         }
+        
+        if (statistics != null) {
+            if (DATA_MNEMONICS.contains(mnemonic)) {
+                statistics.countDirective();
+            } else {
+                statistics.countInstruction(mnemonic);
+            }
+        }
+
+        int codeSizeBefore = machineCode.size();
+        currentInstructionAddress = codeSizeBefore;
+        instructionAssembler.assemble(this, actualLine);
+
+        if (machineCode.size() != codeSizeBefore) {
+            previousInstructionAddress = currentInstructionAddress;
+            
+            // A fused instruction is attributed to the line of its first
+            // constituent.
+            if (sourceMapEnabled 
+                    && currentInstructionAddress == codeSizeBefore) {
+                sourceMapAddressList.add(codeSizeBefore);
+                sourceMapLineList.add(lineNumber);
+            }
+        }
+    }
+
+    private boolean canFuseWithPreviousInstruction(byte previousOpcode) {
+        return superinstructions
+                && previousInstructionAddress >= 0
+                && lastLabelAddress != machineCode.size()
+                && machineCode.get(previousInstructionAddress) 
+                   == configuration.encodeOpcode(previousOpcode);
+    }
+
+    // Attempts to fuse the instruction being assembled with the previous one.
+    // On success, the opcode of the previous instruction is replaced with 
+    // 'fusedOpcode' and the caller must emit only the operands of the current
+    // instruction.
+    private boolean fuseWithPreviousInstruction(byte previousOpcode, 
+                                                byte fusedOpcode) {
+        if (!canFuseWithPreviousInstruction(previousOpcode)) {
+            return false;
+        }
 
-        instructionAssembler.assemble(actualLine);
+        machineCode.set(previousInstructionAddress, 
+                        configuration.encodeOpcode(fusedOpcode));
+        currentInstructionAddress = previousInstructionAddress;
+        return true;
     }
 
     private void emitRegister(String registerToken) {
-        switch (registerToken) {
-            case "reg1":
-                machineCode.add(REG1);
-                return;
-
-            case "reg2":
-                machineCode.add(REG2);
-                return;
-
-            case "reg3":
-                machineCode.add(REG3);
-                return;
-
-            case "reg4":
-                machineCode.add(REG4);
-                return;
+        machineCode.add(toRegisterCode(registerToken));
+    }
 
-            default:
-                throw new AssemblyException(
-                        errorHeader() +
-                        "Unknown register token: \"" + registerToken + "\".");
+    private byte toRegisterCode(String registerToken) {
+        int registerCode = configuration.getRegisterCode(registerToken);
+        
+        if (registerCode < 0) {
+            throw error(
+                    "Unknown register token: \"" + registerToken + "\".",
+                    registerToken);
         }
+        
+        return (byte) registerCode;
     }
 
     private void emitAddress(int address) {
+        if (configuration.isBigEndian()) {
+            address = Integer.reverseBytes(address);
+        }
+        
         machineCode.add((byte) (address & 0xff));
         machineCode.add((byte)((address >>>= 8) & 0xff));
         machineCode.add((byte)((address >>>= 8) & 0xff));
@@ -276,9 +1226,8 @@ public class ToyVMAssembler {
     }
 
     private void emitString(String string) {
-        for (char c : string.toCharArray()) {
-            // We support only ANSI.
-            machineCode.add((byte) c);
+        for (byte b : string.getBytes(configuration.getCharset())) {
+            machineCode.add(b);
         }
 
         // Zero-terminate the string.
@@ -286,10 +1235,33 @@ public class ToyVMAssembler {
     }
 
     private void emitOpcode(byte opcode) {
-        machineCode.add(opcode);
+        machineCode.add(configuration.encodeOpcode(opcode));
+    }
+
+    // Emits the target of a branch instruction whose opcode is already 
+    // emitted.
+    private void emitBranchTarget(String token, boolean relaxable) {
+        long value = IntegerLiteralParser.parse(token);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            hasNumericBranchTarget = true;
+            emitAddress((int) value);
+        } else {
+            if (branchRelaxation && relaxable) {
+                relaxableBranchList.add(machineCode.size() - 1);
+            }
+
+            mapAddressToLabel.put(machineCode.size(), token);
+            recordReference(token, true);
+            emitAddress(0);
+        }
     }
 
     private void setAddress(int index, int address) {
+        if (configuration.isBigEndian()) {
+            address = Integer.reverseBytes(address);
+        }
+        
         machineCode.set(index, (byte)(address & 0xff));
         machineCode.set(index + 1, (byte)((address >>>= 8) & 0xff));
         machineCode.set(index + 2, (byte)((address >>>= 8) & 0xff));
@@ -300,10 +1272,21 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'add' instruction requires exactly three tokens: " +
-                    "\"add regi regj\"");
+                    "\"add regi regj\" or \"add regi #constant\"");
+        }
+
+        if (assembleImmediateForm(tokens, ADD_IMMEDIATE)) {
+            return;
+        }
+
+        if (canFuseWithPreviousInstruction(CONST)
+                && machineCode.get(previousInstructionAddress + 1) 
+                   == toRegisterCode(tokens[1])) {
+            fuseWithPreviousInstruction(CONST, CONST_ADD);
+            emitRegister(tokens[2]);
+            return;
         }
 
         emitOpcode(ADD);
@@ -311,12 +1294,36 @@ public class ToyVMAssembler {
         emitRegister(tokens[2]);
     }
 
+    // Assembles 'op regi #constant' if the last operand is an immediate one.
+    private boolean assembleImmediateForm(String[] tokens, byte opcode) {
+        String operand = tokens[2];
+
+        if (!operand.startsWith(IMMEDIATE_PREFIX)) {
+            return false;
+        }
+
+        long value = IntegerLiteralParser.parse(operand,
+                                                IMMEDIATE_PREFIX.length(),
+                                                operand.length());
+
+        if (value == IntegerLiteralParser.NOT_AN_INTEGER) {
+            throw error(
+                    "The immediate operand is not a valid integer " +
+                    "literal: \"" + operand + "\".",
+                    operand);
+        }
+
+        emitOpcode(opcode);
+        emitRegister(tokens[1]);
+        emitData((int) value);
+        return true;
+    }
+
     private void assembleNeg(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'neg' instruction requires exactly two tokens: " +
                     "\"neg regi\"");
         }
@@ -329,10 +1336,13 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'mul' instruction requires exactly three tokens: " +
-                    "\"mul regi regj\"");
+                    "\"mul regi regj\" or \"mul regi #constant\"");
+        }
+
+        if (assembleImmediateForm(tokens, MUL_IMMEDIATE)) {
+            return;
         }
 
         emitOpcode(MUL);
@@ -344,10 +1354,13 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'div' instruction requires exactly three tokens: " +
-                    "\"div regi regj\"");
+                    "\"div regi regj\" or \"div regi #constant\"");
+        }
+
+        if (assembleImmediateForm(tokens, DIV_IMMEDIATE)) {
+            return;
         }
 
         emitOpcode(DIV);
@@ -359,10 +1372,13 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'mod' instruction requires exactly three tokens: " +
-                    "\"mod regi regj\"");
+                    "\"mod regi regj\" or \"mod regi #constant\"");
+        }
+
+        if (assembleImmediateForm(tokens, MOD_IMMEDIATE)) {
+            return;
         }
 
         emitOpcode(MOD);
@@ -374,10 +1390,13 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'cmp' instruction requires exactly three tokens: " +
-                    "\"cmp regi regj\"");
+                    "\"cmp regi regj\" or \"cmp regi #constant\"");
+        }
+
+        if (assembleImmediateForm(tokens, CMP_IMMEDIATE)) {
+            return;
         }
 
         emitOpcode(CMP);
@@ -389,118 +1408,92 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'ja' instruction requires exactly two tokens: " +
                     "\"ja label\" or \"ja address\"");
         }
 
-        emitOpcode(JA);
-
-        if (isHexInteger(tokens[1])) {
-            emitAddress(hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitAddress(toInteger(tokens[1]));
-        } else {
-            mapAddressToLabel.put(machineCode.size(), tokens[1]);
-            emitAddress(0);
+        if (fuseWithPreviousInstruction(CMP, CMP_JA)) {
+            emitBranchTarget(tokens[1], false);
+            return;
         }
+
+        emitOpcode(JA);
+        emitBranchTarget(tokens[1], true);
     }
 
     private void assembleJe(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'je' instruction requires exactly two tokens: " +
                     "\"je label\" or \"je address\"");
         }
 
-        emitOpcode(JE);
-
-        if (isHexInteger(tokens[1])) {
-            emitAddress(hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitAddress(toInteger(tokens[1]));
-        } else {
-            mapAddressToLabel.put(machineCode.size(), tokens[1]);
-            emitAddress(0);
+        if (fuseWithPreviousInstruction(CMP, CMP_JE)) {
+            emitBranchTarget(tokens[1], false);
+            return;
         }
+
+        emitOpcode(JE);
+        emitBranchTarget(tokens[1], true);
     }
 
     private void assembleJb(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'jb' instruction requires exactly two tokens: " +
                     "\"jb label\" or \"jb address\"");
         }
 
-        emitOpcode(JB);
-
-        if (isHexInteger(tokens[1])) {
-            emitAddress(hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitAddress(toInteger(tokens[1]));
-        } else {
-            mapAddressToLabel.put(machineCode.size(), tokens[1]);
-            emitAddress(0);
+        if (fuseWithPreviousInstruction(CMP, CMP_JB)) {
+            emitBranchTarget(tokens[1], false);
+            return;
         }
+
+        emitOpcode(JB);
+        emitBranchTarget(tokens[1], true);
     }
 
     private void assembleJmp(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'jmp' instructoin requires exactly two tokens: " +
                     "\"jmp label\" or \"jmp address\"");
         }
 
         emitOpcode(JMP);
-
-        if (isHexInteger(tokens[1])) {
-            emitAddress(hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitAddress(toInteger(tokens[1]));
-        } else {
-            mapAddressToLabel.put(machineCode.size(), tokens[1]);
-            emitAddress(0);
-        }
+        emitBranchTarget(tokens[1], true);
     }
 
     private void assembleCall(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'call' instruction requires exactly two tokens: " +
                     "\"call label\" or \"call address\"");
         }
 
-        emitOpcode(CALL);
-
-        if (isHexInteger(tokens[1])) {
-            emitAddress(hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitAddress(toInteger(tokens[1]));
-        } else {
-            mapAddressToLabel.put(machineCode.size(), tokens[1]);
-            emitAddress(0);
+        if (fuseWithPreviousInstruction(PUSHA_PUSH, PUSHA_PUSH_CALL)) {
+            emitBranchTarget(tokens[1], false);
+            return;
         }
+
+        emitOpcode(CALL);
+        emitBranchTarget(tokens[1], true);
     }
 
     private void assembleRet(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 1) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'ret' instruction must not have any arguments.");
         }
 
@@ -511,8 +1504,7 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'load' instruction requires exactly three tokens: " +
                     "\"load regi address\" or \"load regi label\"");
         }
@@ -520,12 +1512,13 @@ public class ToyVMAssembler {
         emitOpcode(LOAD);
         emitRegister(tokens[1]);
 
-        if (isHexInteger(tokens[2])) {
-            emitAddress(hexStringToInteger(tokens[2]));
-        } else if (isInteger(tokens[2])) {
-            emitAddress(toInteger(tokens[2]));
+        long value = IntegerLiteralParser.parse(tokens[2]);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            emitAddress((int) value);
         } else {
             mapAddressToName.put(machineCode.size(), tokens[2]);
+            recordReference(tokens[2], false);
             emitAddress(0);
         }
     }
@@ -534,8 +1527,7 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'store' instruction requires exactly three tokens: " +
                     "\"store regi address\" or \"store regi label\"");
         }
@@ -543,12 +1535,13 @@ public class ToyVMAssembler {
         emitOpcode(STORE);
         emitRegister(tokens[1]);
 
-        if (isHexInteger(tokens[2])) {
-            emitAddress(hexStringToInteger(tokens[2]));
-        } else if (isInteger(tokens[2])) {
-            emitAddress(toInteger(tokens[2]));
+        long value = IntegerLiteralParser.parse(tokens[2]);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            emitAddress((int) value);
         } else {
             mapAddressToName.put(machineCode.size(), tokens[2]);
+            recordReference(tokens[2], false);
             emitAddress(0);
         }
     }
@@ -557,8 +1550,7 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'const' instruction requires exactly three tokens: " +
                     "\"cosnt regi constant\"");
         }
@@ -566,12 +1558,13 @@ public class ToyVMAssembler {
         emitOpcode(CONST);
         emitRegister(tokens[1]);
 
-        if (isHexInteger(tokens[2])) {
-            emitData(hexStringToInteger(tokens[2]));
-        } else if (isInteger(tokens[2])) {
-            emitData(toInteger(tokens[2]));
+        long value = IntegerLiteralParser.parse(tokens[2]);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            emitData((int) value);
         } else {
             mapAddressToName.put(machineCode.size(), tokens[2]);
+            recordReference(tokens[2], false);
             emitAddress(0);
         }
     }
@@ -580,10 +1573,15 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
         
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'rload' instruction requires exactly three tokens: " +
-                    "\"rload regi regj\"");
+                    "\"rload regi regj\" or " +
+                    "\"rload regi [base+displacement]\"");
+        }
+
+        if (tokens[2].startsWith("[")) {
+            assembleMemoryOperandForm(tokens, RLOAD_SP, RLOAD_INDEXED);
+            return;
         }
         
         emitOpcode(RLOAD);
@@ -595,10 +1593,15 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
         
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'rstore' instruction requires exactly three tokens: " +
-                    "\"rstore regi regj\"");
+                    "\"rstore regi regj\" or " +
+                    "\"rstore regi [base+displacement]\"");
+        }
+
+        if (tokens[2].startsWith("[")) {
+            assembleMemoryOperandForm(tokens, RSTORE_SP, RSTORE_INDEXED);
+            return;
         }
         
         emitOpcode(RSTORE);
@@ -606,12 +1609,91 @@ public class ToyVMAssembler {
         emitRegister(tokens[2]);
     }
     
+    // Assembles 'op regi [base+displacement]', where the base is a register
+    // or the stack pointer, and the displacement may be omitted.
+    private void assembleMemoryOperandForm(String[] tokens,
+                                           byte stackPointerOpcode,
+                                           byte indexedOpcode) {
+        String operand = tokens[2];
+        int end = operand.length() - 1;
+
+        if (end < 2 || operand.charAt(end) != ']') {
+            throw error("Malformed memory operand: \"" + operand + "\".",
+                        operand);
+        }
+
+        int baseEnd = 1;
+
+        while (baseEnd < end
+                && operand.charAt(baseEnd) != '+'
+                && operand.charAt(baseEnd) != '-') {
+            baseEnd++;
+        }
+
+        String base = operand.substring(1, baseEnd);
+        int displacement = 0;
+
+        if (baseEnd < end) {
+            long value = IntegerLiteralParser.parse(operand, baseEnd + 1, end);
+
+            if (value == IntegerLiteralParser.NOT_AN_INTEGER) {
+                throw error(
+                        "The displacement is not a valid integer literal: " +
+                        "\"" + operand + "\".",
+                        operand);
+            }
+
+            displacement = operand.charAt(baseEnd) == '-' ? -(int) value :
+                                                            (int) value;
+        }
+
+        if (base.equals(STACK_POINTER_NAME)) {
+            emitOpcode(stackPointerOpcode);
+            emitRegister(tokens[1]);
+        } else {
+            emitOpcode(indexedOpcode);
+            emitRegister(tokens[1]);
+            emitRegister(base);
+        }
+
+        emitData(displacement);
+    }
+
+    private void assembleMemcpy(String line) {
+        String[] tokens = toTokens(line);
+
+        if (tokens.length != 4) {
+            throw error(
+                    "The 'memcpy' instruction requires exactly four tokens: " +
+                    "\"memcpy regd regs regn\"");
+        }
+
+        emitOpcode(MEMCPY);
+        emitRegister(tokens[1]);
+        emitRegister(tokens[2]);
+        emitRegister(tokens[3]);
+    }
+
+    private void assembleMemset(String line) {
+        String[] tokens = toTokens(line);
+
+        if (tokens.length != 4) {
+            throw error(
+                    "The 'memset' instruction requires exactly four tokens: " +
+                    "\"memset regd regv regn\"");
+        }
+
+        emitOpcode(MEMSET);
+        emitRegister(tokens[1]);
+        emitRegister(tokens[2]);
+        emitRegister(tokens[3]);
+    }
+
     private void assembleHalt(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 1) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'halt' instruction must not have any arguments.");
         }
 
@@ -622,31 +1704,53 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'int' instruction requires exactly two tokens: " +
                     "\"int interrupt_number\"");
         }
 
         emitOpcode(INT);
 
-        if (isHexInteger(tokens[1])) {
-            emitByte((byte) hexStringToInteger(tokens[1]));
-        } else if (isInteger(tokens[1])) {
-            emitByte((byte) toInteger(tokens[1]));
+        long value = IntegerLiteralParser.parse(tokens[1]);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            emitByte((byte) value);
         } else {
-            throw new AssemblyException(
-                    "The interrupt number is not a valid decimal or " +
-                    "hexadecimal integer: \"" + tokens[1] + "\".");
+            throw error(
+                    "The interrupt number is not a valid integer " +
+                    "literal: \"" + tokens[1] + "\".");
+        }
+    }
+
+    private void assembleHcall(String line) {
+        String[] tokens = toTokens(line);
+
+        if (tokens.length != 2) {
+            throw error(
+                    "The 'hcall' instruction requires exactly two tokens: " +
+                    "\"hcall function_name\"");
+        }
+
+        long value = IntegerLiteralParser.parse(tokens[1]);
+
+        if (value == IntegerLiteralParser.NOT_AN_INTEGER) {
+            value = hostFunctionRegistry.getId(tokens[1]);
+
+            if (value < 0) {
+                throw error("Unknown host function: \"" + tokens[1] + "\".",
+                            tokens[1]);
+            }
         }
+
+        emitOpcode(HCALL);
+        emitData((int) value);
     }
 
     private void assembleNop(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 1) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'nop' instruction must not have arguments.");
         }
 
@@ -657,13 +1761,15 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'push' instruction requires exactly two tokens: " + 
                     "\"push regi\"");
         }
 
-        emitOpcode(PUSH);
+        if (!fuseWithPreviousInstruction(PUSH_ALL, PUSHA_PUSH)) {
+            emitOpcode(PUSH);
+        }
+
         emitRegister(tokens[1]);
     }
 
@@ -671,8 +1777,7 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 1) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'pusha' instruction must not have arguments.");
         }
 
@@ -683,8 +1788,7 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'pop' instruction requires exactly two tokens: " + 
                     "\"pop regi\"");
         }
@@ -697,20 +1801,20 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 1) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'popa' instruction must not have arguments.");
         }
 
-        emitOpcode(POP_ALL);
+        if (!fuseWithPreviousInstruction(POP, POP_POPA)) {
+            emitOpcode(POP_ALL);
+        }
     }
 
     private void assembleLsp(String line) {
         String[] tokens = toTokens(line);
 
         if (tokens.length != 2) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The 'lsp' instruction must contain exactly two tokens: " +
                     "\"lsp regi\"");
         }
@@ -721,67 +1825,66 @@ public class ToyVMAssembler {
 
     private void assembleWord(String line) {
         if (!pendingLabels.isEmpty()) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The word declaration expression must not have labels.");
         }
 
         String[] tokens = toTokens(line);
 
         if (tokens.length != 3) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'word' instruction requireis exactly three tokens: " +
                     "\"word name value\"");
         }
 
         if (mapOpcodeToAssembler.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "A word cannot be named with a mnemonic: \"" + tokens[1] +
                     "\"");
         }
         
         int datum;
 
-        if (isHexInteger(tokens[2])) {
-            datum = hexStringToInteger(tokens[2]);
-        } else if (isInteger(tokens[2])) {
-            datum = toInteger(tokens[2]);
+        long value = IntegerLiteralParser.parse(tokens[2]);
+
+        if (value != IntegerLiteralParser.NOT_AN_INTEGER) {
+            datum = (int) value;
         } else {
-            throw new AssemblyException(
-                    "Cannot parse \"" + tokens[2] + "\" as a decimal or " + 
-                    "hexadecimal integer.");
+            throw error(
+                    "Cannot parse \"" + tokens[2] + "\" as an integer " + 
+                    "literal.");
         }
 
         if (mapWordNameToWordValue.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "Word with name \"" + tokens[1] + "\" is already defined.");
         }
 
         if (mapStringNameToStringValue.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "There is already a string with name \"" + tokens[1] + 
                     "\"");
         }
 
+        if (mapDataBlockNameToDataBlock.containsKey(tokens[1])) {
+            throw error(
+                    "There is already a data block with name \"" + 
+                    tokens[1] + "\"");
+        }
+
         mapWordNameToWordValue.put(tokens[1], datum);
     }
 
     private void assembleString(String line) {
         if (!pendingLabels.isEmpty()) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The string declaration expression must not have labels.");
         }
 
         int firstQuoteIndex = line.indexOf("\"");
 
         if (firstQuoteIndex == -1) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The string must be enclosed in double quotation marks: " +
                     "str name \"string content\"");
         }
@@ -789,8 +1892,7 @@ public class ToyVMAssembler {
         int lastQuoteIndex  = line.lastIndexOf("\"");
 
         if (firstQuoteIndex == lastQuoteIndex) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "The string declaration has only one double quote: " +
                     "requires exactly two.");
         }
@@ -799,72 +1901,208 @@ public class ToyVMAssembler {
         String[] tokens = toTokens(line);
 
         if (tokens.length < 3) {
-            throw new AssemblyException(
-                    errorHeader() + 
+            throw error(
                     "The 'str' instruction requires exactly three tokens: " +
                     "\"str name value\"");
         }
 
         if (mapOpcodeToAssembler.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "A string cannot be names with a mnemonic: \"" + 
                     tokens[1] + "\"");
         }
         
         if (mapStringNameToStringValue.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "String with name \"" + tokens[1] + 
                     "\" is alredy defined.");
         }
 
         if (mapWordNameToWordValue.containsKey(tokens[1])) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "There is already a word with name \"" + tokens[1] + "\"");
         }
 
+        if (mapDataBlockNameToDataBlock.containsKey(tokens[1])) {
+            throw error(
+                    "There is already a data block with name \"" + 
+                    tokens[1] + "\"");
+        }
+
         str = str.replace("\\n", "\n");
         mapStringNameToStringValue.put(tokens[1], str);
     }
 
-    private boolean isInteger(String token) {
-        try {
-            Integer.parseInt(token);
-            return true;
-        } catch (NumberFormatException ex) {
-            return false;
+    private void assembleWords(String line) {
+        String[] tokens = toDataBlockTokens(line,
+                                            "words",
+                                            "\"words name value ...\"");
+        byte[] bytes = new byte[4 * (tokens.length - 2)];
+
+        for (int i = 2; i < tokens.length; ++i) {
+            int value = parseDatum(tokens[i]);
+
+            if (configuration.isBigEndian()) {
+                value = Integer.reverseBytes(value);
+            }
+
+            int offset = 4 * (i - 2);
+            bytes[offset]     = (byte) value;
+            bytes[offset + 1] = (byte)(value >>> 8);
+            bytes[offset + 2] = (byte)(value >>> 16);
+            bytes[offset + 3] = (byte)(value >>> 24);
         }
+
+        declareDataBlock(tokens[1], new DataBlock(bytes, null, bytes.length));
     }
 
-    private boolean isHexInteger(String token) {
-        if (token.length() < 3 
-                || (!token.startsWith("0X") && !token.startsWith("0x"))) {
-            return false;
+    private void assembleBytes(String line) {
+        String[] tokens = toDataBlockTokens(line,
+                                            "bytes",
+                                            "\"bytes name value ...\"");
+        byte[] bytes = new byte[tokens.length - 2];
+
+        for (int i = 2; i < tokens.length; ++i) {
+            int value = parseDatum(tokens[i]);
+
+            if (value < Byte.MIN_VALUE || value > 255) {
+                throw error("The value " + value + " does not fit into a " +
+                            "byte.",
+                            tokens[i]);
+            }
+
+            bytes[i - 2] = (byte) value;
         }
 
-        String body = token.substring(2).toLowerCase();
+        declareDataBlock(tokens[1], new DataBlock(bytes, null, bytes.length));
+    }
+
+    private void assembleSpace(String line) {
+        String[] tokens = toDataBlockTokens(line, "space", "\"space name N\"");
 
-        try {
-            Long.parseLong(body, 16);
-            return true;
-        } catch (NumberFormatException ex) {
-            return false;
+        if (tokens.length != 3) {
+            throw error(
+                    "The 'space' directive requires exactly three tokens: " +
+                    "\"space name N\"");
         }
+
+        int length = parseDatum(tokens[2]);
+
+        if (length < 0) {
+            throw error("The size of a space must not be negative.",
+                        tokens[2]);
+        }
+
+        declareDataBlock(tokens[1], new DataBlock(null, null, length));
     }
 
-    private int hexStringToInteger(String token) {
-        if (!isHexInteger(token)) {
-            throw new IllegalArgumentException(
-                    "The input token is not a hexadecimal number.");
+    private void assembleIncbin(String line) {
+        String[] tokens = toDataBlockTokens(line,
+                                            "incbin",
+                                            "incbin name \"file\"");
+        int firstQuoteIndex = line.indexOf("\"");
+        int lastQuoteIndex  = line.lastIndexOf("\"");
+
+        if (firstQuoteIndex == lastQuoteIndex) {
+            throw error(
+                    "The file name must be enclosed in double quotation " +
+                    "marks: incbin name \"file\"");
+        }
+
+        File file = new File(line.substring(firstQuoteIndex + 1,
+                                            lastQuoteIndex));
+
+        if (!file.isAbsolute()) {
+            // Relative to the directory of the source file.
+            file = new File(new File(fileName).getAbsoluteFile()
+                                              .getParentFile(),
+                            file.getPath());
+        }
+
+        if (!file.isFile() || !file.canRead()) {
+            throw error("Cannot read the file \"" + file.getPath() + "\".");
+        }
+
+        if (file.length() > Integer.MAX_VALUE) {
+            throw error("The file \"" + file.getPath() + "\" is too large.");
         }
 
-        return (int) Long.parseLong(token.substring(2).toLowerCase(), 16); 
+        declareDataBlock(tokens[1],
+                         new DataBlock(null, file, (int) file.length()));
     }
 
-    private int toInteger(String token) {
-        return Integer.parseInt(token);
+    private void assembleReserve(String line) {
+        String[] tokens = toDataBlockTokens(line,
+                                            "reserve",
+                                            "\"reserve name N\"");
+
+        if (tokens.length != 3) {
+            throw error(
+                    "The 'reserve' directive requires exactly three tokens: " +
+                    "\"reserve name N\"");
+        }
+
+        int length = parseDatum(tokens[2]);
+
+        if (length < 0) {
+            throw error("The size of a reserved block must not be negative.",
+                        tokens[2]);
+        }
+
+        declareDataBlock(tokens[1], new DataBlock(null, null, length, true));
+    }
+
+    // Checks the common part of a data block declaration 'directive name ...'
+    // and returns its tokens.
+    private String[] toDataBlockTokens(String line,
+                                       String directive,
+                                       String usage) {
+        if (!pendingLabels.isEmpty()) {
+            throw error(
+                    "The '" + directive + "' declaration must not have " +
+                    "labels.");
+        }
+
+        String[] tokens = toTokens(line);
+
+        if (tokens.length < 3) {
+            throw error(
+                    "The '" + directive + "' directive requires at least " +
+                    "three tokens: " + usage);
+        }
+
+        String name = tokens[1];
+
+        if (mapOpcodeToAssembler.containsKey(name)) {
+            throw error(
+                    "A data block cannot be named with a mnemonic: \"" +
+                    name + "\"",
+                    name);
+        }
+
+        if (mapWordNameToWordValue.containsKey(name)
+                || mapStringNameToStringValue.containsKey(name)
+                || mapDataBlockNameToDataBlock.containsKey(name)) {
+            throw error("\"" + name + "\" is already declared.", name);
+        }
+
+        return tokens;
+    }
+
+    private int parseDatum(String token) {
+        long value = IntegerLiteralParser.parse(token);
+
+        if (value == IntegerLiteralParser.NOT_AN_INTEGER) {
+            throw error(
+                    "Cannot parse \"" + token + "\" as an integer literal.",
+                    token);
+        }
+
+        return (int) value;
+    }
+
+    private void declareDataBlock(String name, DataBlock dataBlock) {
+        mapDataBlockNameToDataBlock.put(name, dataBlock);
     }
 
     private String[] toTokens(String line) {
@@ -879,8 +2117,7 @@ public class ToyVMAssembler {
         }
 
         if (line.indexOf(":", colonIndex + 1) != -1) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "Only one label allowed per line. The input line is \"" +
                     line + "\".");
         }
@@ -888,8 +2125,7 @@ public class ToyVMAssembler {
         String label = line.substring(0, colonIndex).trim();
         
         if (mapOpcodeToAssembler.containsKey(label)) {
-            throw new AssemblyException(
-                    errorHeader() +
+            throw error(
                     "An opcode name cannot be used as a label.");
         }
         
@@ -904,14 +2140,18 @@ public class ToyVMAssembler {
         };
     }
 
+    // Prepends the image header if the image has reserved blocks or a
+    // verified stack depth.
     private byte[] convertMachineCodeToByteArray() {
-        byte[] code = new byte[machineCode.size()];
+        byte[] code = machineCode.toByteArray();
 
-        for (int i = 0; i < code.length; ++i) {
-            code[i] = machineCode.get(i);
+        if (reservedSize == 0L
+                && maxStackDepth == ImageHeader.UNKNOWN_STACK_DEPTH) {
+            return code;
         }
 
-        return code;
+        return new ImageHeader((int) reservedSize, maxStackDepth)
+                   .prependTo(code);
     }
 
     private String errorHeader() {
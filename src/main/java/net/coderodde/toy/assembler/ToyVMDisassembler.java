@@ -0,0 +1,536 @@
+package net.coderodde.toy.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+import static net.coderodde.toy.assembler.TokenDescriptor.*;
+
+/**
+ * This class implements a disassembler for ToyVM images. The image file is
+ * memory-mapped and decoded by linear sweeps without creating any objects per
+ * instruction: the first sweep marks the branch targets in a bit set, the
+ * second one writes the code. The jump and call targets get labels of the form
+ * {@code L_xxxxxxxx} unless a source map provides the original label names.
+ * <p>
+ * Unless given explicitly, the end of the code is taken to be the end of the
+ * last instruction reachable from the entry point; everything after it is
+ * written as a commented hex dump of the data region.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 25, 2016)
+ */
+public class ToyVMDisassembler {
+
+    private static final String INDENTATION = "    ";
+    private static final String COMMENT_START_TOKEN = "// ";
+    private static final String LABEL_PREFIX = "L_";
+    private static final int DATA_BYTES_PER_LINE = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String[] REGISTER_NAMES = {
+        "reg1", "reg2", "reg3", "reg4"
+    };
+
+    // Maps each opcode (as an unsigned byte) to its instruction layout.
+    private static final Instruction[] INSTRUCTION_TABLE = new Instruction[256];
+
+    static {
+        put("add",    ADD,    REGISTER, REGISTER);
+        put("neg",    NEG,    REGISTER);
+        put("mul",    MUL,    REGISTER, REGISTER);
+        put("div",    DIV,    REGISTER, REGISTER);
+        put("mod",    MOD,    REGISTER, REGISTER);
+        put("add",    ADD_IMMEDIATE, REGISTER, IMMEDIATE);
+        put("mul",    MUL_IMMEDIATE, REGISTER, IMMEDIATE);
+        put("div",    DIV_IMMEDIATE, REGISTER, IMMEDIATE);
+        put("mod",    MOD_IMMEDIATE, REGISTER, IMMEDIATE);
+        put("cmp",    CMP,    REGISTER, REGISTER);
+        put("cmp",    CMP_IMMEDIATE, REGISTER, IMMEDIATE);
+        put("ja",     JA,     ADDRESS);
+        put("je",     JE,     ADDRESS);
+        put("jb",     JB,     ADDRESS);
+        put("jmp",    JMP,    ADDRESS);
+        put("ja",     JA_SHORT,  DISPLACEMENT);
+        put("je",     JE_SHORT,  DISPLACEMENT);
+        put("jb",     JB_SHORT,  DISPLACEMENT);
+        put("jmp",    JMP_SHORT, DISPLACEMENT);
+        put("cmp.ja", CMP_JA, REGISTER, REGISTER, ADDRESS);
+        put("cmp.je", CMP_JE, REGISTER, REGISTER, ADDRESS);
+        put("cmp.jb", CMP_JB, REGISTER, REGISTER, ADDRESS);
+        put("call",   CALL,   ADDRESS);
+        put("ret",    RET);
+        put("call",   CALL_SHORT, DISPLACEMENT);
+        put("load",   LOAD,   REGISTER, ADDRESS);
+        put("store",  STORE,  REGISTER, ADDRESS);
+        put("const",  CONST,  REGISTER, WORD_DATA);
+        put("rload",  RLOAD,  REGISTER, REGISTER);
+        put("rstore", RSTORE, REGISTER, REGISTER);
+        put("rload",  RLOAD_SP,  REGISTER, STACK_DISPLACEMENT);
+        put("rstore", RSTORE_SP, REGISTER, STACK_DISPLACEMENT);
+        put("rload",  RLOAD_INDEXED,  REGISTER, BASE_REGISTER,
+                                      BASE_DISPLACEMENT);
+        put("rstore", RSTORE_INDEXED, REGISTER, BASE_REGISTER,
+                                      BASE_DISPLACEMENT);
+        put("memcpy", MEMCPY, REGISTER, REGISTER, REGISTER);
+        put("memset", MEMSET, REGISTER, REGISTER, REGISTER);
+        put("const.add", CONST_ADD, REGISTER, WORD_DATA, REGISTER);
+        put("halt",   HALT);
+        put("int",    INT,    BYTE_DATA);
+        put("nop",    NOP);
+        put("hcall",  HCALL,  WORD_DATA);
+        put("push",   PUSH,   REGISTER);
+        put("pusha",  PUSH_ALL);
+        put("pop",    POP,    REGISTER);
+        put("popa",   POP_ALL);
+        put("lsp",    LSP,    REGISTER);
+        put("pusha.push",      PUSHA_PUSH,      REGISTER);
+        put("pusha.push.call", PUSHA_PUSH_CALL, REGISTER, ADDRESS);
+        put("pop.popa",        POP_POPA,        REGISTER);
+    }
+
+    private static void put(String mnemonic,
+                            byte opcode,
+                            TokenDescriptor... argumentTokenDescriptors) {
+        INSTRUCTION_TABLE[opcode & 0xff] =
+                new Instruction(mnemonic, opcode, argumentTokenDescriptors);
+    }
+
+    /**
+     * Returns the layout of the instruction with the opcode {@code opcode}.
+     *
+     * @param opcode the opcode.
+     * @return the instruction, or {@code null} if the opcode is unknown.
+     */
+    static Instruction getInstruction(byte opcode) {
+        return INSTRUCTION_TABLE[opcode & 0xff];
+    }
+
+    private final File imageFile;
+    private final char[] hexBuffer = new char[8];
+    private int codeLength = -1;
+    private SourceMap sourceMap;
+    private ByteBuffer image;
+    private int imageLength;
+    private BitSet labelledAddresses;
+
+    public ToyVMDisassembler(File imageFile) {
+        this.imageFile = Objects.requireNonNull(imageFile,
+                                                "The image file is null.");
+    }
+
+    /**
+     * Sets the length of the code region explicitly. Otherwise it is
+     * determined by the reachability from the entry point.
+     *
+     * @param codeLength the length of the code region.
+     */
+    public void setCodeLength(int codeLength) {
+        this.codeLength = codeLength;
+    }
+
+    /**
+     * Sets the source map providing the code length and the label names.
+     *
+     * @param sourceMap the source map, or {@code null}.
+     */
+    public void setSourceMap(SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
+    public void disassemble(Writer writer) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(imageFile, "r");
+             FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The image is too large.");
+            }
+
+            imageLength = (int) channel.size();
+            image = channel.map(FileChannel.MapMode.READ_ONLY,
+                                0,
+                                imageLength);
+
+            if (ImageHeader.isPresent(image)) {
+                // The addresses start after the header.
+                image.position(ImageHeader.read(image).getSize());
+                image = image.slice();
+                imageLength = image.capacity();
+            }
+            
+            if (CompressedImage.isCompressed(image)) {
+                image = ByteBuffer.wrap(
+                        CompressedImage.read(image).decompress());
+                imageLength = image.capacity();
+            }
+            
+            labelledAddresses = new BitSet(imageLength);
+            int codeEnd = computeCodeEnd();
+            markBranchTargets(codeEnd);
+            writeCode(writer, codeEnd);
+            writeData(writer, codeEnd);
+            writer.flush();
+        } finally {
+            image = null;
+            labelledAddresses = null;
+        }
+    }
+
+    private int computeCodeEnd() {
+        if (codeLength >= 0) {
+            return Math.min(codeLength, imageLength);
+        }
+
+        if (sourceMap != null) {
+            return Math.min(sourceMap.getCodeLength(), imageLength);
+        }
+
+        // Traverse the control flow from the entry point, maintaining the
+        // work list of addresses in an int array.
+        BitSet visited = new BitSet(imageLength);
+        int[] workList = new int[16];
+        int workListSize = 0;
+        int codeEnd = 0;
+
+        if (imageLength > 0) {
+            workList[workListSize++] = 0;
+        }
+
+        while (workListSize > 0) {
+            int address = workList[--workListSize];
+
+            while (address >= 0 && address < imageLength
+                    && !visited.get(address)) {
+                Instruction instruction = decode(address);
+
+                if (instruction == null
+                        || address + instruction.getInstructionLength()
+                           > imageLength) {
+                    break;
+                }
+
+                visited.set(address);
+                int next = address + instruction.getInstructionLength();
+                codeEnd = Math.max(codeEnd, next);
+                int target = getBranchTarget(instruction, address);
+
+                if (target >= 0) {
+                    if (workListSize == workList.length) {
+                        int[] newWorkList = new int[2 * workList.length];
+                        System.arraycopy(workList, 0,
+                                         newWorkList, 0,
+                                         workListSize);
+                        workList = newWorkList;
+                    }
+
+                    workList[workListSize++] = target;
+                }
+
+                if (!fallsThrough(instruction.getOpcode())) {
+                    break;
+                }
+
+                address = next;
+            }
+        }
+
+        return codeEnd;
+    }
+
+    private void markBranchTargets(int codeEnd) {
+        int address = 0;
+
+        while (address < codeEnd) {
+            Instruction instruction = decode(address);
+
+            if (instruction == null
+                    || address + instruction.getInstructionLength()
+                       > codeEnd) {
+                address++;
+                continue;
+            }
+
+            int target = getBranchTarget(instruction, address);
+
+            if (target >= 0 && target < imageLength) {
+                labelledAddresses.set(target);
+            }
+
+            address += instruction.getInstructionLength();
+        }
+    }
+
+    private void writeCode(Writer writer, int codeEnd) throws IOException {
+        writer.write(COMMENT_START_TOKEN);
+        writer.write("Disassembly of ");
+        writer.write(imageFile.getName());
+        writer.write('\n');
+        int address = 0;
+
+        while (address < codeEnd) {
+            if (labelledAddresses.get(address)) {
+                writeLabel(writer, address);
+                writer.write(":\n");
+            }
+
+            Instruction instruction = decode(address);
+
+            if (instruction == null
+                    || address + instruction.getInstructionLength()
+                       > codeEnd) {
+                writer.write(INDENTATION);
+                writer.write(COMMENT_START_TOKEN);
+                writer.write("bad opcode 0x");
+                writeHex(writer, image.get(address) & 0xff, 2);
+                writer.write('\n');
+                address++;
+                continue;
+            }
+
+            writer.write(INDENTATION);
+            writer.write(instruction.getOpcodeMnemonic());
+            writeOperands(writer, instruction, address);
+            writer.write('\n');
+            address += instruction.getInstructionLength();
+        }
+    }
+
+    private void writeOperands(Writer writer,
+                               Instruction instruction,
+                               int address) throws IOException {
+        List<TokenDescriptor> tokenDescriptorList =
+                instruction.getArgumentTokenDescriptorList();
+        int operandAddress = address + 1;
+
+        for (int i = 0; i < tokenDescriptorList.size(); ++i) {
+            TokenDescriptor tokenDescriptor = tokenDescriptorList.get(i);
+
+            // The displacement continues the memory operand of the base.
+            if (tokenDescriptor != BASE_DISPLACEMENT) {
+                writer.write(' ');
+            }
+
+            switch (tokenDescriptor) {
+                case REGISTER:
+                    writeRegister(writer, operandAddress);
+                    break;
+
+                case BASE_REGISTER:
+                    writer.write('[');
+                    writeRegister(writer, operandAddress);
+                    break;
+
+                case STACK_DISPLACEMENT:
+                    writer.write('[');
+                    writer.write(STACK_POINTER_NAME);
+                    writeDisplacement(writer, readWord(operandAddress));
+                    break;
+
+                case BASE_DISPLACEMENT:
+                    writeDisplacement(writer, readWord(operandAddress));
+                    break;
+
+                case ADDRESS:
+                    writeAddressOperand(writer,
+                                        readWord(operandAddress),
+                                        isBranch(instruction.getOpcode()));
+                    break;
+
+                case DISPLACEMENT:
+                    writeAddressOperand(writer,
+                                        getBranchTarget(instruction, address),
+                                        true);
+                    break;
+
+                case WORD_DATA:
+                    writer.write(Integer.toString(readWord(operandAddress)));
+                    break;
+
+                case BYTE_DATA:
+                    writer.write(Integer.toString(
+                            image.get(operandAddress) & 0xff));
+                    break;
+
+                case IMMEDIATE:
+                    writer.write(IMMEDIATE_PREFIX);
+                    writer.write(Integer.toString(readWord(operandAddress)));
+                    break;
+            }
+
+            operandAddress += tokenDescriptor.getLengthInBytes();
+        }
+    }
+
+    private void writeRegister(Writer writer, int address)
+    throws IOException {
+        int register = image.get(address);
+
+        if (register >= 0 && register < REGISTER_NAMES.length) {
+            writer.write(REGISTER_NAMES[register]);
+        } else {
+            writer.write("reg?");
+        }
+    }
+
+    // Writes the signed displacement closing a memory operand.
+    private static void writeDisplacement(Writer writer, int displacement)
+    throws IOException {
+        if (displacement >= 0) {
+            writer.write('+');
+        }
+
+        writer.write(Integer.toString(displacement));
+        writer.write(']');
+    }
+
+    private void writeAddressOperand(Writer writer,
+                                     int target,
+                                     boolean branch) throws IOException {
+        if (branch && target >= 0 && target < imageLength
+                && labelledAddresses.get(target)) {
+            writeLabel(writer, target);
+        } else {
+            writer.write("0x");
+            writeHex(writer, target, 8);
+        }
+    }
+
+    private void writeLabel(Writer writer, int address) throws IOException {
+        if (sourceMap != null) {
+            String label = sourceMap.getLabel(address);
+
+            if (label != null
+                    && sourceMap.getLabelAddress(address) == address) {
+                writer.write(label);
+                return;
+            }
+        }
+
+        writer.write(LABEL_PREFIX);
+        writeHex(writer, address, 8);
+    }
+
+    private void writeData(Writer writer, int codeEnd) throws IOException {
+        if (codeEnd >= imageLength) {
+            return;
+        }
+
+        writer.write('\n');
+        writer.write(COMMENT_START_TOKEN);
+        writer.write("Data region\n");
+
+        for (int address = codeEnd;
+                address < imageLength;
+                address += DATA_BYTES_PER_LINE) {
+            int end = Math.min(imageLength, address + DATA_BYTES_PER_LINE);
+            writer.write(COMMENT_START_TOKEN);
+            writeHex(writer, address, 8);
+            writer.write(':');
+
+            for (int i = address; i < end; ++i) {
+                writer.write(' ');
+                writeHex(writer, image.get(i) & 0xff, 2);
+            }
+
+            for (int i = end; i < address + DATA_BYTES_PER_LINE; ++i) {
+                writer.write("   ");
+            }
+
+            writer.write("  |");
+
+            for (int i = address; i < end; ++i) {
+                int c = image.get(i) & 0xff;
+                writer.write(c >= 0x20 && c < 0x7f ? c : '.');
+            }
+
+            writer.write("|\n");
+        }
+    }
+
+    private Instruction decode(int address) {
+        return INSTRUCTION_TABLE[image.get(address) & 0xff];
+    }
+
+    // Returns the branch target of the instruction at 'address', or -1 if it
+    // is not a branch to a known address.
+    private int getBranchTarget(Instruction instruction, int address) {
+        switch (instruction.getOpcode()) {
+            case JA:
+            case JE:
+            case JB:
+            case JMP:
+            case CALL:
+                return readWord(address + 1);
+
+            case CMP_JA:
+            case CMP_JE:
+            case CMP_JB:
+                return readWord(address + 3);
+
+            case PUSHA_PUSH_CALL:
+                return readWord(address + 2);
+
+            case JA_SHORT:
+            case JE_SHORT:
+            case JB_SHORT:
+            case JMP_SHORT:
+            case CALL_SHORT:
+                return address + 2 + image.get(address + 1);
+
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isBranch(byte opcode) {
+        switch (opcode) {
+            case JA:
+            case JE:
+            case JB:
+            case JMP:
+            case CALL:
+            case CMP_JA:
+            case CMP_JE:
+            case CMP_JB:
+            case PUSHA_PUSH_CALL:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private static boolean fallsThrough(byte opcode) {
+        switch (opcode) {
+            case JMP:
+            case JMP_SHORT:
+            case RET:
+            case HALT:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    private int readWord(int address) {
+        return (image.get(address) & 0xff)
+            | ((image.get(address + 1) & 0xff) << 8)
+            | ((image.get(address + 2) & 0xff) << 16)
+            | ((image.get(address + 3) & 0xff) << 24);
+    }
+
+    private void writeHex(Writer writer, int value, int digits)
+    throws IOException {
+        for (int i = digits - 1; i >= 0; --i) {
+            hexBuffer[i] = HEX_DIGITS[value & 0xf];
+            value >>>= 4;
+        }
+
+        writer.write(hexBuffer, 0, digits);
+    }
+}
@@ -0,0 +1,15 @@
+package net.coderodde.toy.assembler;
+
+/**
+ * This class implements an exception thrown whenever the execution of a ToyVM
+ * image fails.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 20, 2016)
+ */
+public class ToyVMException extends RuntimeException {
+
+    public ToyVMException(String message) {
+        super(message);
+    }
+}
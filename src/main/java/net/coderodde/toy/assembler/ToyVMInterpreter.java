@@ -0,0 +1,647 @@
+package net.coderodde.toy.assembler;
+
+import java.io.PrintStream;
+import java.util.Objects;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+/**
+ * This class implements an in-process interpreter for ToyVM images. The image
+ * is loaded at address zero and the stack grows downwards from the end of the
+ * memory. All words are 32-bit little-endian integers. The memory is an array
+ * by default; {@link PagedImageMemory} loads the image lazily instead.
+ * <p>
+ * The arithmetic instructions {@code op regi regj} store the result of
+ * {@code regi op regj} in {@code regj}; {@code cmp regi regj} compares
+ * {@code regi} against {@code regj}; {@code rload regi regj} loads the word at
+ * address {@code regj} into {@code regi} and {@code rstore regi regj} stores
+ * {@code regi} at address {@code regj}; the forms with the memory operand
+ * {@code [base+displacement]} address {@code base + displacement}, where the
+ * base is a register or the stack pointer {@code sp}. The immediate forms
+ * {@code op regi #constant} store {@code regi op constant} in {@code regi}.
+ * {@code memcpy regd regs regn} copies {@code regn} bytes from {@code regs} to
+ * {@code regd} as if through a temporary buffer, and
+ * {@code memset regd regv regn} sets {@code regn} bytes at {@code regd} to the
+ * lowest byte of {@code regv}.
+ * Interrupt 1 pops and prints an integer, interrupt 2 pops the address of a
+ * zero-terminated string and prints it. {@code hcall} calls a Java function
+ * from the {@link HostFunctionRegistry}. The printed bytes are buffered by a
+ * {@link ConsoleOutput}. If the {@link ImageHeader} carries a stack bound
+ * proven by {@link StackVerifier}, the stack operations run without the
+ * overflow and underflow checks.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 2, 2016)
+ */
+public class ToyVMInterpreter {
+
+    public static final int DEFAULT_MEMORY_SIZE = 1024 * 1024;
+    public static final int DEFAULT_STACK_SIZE  = 64 * 1024;
+
+    private static final int NUMBER_OF_REGISTERS = 4;
+    private static final int WORD_SIZE = 4;
+
+    private static final int INTERRUPT_PRINT_INTEGER = 1;
+    private static final int INTERRUPT_PRINT_STRING  = 2;
+
+    private final Memory memory;
+    private final int[] registers = new int[NUMBER_OF_REGISTERS];
+    private final int stackLimit;
+    // False if the image header proves that the stack fits.
+    private final boolean stackChecked;
+    private int programCounter;
+    private int stackPointer;
+    // Negative, zero or positive depending on the result of the last
+    // comparison.
+    private int comparison;
+    private boolean halted;
+    // The instructions executed by run(long) so far.
+    private long executedInstructions;
+    private ConsoleOutput output = new ConsoleOutput(System.out);
+    private HostFunctionRegistry hostFunctionRegistry =
+            HostFunctionRegistry.STANDARD;
+    private final HostFunction.Context hostFunctionContext =
+            new HostFunction.Context() {
+
+        @Override
+        public int getRegister(int registerIndex) {
+            return registers[registerIndex];
+        }
+
+        @Override
+        public void setRegister(int registerIndex, int value) {
+            registers[registerIndex] = value;
+        }
+
+        @Override
+        public int pop() {
+            return ToyVMInterpreter.this.pop();
+        }
+
+        @Override
+        public void push(int value) {
+            ToyVMInterpreter.this.push(value);
+        }
+
+        @Override
+        public Memory getMemory() {
+            return memory;
+        }
+
+        @Override
+        public ConsoleOutput getOutput() {
+            return output;
+        }
+    };
+
+    public ToyVMInterpreter(byte[] image) {
+        this(image, DEFAULT_MEMORY_SIZE, DEFAULT_STACK_SIZE);
+    }
+
+    public ToyVMInterpreter(byte[] image, int memorySize, int stackSize) {
+        this(Memory.fromImage(image, memorySize), stackSize);
+    }
+
+    /**
+     * Constructs an interpreter running the image loaded into
+     * {@code memory}, such as a {@link PagedImageMemory}. The memory is used
+     * as is, so that the writes of the program go to it.
+     *
+     * @param memory    the address space holding the image at address zero.
+     * @param stackSize the number of bytes reserved for the stack at the end
+     *                  of the memory.
+     */
+    public ToyVMInterpreter(Memory memory, int stackSize) {
+        Objects.requireNonNull(memory, "The memory is null.");
+
+        if (stackSize < WORD_SIZE) {
+            throw new IllegalArgumentException(
+                    "The stack size is too small: " + stackSize + ".");
+        }
+
+        int memorySize = memory.size();
+
+        if (memory.getImageSize() > memorySize - stackSize) {
+            throw new IllegalArgumentException(
+                    "The image of " + memory.getImageSize() + " bytes does " +
+                    "not fit into " + memorySize + " bytes of memory with " +
+                    stackSize + " bytes of stack.");
+        }
+
+        ImageHeader header = memory.getImageHeader();
+        this.memory = memory;
+        this.stackLimit = memorySize - stackSize;
+        this.stackPointer = memorySize;
+        this.stackChecked = header == null
+                || header.getMaxStackDepth() == ImageHeader.UNKNOWN_STACK_DEPTH
+                || header.getMaxStackDepth() > stackSize;
+    }
+
+    public void setOutput(PrintStream output) {
+        setOutput(new ConsoleOutput(
+                Objects.requireNonNull(output, "The output is null.")));
+    }
+
+    /**
+     * Sets the output of the print interrupts. The output is flushed when the
+     * program halts and when {@link #run()} or {@link #run(long)} returns;
+     * {@link #flushOutput()} flushes it in between.
+     *
+     * @param output the console output.
+     */
+    public void setOutput(ConsoleOutput output) {
+        this.output = Objects.requireNonNull(output, "The output is null.");
+    }
+
+    public void flushOutput() {
+        output.flush();
+    }
+
+    /**
+     * Sets the registry of the functions called by {@code hcall}. It must be
+     * the registry the image was assembled with. The default is
+     * {@link HostFunctionRegistry#STANDARD}.
+     *
+     * @param hostFunctionRegistry the host function registry.
+     */
+    public void setHostFunctionRegistry(
+            HostFunctionRegistry hostFunctionRegistry) {
+        this.hostFunctionRegistry =
+                Objects.requireNonNull(hostFunctionRegistry,
+                                       "The host function registry is null.");
+    }
+
+    public int getRegister(int registerIndex) {
+        return registers[registerIndex];
+    }
+
+    public int getProgramCounter() {
+        return programCounter;
+    }
+
+    public int getStackPointer() {
+        return stackPointer;
+    }
+
+    /**
+     * Reads a byte of the memory.
+     *
+     * @param address the address to read.
+     * @return the byte at {@code address}.
+     * @throws ToyVMException if {@code address} is outside of the memory.
+     */
+    public byte readByte(int address) {
+        try {
+            return memory.getByte(address);
+        } catch (IndexOutOfBoundsException ex) {
+            throw new ToyVMException(
+                    "Bad memory access at address " + address + ".");
+        }
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Returns {@code false} if the image carries a verified stack bound that
+     * fits into the stack, in which case the pushes and pops are not checked.
+     * The memory accesses are still checked.
+     *
+     * @return whether the stack operations are checked.
+     */
+    public boolean isStackChecked() {
+        return stackChecked;
+    }
+
+    /**
+     * Runs the program until the {@code halt} instruction. The output is
+     * flushed even if the program fails.
+     */
+    public void run() {
+        try {
+            while (!halted) {
+                step();
+            }
+        } finally {
+            output.flush();
+        }
+    }
+
+    /**
+     * Runs the program until the {@code halt} instruction or until
+     * {@code maxInstructions} instructions have been executed, whichever comes
+     * first. The run may be resumed by calling this method again.
+     *
+     * @param maxInstructions the maximum number of instructions to execute.
+     * @return the number of instructions executed.
+     */
+    public long run(long maxInstructions) {
+        long instructionCount = 0;
+
+        try {
+            while (!halted && instructionCount < maxInstructions) {
+                step();
+                instructionCount++;
+            }
+        } finally {
+            executedInstructions += instructionCount;
+            output.flush();
+        }
+
+        return instructionCount;
+    }
+
+    /**
+     * Returns the total number of instructions executed by
+     * {@link #run(long)}, including those executed before a failure. The
+     * failing instruction itself is not counted.
+     *
+     * @return the number of executed instructions.
+     */
+    public long getExecutedInstructions() {
+        return executedInstructions;
+    }
+
+    /**
+     * Executes a single instruction.
+     */
+    public void step() {
+        try {
+            executeInstruction();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new ToyVMException(
+                    "Bad memory access at address " + programCounter + ".");
+        }
+    }
+
+    private void executeInstruction() {
+        int pc = programCounter;
+        byte opcode = memory.getByte(pc);
+
+        switch (opcode) {
+            case ADD:
+                registers[register(pc + 2)] += registers[register(pc + 1)];
+                programCounter = pc + 3;
+                break;
+
+            case NEG:
+                registers[register(pc + 1)] = -registers[register(pc + 1)];
+                programCounter = pc + 2;
+                break;
+
+            case MUL:
+                registers[register(pc + 2)] *= registers[register(pc + 1)];
+                programCounter = pc + 3;
+                break;
+
+            case DIV:
+                registers[register(pc + 2)] =
+                        registers[register(pc + 1)] /
+                        divisor(registers[register(pc + 2)]);
+                programCounter = pc + 3;
+                break;
+
+            case MOD:
+                registers[register(pc + 2)] =
+                        registers[register(pc + 1)] %
+                        divisor(registers[register(pc + 2)]);
+                programCounter = pc + 3;
+                break;
+
+            case ADD_IMMEDIATE:
+                registers[register(pc + 1)] += readWord(pc + 2);
+                programCounter = pc + 6;
+                break;
+
+            case MUL_IMMEDIATE:
+                registers[register(pc + 1)] *= readWord(pc + 2);
+                programCounter = pc + 6;
+                break;
+
+            case DIV_IMMEDIATE:
+                registers[register(pc + 1)] /= divisor(readWord(pc + 2));
+                programCounter = pc + 6;
+                break;
+
+            case MOD_IMMEDIATE:
+                registers[register(pc + 1)] %= divisor(readWord(pc + 2));
+                programCounter = pc + 6;
+                break;
+
+            case CMP:
+                compare(pc);
+                programCounter = pc + 3;
+                break;
+
+            case CMP_IMMEDIATE:
+                comparison = Integer.compare(registers[register(pc + 1)],
+                                             readWord(pc + 2));
+                programCounter = pc + 6;
+                break;
+
+            case JA:
+                programCounter = comparison > 0 ? readWord(pc + 1) : pc + 5;
+                break;
+
+            case JE:
+                programCounter = comparison == 0 ? readWord(pc + 1) : pc + 5;
+                break;
+
+            case JB:
+                programCounter = comparison < 0 ? readWord(pc + 1) : pc + 5;
+                break;
+
+            case JMP:
+                programCounter = readWord(pc + 1);
+                break;
+
+            case JA_SHORT:
+                programCounter = pc + 2 +
+                                 (comparison > 0 ? memory.getByte(pc + 1) : 0);
+                break;
+
+            case JE_SHORT:
+                programCounter = pc + 2 +
+                                 (comparison == 0 ? memory.getByte(pc + 1) : 0);
+                break;
+
+            case JB_SHORT:
+                programCounter = pc + 2 +
+                                 (comparison < 0 ? memory.getByte(pc + 1) : 0);
+                break;
+
+            case JMP_SHORT:
+                programCounter = pc + 2 + memory.getByte(pc + 1);
+                break;
+
+            case CMP_JA:
+                compare(pc);
+                programCounter = comparison > 0 ? readWord(pc + 3) : pc + 7;
+                break;
+
+            case CMP_JE:
+                compare(pc);
+                programCounter = comparison == 0 ? readWord(pc + 3) : pc + 7;
+                break;
+
+            case CMP_JB:
+                compare(pc);
+                programCounter = comparison < 0 ? readWord(pc + 3) : pc + 7;
+                break;
+
+            case CALL:
+                push(pc + 5);
+                programCounter = readWord(pc + 1);
+                break;
+
+            case CALL_SHORT:
+                push(pc + 2);
+                programCounter = pc + 2 + memory.getByte(pc + 1);
+                break;
+
+            case RET:
+                programCounter = pop();
+                break;
+
+            case LOAD:
+                registers[register(pc + 1)] = readWord(readWord(pc + 2));
+                programCounter = pc + 6;
+                break;
+
+            case STORE:
+                writeWord(readWord(pc + 2), registers[register(pc + 1)]);
+                programCounter = pc + 6;
+                break;
+
+            case CONST:
+                registers[register(pc + 1)] = readWord(pc + 2);
+                programCounter = pc + 6;
+                break;
+
+            case CONST_ADD:
+                registers[register(pc + 1)] = readWord(pc + 2);
+                registers[register(pc + 6)] += registers[register(pc + 1)];
+                programCounter = pc + 7;
+                break;
+
+            case RLOAD:
+                registers[register(pc + 1)] =
+                        readWord(registers[register(pc + 2)]);
+                programCounter = pc + 3;
+                break;
+
+            case RSTORE:
+                writeWord(registers[register(pc + 2)],
+                          registers[register(pc + 1)]);
+                programCounter = pc + 3;
+                break;
+
+            case RLOAD_SP:
+                registers[register(pc + 1)] =
+                        readWord(stackPointer + readWord(pc + 2));
+                programCounter = pc + 6;
+                break;
+
+            case RSTORE_SP:
+                writeWord(stackPointer + readWord(pc + 2),
+                          registers[register(pc + 1)]);
+                programCounter = pc + 6;
+                break;
+
+            case RLOAD_INDEXED:
+                registers[register(pc + 1)] =
+                        readWord(registers[register(pc + 2)] +
+                                 readWord(pc + 3));
+                programCounter = pc + 7;
+                break;
+
+            case RSTORE_INDEXED:
+                writeWord(registers[register(pc + 2)] + readWord(pc + 3),
+                          registers[register(pc + 1)]);
+                programCounter = pc + 7;
+                break;
+
+            case MEMCPY:
+                memory.copy(registers[register(pc + 2)],
+                            registers[register(pc + 1)],
+                            registers[register(pc + 3)]);
+                programCounter = pc + 4;
+                break;
+
+            case MEMSET:
+                memory.fill(registers[register(pc + 1)],
+                            registers[register(pc + 3)],
+                            (byte) registers[register(pc + 2)]);
+                programCounter = pc + 4;
+                break;
+
+            case HALT:
+                halted = true;
+                output.flush();
+                break;
+
+            case INT:
+                interrupt(memory.getByte(pc + 1));
+                programCounter = pc + 2;
+                break;
+
+            case NOP:
+                programCounter = pc + 1;
+                break;
+
+            case HCALL:
+                programCounter = pc + 5;
+                hostCall(readWord(pc + 1));
+                break;
+
+            case PUSH:
+                push(registers[register(pc + 1)]);
+                programCounter = pc + 2;
+                break;
+
+            case PUSH_ALL:
+                pushAll();
+                programCounter = pc + 1;
+                break;
+
+            case POP:
+                registers[register(pc + 1)] = pop();
+                programCounter = pc + 2;
+                break;
+
+            case POP_ALL:
+                popAll();
+                programCounter = pc + 1;
+                break;
+
+            case LSP:
+                registers[register(pc + 1)] = stackPointer;
+                programCounter = pc + 2;
+                break;
+
+            case PUSHA_PUSH:
+                pushAll();
+                push(registers[register(pc + 1)]);
+                programCounter = pc + 2;
+                break;
+
+            case PUSHA_PUSH_CALL:
+                pushAll();
+                push(registers[register(pc + 1)]);
+                push(pc + 6);
+                programCounter = readWord(pc + 2);
+                break;
+
+            case POP_POPA:
+                registers[register(pc + 1)] = pop();
+                popAll();
+                programCounter = pc + 2;
+                break;
+
+            default:
+                throw new ToyVMException(
+                        "Bad opcode " + opcode + " at address " + pc + ".");
+        }
+    }
+
+    private int register(int address) {
+        int registerIndex = memory.getByte(address);
+
+        if (registerIndex < 0 || registerIndex >= NUMBER_OF_REGISTERS) {
+            throw new ToyVMException(
+                    "Invalid register index " + registerIndex +
+                    " at address " + address + ".");
+        }
+
+        return registerIndex;
+    }
+
+    private void compare(int pc) {
+        comparison = Integer.compare(registers[register(pc + 1)],
+                                     registers[register(pc + 2)]);
+    }
+
+    private int divisor(int value) {
+        if (value == 0) {
+            throw new ToyVMException(
+                    "Division by zero at address " + programCounter + ".");
+        }
+
+        return value;
+    }
+
+    private void hostCall(int id) {
+        HostFunction function = hostFunctionRegistry.getFunction(id);
+
+        if (function == null) {
+            throw new ToyVMException(
+                    "Unknown host function " + id + " at address " +
+                    programCounter + ".");
+        }
+
+        function.call(hostFunctionContext);
+    }
+
+    private void interrupt(int interruptNumber) {
+        switch (interruptNumber) {
+            case INTERRUPT_PRINT_INTEGER:
+                output.writeInt(pop());
+                break;
+
+            case INTERRUPT_PRINT_STRING:
+                int address = pop();
+
+                while (memory.getByte(address) != 0) {
+                    output.writeByte(memory.getByte(address++));
+                }
+
+                break;
+
+            default:
+                throw new ToyVMException(
+                        "Unknown interrupt " + interruptNumber +
+                        " at address " + programCounter + ".");
+        }
+    }
+
+    private void push(int value) {
+        if (stackChecked && stackPointer - WORD_SIZE < stackLimit) {
+            throw new ToyVMException(
+                    "Stack overflow at address " + programCounter + ".");
+        }
+
+        stackPointer -= WORD_SIZE;
+        writeWord(stackPointer, value);
+    }
+
+    private int pop() {
+        if (stackChecked && stackPointer + WORD_SIZE > memory.size()) {
+            throw new ToyVMException(
+                    "Stack underflow at address " + programCounter + ".");
+        }
+
+        int value = readWord(stackPointer);
+        stackPointer += WORD_SIZE;
+        return value;
+    }
+
+    private void pushAll() {
+        for (int i = 0; i < NUMBER_OF_REGISTERS; ++i) {
+            push(registers[i]);
+        }
+    }
+
+    private void popAll() {
+        for (int i = NUMBER_OF_REGISTERS - 1; i >= 0; --i) {
+            registers[i] = pop();
+        }
+    }
+
+    private int readWord(int address) {
+        return memory.getWord(address);
+    }
+
+    private void writeWord(int address, int value) {
+        memory.setWord(address, value);
+    }
+}
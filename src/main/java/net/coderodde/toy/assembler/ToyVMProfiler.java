@@ -0,0 +1,283 @@
+package net.coderodde.toy.assembler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+/**
+ * This class implements an instruction-level profiler for the images executed
+ * by {@link ToyVMInterpreter}. The profiler counts the executions of each
+ * instruction address in a primitive array indexed by the program counter and
+ * attributes the counts to label regions: a label region spans from a label to
+ * the next label. In addition, the profiler tracks the call stack through the
+ * call and return instructions and samples it once every
+ * {@code samplingInterval} instructions.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 23, 2016)
+ */
+public class ToyVMProfiler {
+
+    private static final String ENTRY_FRAME_NAME = "[entry]";
+    private static final int TOP_ADDRESSES = 20;
+
+    private final ToyVMInterpreter interpreter;
+    private final long[] executionCounts;
+    private final int[] labelAddresses;
+    private final String[] labelNames;
+    private final int samplingInterval;
+    private final CallTreeNode root = new CallTreeNode(null, 0);
+    private CallTreeNode currentNode = root;
+    private SourceMap sourceMap;
+    private long totalInstructions;
+
+    private static final class CallTreeNode {
+        final CallTreeNode parent;
+        final int entryAddress;
+        final Map<Integer, CallTreeNode> children = new HashMap<>(4);
+        long samples;
+
+        CallTreeNode(CallTreeNode parent, int entryAddress) {
+            this.parent = parent;
+            this.entryAddress = entryAddress;
+        }
+
+        CallTreeNode getChild(int entryAddress) {
+            CallTreeNode child = children.get(entryAddress);
+
+            if (child == null) {
+                child = new CallTreeNode(this, entryAddress);
+                children.put(entryAddress, child);
+            }
+
+            return child;
+        }
+    }
+
+    public ToyVMProfiler(ToyVMInterpreter interpreter,
+                         int imageLength,
+                         Map<String, Integer> labelMap,
+                         int samplingInterval) {
+        this.interpreter = Objects.requireNonNull(interpreter,
+                                                  "The interpreter is null.");
+        Objects.requireNonNull(labelMap, "The label map is null.");
+
+        if (samplingInterval < 1) {
+            throw new IllegalArgumentException(
+                    "The sampling interval must be positive: " +
+                    samplingInterval + ".");
+        }
+
+        this.executionCounts = new long[imageLength];
+        this.samplingInterval = samplingInterval;
+
+        List<Map.Entry<String, Integer>> labelList =
+                new ArrayList<>(labelMap.entrySet());
+        labelList.sort((a, b) -> Integer.compare(a.getValue(), b.getValue()));
+        this.labelAddresses = new int[labelList.size()];
+        this.labelNames = new String[labelList.size()];
+
+        for (int i = 0; i < labelList.size(); ++i) {
+            labelAddresses[i] = labelList.get(i).getValue();
+            labelNames[i] = labelList.get(i).getKey();
+        }
+    }
+
+    /**
+     * Sets the source map used for attributing the hot addresses to the source
+     * lines in the report.
+     *
+     * @param sourceMap the source map, or {@code null}.
+     */
+    public void setSourceMap(SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
+    /**
+     * Runs the program until the {@code halt} instruction, collecting the
+     * profile.
+     */
+    public void run() {
+        int countdown = samplingInterval;
+
+        while (!interpreter.isHalted()) {
+            int pc = interpreter.getProgramCounter();
+
+            if (pc >= 0 && pc < executionCounts.length) {
+                executionCounts[pc]++;
+            }
+
+            if (--countdown == 0) {
+                currentNode.samples++;
+                countdown = samplingInterval;
+            }
+
+            byte opcode = interpreter.readByte(pc);
+            interpreter.step();
+            totalInstructions++;
+
+            switch (opcode) {
+                case CALL:
+                case CALL_SHORT:
+                case PUSHA_PUSH_CALL:
+                    currentNode = currentNode.getChild(
+                            interpreter.getProgramCounter());
+                    break;
+
+                case RET:
+                    if (currentNode.parent != null) {
+                        currentNode = currentNode.parent;
+                    }
+
+                    break;
+            }
+        }
+    }
+
+    public long getTotalInstructions() {
+        return totalInstructions;
+    }
+
+    public long getExecutionCount(int address) {
+        return executionCounts[address];
+    }
+
+    /**
+     * Returns the execution counts attributed to the source lines through the
+     * source map.
+     *
+     * @return the execution profile.
+     */
+    public ExecutionProfile getExecutionProfile() {
+        if (sourceMap == null) {
+            throw new IllegalStateException("The source map is not set.");
+        }
+
+        return ExecutionProfile.fromExecutionCounts(executionCounts, sourceMap);
+    }
+
+    /**
+     * Writes a human-readable report listing the execution counts per label
+     * region and the hottest instruction addresses.
+     *
+     * @param writer the writer to write to.
+     * @throws IOException if I/O fails.
+     */
+    public void writeReport(Writer writer) throws IOException {
+        writer.write("Total instructions executed: " + totalInstructions +
+                     "\n\n");
+        writer.write("Executions per label region:\n");
+        long[] regionCounts = new long[labelAddresses.length + 1];
+
+        for (int address = 0; address < executionCounts.length; ++address) {
+            regionCounts[findRegion(address) + 1] += executionCounts[address];
+        }
+
+        for (int i = 0; i < regionCounts.length; ++i) {
+            if (regionCounts[i] != 0) {
+                writer.write(String.format(
+                        "%12d %6.2f%%  %s\n",
+                        regionCounts[i],
+                        percentage(regionCounts[i]),
+                        i == 0 ? ENTRY_FRAME_NAME : labelNames[i - 1]));
+            }
+        }
+
+        writer.write("\nHottest instruction addresses:\n");
+        Integer[] addresses = new Integer[executionCounts.length];
+
+        for (int i = 0; i < addresses.length; ++i) {
+            addresses[i] = i;
+        }
+
+        Arrays.sort(addresses, (a, b) -> Long.compare(executionCounts[b],
+                                                      executionCounts[a]));
+
+        for (int i = 0; i < Math.min(TOP_ADDRESSES, addresses.length); ++i) {
+            int address = addresses[i];
+
+            if (executionCounts[address] == 0) {
+                break;
+            }
+
+            writer.write(String.format("%12d %6.2f%%  0x%08x  %s\n",
+                                       executionCounts[address],
+                                       percentage(executionCounts[address]),
+                                       address,
+                                       sourceMap == null ?
+                                               describeAddress(address) :
+                                               sourceMap.describe(address)));
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Writes the sampled call stacks in the collapsed stack format understood
+     * by the flame graph tools: one line per distinct stack, frames separated
+     * by semicolons and followed by the number of samples.
+     *
+     * @param writer the writer to write to.
+     * @throws IOException if I/O fails.
+     */
+    public void writeCollapsedStacks(Writer writer) throws IOException {
+        writeCollapsedStacks(root, ENTRY_FRAME_NAME, writer);
+        writer.flush();
+    }
+
+    private void writeCollapsedStacks(CallTreeNode node,
+                                      String stack,
+                                      Writer writer) throws IOException {
+        if (node.samples > 0) {
+            writer.write(stack + " " + node.samples + "\n");
+        }
+
+        for (CallTreeNode child : node.children.values()) {
+            writeCollapsedStacks(child,
+                                 stack + ";" +
+                                 describeAddress(child.entryAddress),
+                                 writer);
+        }
+    }
+
+    // Returns the index of the label region containing 'address', or -1 if
+    // the address precedes all labels.
+    private int findRegion(int address) {
+        int index = Arrays.binarySearch(labelAddresses, address);
+
+        if (index < 0) {
+            return -index - 2;
+        }
+
+        // Several labels may share an address; take the last of them.
+        while (index + 1 < labelAddresses.length
+                && labelAddresses[index + 1] == address) {
+            index++;
+        }
+
+        return index;
+    }
+
+    private String describeAddress(int address) {
+        int region = findRegion(address);
+
+        if (region < 0) {
+            return String.format("0x%08x", address);
+        }
+
+        int offset = address - labelAddresses[region];
+        return offset == 0 ? labelNames[region] :
+                             labelNames[region] + "+" + offset;
+    }
+
+    private double percentage(long count) {
+        return totalInstructions == 0 ? 0.0 :
+                                        100.0 * count / totalInstructions;
+    }
+}
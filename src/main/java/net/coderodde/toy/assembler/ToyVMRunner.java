@@ -0,0 +1,377 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class implements a runner executing many ToyVM images concurrently in
+ * one JVM. Each image gets its own {@link ToyVMInterpreter} and its own output
+ * buffer, into which the interrupts 1 and 2 print. The instances are time
+ * sliced: a worker of a work-stealing pool takes an instance from a shared run
+ * queue, executes at most {@code timeSlice} of its instructions and puts it
+ * back at the end of the queue unless it is done, so that a long-running
+ * program does not hold up the short ones. An instance is stopped once it has
+ * executed {@code instructionBudget} instructions without halting.
+ * <p>
+ * Since each running instance holds its own memory, at most
+ * {@code WINDOW_FACTOR * parallelism} instances are in the run queue at a
+ * time; the next image is admitted only when an instance is done, so that
+ * any number of images runs in bounded memory.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Apr 3, 2016)
+ */
+public final class ToyVMRunner {
+
+    public static final long DEFAULT_INSTRUCTION_BUDGET = 100_000_000L;
+    public static final long DEFAULT_TIME_SLICE = 10_000L;
+
+    /**
+     * The number of instances admitted to the run queue per worker.
+     */
+    public static final int WINDOW_FACTOR = 4;
+
+    /**
+     * The outcome of running a single image.
+     */
+    public enum Status {
+        HALTED,
+        BUDGET_EXHAUSTED,
+        FAILED
+    }
+
+    /**
+     * The result of running a single image.
+     */
+    public static final class Result {
+
+        private final Status status;
+        private final String output;
+        private final long instructionCount;
+        private final String errorMessage;
+
+        Result(Status status,
+               String output,
+               long instructionCount,
+               String errorMessage) {
+            this.status = status;
+            this.output = output;
+            this.instructionCount = instructionCount;
+            this.errorMessage = errorMessage;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the text printed by the program, each byte decoded as an
+         * ISO-8859-1 character.
+         *
+         * @return the output of the program.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Returns the number of instructions the program executed. For a
+         * failed program, the instruction that failed is not counted.
+         *
+         * @return the number of executed instructions.
+         */
+        public long getInstructionCount() {
+            return instructionCount;
+        }
+
+        /**
+         * Returns the message of the error that stopped the program.
+         *
+         * @return the error message, or {@code null} if the program did not
+         *         fail.
+         */
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+
+    /**
+     * The results of a run together with its throughput.
+     */
+    public static final class Report {
+
+        private final List<Result> results;
+        private final long elapsedNanos;
+
+        Report(List<Result> results, long elapsedNanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the results in the order of the images.
+         *
+         * @return the list of results.
+         */
+        public List<Result> getResults() {
+            return results;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getProgramsPerSecond() {
+            return elapsedNanos == 0L ? 0.0 :
+                                        results.size() * 1e9 / elapsedNanos;
+        }
+
+        public long getTotalInstructionCount() {
+            long total = 0L;
+
+            for (Result result : results) {
+                total += result.getInstructionCount();
+            }
+
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            int[] counts = new int[Status.values().length];
+
+            for (Result result : results) {
+                counts[result.getStatus().ordinal()]++;
+            }
+
+            return String.format(
+                    "%d programs (%d halted, %d out of budget, %d failed), " +
+                    "%d instructions in %.3f s, %.1f programs/s",
+                    results.size(),
+                    counts[Status.HALTED.ordinal()],
+                    counts[Status.BUDGET_EXHAUSTED.ordinal()],
+                    counts[Status.FAILED.ordinal()],
+                    getTotalInstructionCount(),
+                    elapsedNanos / 1e9,
+                    getProgramsPerSecond());
+        }
+    }
+
+    private final int parallelism;
+    private long instructionBudget = DEFAULT_INSTRUCTION_BUDGET;
+    private long timeSlice = DEFAULT_TIME_SLICE;
+    private int memorySize = ToyVMInterpreter.DEFAULT_MEMORY_SIZE;
+    private int stackSize = ToyVMInterpreter.DEFAULT_STACK_SIZE;
+    private HostFunctionRegistry hostFunctionRegistry =
+            HostFunctionRegistry.STANDARD;
+    // The largest number of instances holding an interpreter at once during
+    // the last run.
+    private final AtomicInteger peakLiveInstances = new AtomicInteger();
+    private final AtomicInteger liveInstances = new AtomicInteger();
+
+    public ToyVMRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ToyVMRunner(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "The parallelism must be positive: " + parallelism + ".");
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    public void setInstructionBudget(long instructionBudget) {
+        this.instructionBudget = checkPositive(instructionBudget,
+                                               "instruction budget");
+    }
+
+    public void setTimeSlice(long timeSlice) {
+        this.timeSlice = checkPositive(timeSlice, "time slice");
+    }
+
+    public void setMemorySize(int memorySize, int stackSize) {
+        checkPositive(memorySize, "memory size");
+        checkPositive(stackSize, "stack size");
+        this.memorySize = memorySize;
+        this.stackSize = stackSize;
+    }
+
+    public void setHostFunctionRegistry(
+            HostFunctionRegistry hostFunctionRegistry) {
+        this.hostFunctionRegistry =
+                Objects.requireNonNull(hostFunctionRegistry,
+                                       "The host function registry is null.");
+    }
+
+    /**
+     * Runs all the images and waits until every instance has halted, failed
+     * or exhausted its budget.
+     *
+     * @param images the images to run.
+     * @return the report of the run.
+     */
+    public Report run(List<byte[]> images) {
+        Objects.requireNonNull(images, "The image list is null.");
+        List<Instance> instances = new ArrayList<>(images.size());
+
+        for (byte[] image : images) {
+            instances.add(new Instance(
+                    Objects.requireNonNull(image, "An image is null.")));
+        }
+
+        int window = Math.min(instances.size(), WINDOW_FACTOR * parallelism);
+        Queue<Instance> runQueue =
+                new ConcurrentLinkedQueue<>(instances.subList(0, window));
+        AtomicInteger nextAdmission = new AtomicInteger(window);
+        List<Callable<Void>> workers = new ArrayList<>(parallelism);
+        peakLiveInstances.set(0);
+        liveInstances.set(0);
+
+        for (int i = 0; i < parallelism; ++i) {
+            workers.add(() -> {
+                Instance instance;
+
+                while ((instance = runQueue.poll()) != null) {
+                    if (!instance.runSlice()) {
+                        // Go to the back of the queue so that the other
+                        // instances get their slices first.
+                        runQueue.add(instance);
+                        continue;
+                    }
+
+                    int next = nextAdmission.getAndIncrement();
+
+                    if (next < instances.size()) {
+                        runQueue.add(instances.get(next));
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+        long startTime = System.nanoTime();
+
+        try {
+            for (Future<Void> future : pool.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The run was interrupted.", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("A worker failed.", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long elapsedNanos = System.nanoTime() - startTime;
+        List<Result> results = new ArrayList<>(instances.size());
+
+        for (Instance instance : instances) {
+            results.add(instance.toResult());
+        }
+
+        return new Report(results, elapsedNanos);
+    }
+
+    int getPeakLiveInstances() {
+        return peakLiveInstances.get();
+    }
+
+    private static long checkPositive(long value, String name) {
+        if (value < 1L) {
+            throw new IllegalArgumentException(
+                    "The " + name + " must be positive: " + value + ".");
+        }
+
+        return value;
+    }
+
+    // The state of a single program. Only one slice of an instance runs at a
+    // time; the run queue hands the state over between the workers, and
+    // joining the workers publishes the final state to the caller of run().
+    private final class Instance {
+
+        private byte[] image;
+        private ToyVMInterpreter interpreter;
+        private final ByteArrayOutputStream output =
+                new ByteArrayOutputStream();
+        private long instructionCount;
+        private Status status;
+        private String errorMessage;
+
+        Instance(byte[] image) {
+            this.image = image;
+        }
+
+        // Runs a slice and returns true if the instance is done.
+        boolean runSlice() {
+            try {
+                if (interpreter == null) {
+                    // Allocate the memory only once the instance gets to run.
+                    interpreter = new ToyVMInterpreter(image,
+                                                       memorySize,
+                                                       stackSize);
+                    interpreter.setOutput(new ConsoleOutput(output));
+                    interpreter.setHostFunctionRegistry(hostFunctionRegistry);
+                    image = null;
+                    peakLiveInstances.accumulateAndGet(
+                            liveInstances.incrementAndGet(), Math::max);
+                }
+
+                interpreter.run(Math.min(timeSlice,
+                                         instructionBudget - instructionCount));
+                instructionCount = interpreter.getExecutedInstructions();
+
+                if (interpreter.isHalted()) {
+                    status = Status.HALTED;
+                } else if (instructionCount >= instructionBudget) {
+                    status = Status.BUDGET_EXHAUSTED;
+                }
+            } catch (RuntimeException ex) {
+                status = Status.FAILED;
+                errorMessage = ex.getMessage();
+
+                if (interpreter != null) {
+                    // Count the instructions of the failed slice as well.
+                    instructionCount = interpreter.getExecutedInstructions();
+                }
+            }
+
+            if (status == null) {
+                return false;
+            }
+
+            if (interpreter != null) {
+                interpreter = null;
+                liveInstances.decrementAndGet();
+            }
+
+            return true;
+        }
+
+        Result toResult() {
+            return new Result(status,
+                              new String(output.toByteArray(),
+                                         StandardCharsets.ISO_8859_1),
+                              instructionCount,
+                              errorMessage);
+        }
+    }
+}
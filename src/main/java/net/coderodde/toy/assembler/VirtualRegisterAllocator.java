@@ -0,0 +1,659 @@
+package net.coderodde.toy.assembler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class implements a linear-scan register allocator mapping the virtual
+ * registers {@code v0}, {@code v1}, ... onto the physical registers that are
+ * not referenced explicitly in the source code. The live interval of a virtual
+ * register spans from its first to its last reference in the source order,
+ * extended over the loops (backward jumps) it is live across. Whenever the
+ * physical registers run out, the virtual register whose interval ends last is
+ * spilled into a word in the data region, and each instruction referencing it
+ * loads it into a scratch register before and stores it back after.
+ * <p>
+ * The allocation is done over the entire source file. A virtual register live
+ * across a {@code call} instruction never shares its physical register with a
+ * virtual register referenced in the code reachable from the callee, so the
+ * callee may not clobber it. A call whose target is not a label is assumed to
+ * reach the entire source file.
+ *
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Mar 22, 2016)
+ */
+public class VirtualRegisterAllocator {
+
+    private static final String COMMENT_START_TOKEN = "//";
+    private static final String SPILL_SLOT_PREFIX = "__spill_";
+    private static final String[] PHYSICAL_REGISTER_NAMES = {
+        "reg1", "reg2", "reg3", "reg4"
+    };
+
+    private static final int USE = 1;
+    private static final int DEF = 2;
+
+    // Maps each mnemonic to the access types of its operands. The access type
+    // of the mnemonic token itself is always zero.
+    private static final Map<String, int[]> mapMnemonicToOperandAccess
+            = new HashMap<>();
+
+    static {
+        mapMnemonicToOperandAccess.put("add",    new int[]{ 0, USE, USE|DEF });
+        mapMnemonicToOperandAccess.put("mul",    new int[]{ 0, USE, USE|DEF });
+        mapMnemonicToOperandAccess.put("div",    new int[]{ 0, USE, USE|DEF });
+        mapMnemonicToOperandAccess.put("mod",    new int[]{ 0, USE, USE|DEF });
+        mapMnemonicToOperandAccess.put("neg",    new int[]{ 0, USE | DEF });
+        mapMnemonicToOperandAccess.put("cmp",    new int[]{ 0, USE, USE });
+        mapMnemonicToOperandAccess.put("load",   new int[]{ 0, DEF, 0 });
+        mapMnemonicToOperandAccess.put("store",  new int[]{ 0, USE, 0 });
+        mapMnemonicToOperandAccess.put("const",  new int[]{ 0, DEF, 0 });
+        mapMnemonicToOperandAccess.put("rload",  new int[]{ 0, DEF, USE });
+        mapMnemonicToOperandAccess.put("rstore", new int[]{ 0, USE, USE });
+        mapMnemonicToOperandAccess.put("memcpy",
+                                       new int[]{ 0, USE, USE, USE });
+        mapMnemonicToOperandAccess.put("memset",
+                                       new int[]{ 0, USE, USE, USE });
+        mapMnemonicToOperandAccess.put("push",   new int[]{ 0, USE });
+        mapMnemonicToOperandAccess.put("pop",    new int[]{ 0, DEF });
+        mapMnemonicToOperandAccess.put("lsp",    new int[]{ 0, DEF });
+    }
+
+    // The access types of the immediate forms 'op regi #constant'.
+    private static final int[] IMMEDIATE_ARITHMETIC_ACCESS =
+            new int[]{ 0, USE | DEF, 0 };
+    private static final int[] IMMEDIATE_COMPARE_ACCESS =
+            new int[]{ 0, USE, 0 };
+
+    private final String fileName;
+    private final List<String> sourceCodeLineList;
+    private final List<String> allocatedLineList = new ArrayList<>();
+    private final List<Integer> lineNumberList = new ArrayList<>();
+
+    private final String[] labels;
+    private final String[][] tokens;
+    // The text following the base register of the memory operand of each
+    // line, such as "+4]" in "rload reg1 [v0+4]"; the base itself is kept as
+    // a separate token so that it may be allocated like any other operand.
+    private final String[] memoryOperandSuffixes;
+    private final Map<String, Integer> mapLabelToLineIndex = new HashMap<>();
+    private final Map<String, LiveInterval> mapNameToLiveInterval
+            = new LinkedHashMap<>();
+    private final List<Byte> freePhysicalRegisterList = new ArrayList<>();
+    private int spilledRegisters;
+
+    private static final class LiveInterval {
+        final String name;
+        int start;
+        int end;
+        boolean firstAccessIsUse;
+        byte register = -1;
+        // The virtual registers that may not share the physical register of
+        // this one because one of them is live across a call the other is
+        // referenced in.
+        final List<LiveInterval> callConflictList = new ArrayList<>();
+
+        LiveInterval(String name, int lineIndex, boolean firstAccessIsUse) {
+            this.name = name;
+            this.start = lineIndex;
+            this.end = lineIndex;
+            this.firstAccessIsUse = firstAccessIsUse;
+        }
+
+        boolean isSpilled() {
+            return register < 0;
+        }
+    }
+
+    public VirtualRegisterAllocator(String fileName,
+                                    List<String> sourceCodeLineList) {
+        this.fileName = Objects.requireNonNull(fileName,
+                                               "The input file name is null.");
+        this.sourceCodeLineList =
+                Objects.requireNonNull(sourceCodeLineList,
+                                       "The input source code line list is " +
+                                       "null.");
+        this.labels = new String[sourceCodeLineList.size()];
+        this.tokens = new String[sourceCodeLineList.size()][];
+        this.memoryOperandSuffixes = new String[sourceCodeLineList.size()];
+    }
+
+    /**
+     * Allocates the physical registers and rewrites the source code.
+     *
+     * @return the rewritten source code lines.
+     */
+    public List<String> allocate() {
+        parseLines();
+
+        if (mapNameToLiveInterval.isEmpty()) {
+            for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+                allocatedLineList.add(sourceCodeLineList.get(i));
+                lineNumberList.add(i + 1);
+            }
+
+            return allocatedLineList;
+        }
+
+        extendLiveIntervalsOverLoops();
+        addCallConflicts();
+        List<LiveInterval> liveIntervalList =
+                new ArrayList<>(mapNameToLiveInterval.values());
+        liveIntervalList.sort((a, b) -> Integer.compare(a.start, b.start));
+
+        int scratchRegisters = 0;
+        linearScan(liveIntervalList, scratchRegisters);
+
+        // Each spilled operand needs a scratch register. Since reserving
+        // scratch registers may cause more spills, repeat until the number of
+        // reserved scratch registers suffices.
+        for (int needed = countNeededScratchRegisters();
+                needed > scratchRegisters;
+                needed = countNeededScratchRegisters()) {
+            if (needed > freePhysicalRegisterList.size()) {
+                throw new AssemblyException(
+                        "Error in file \"" + fileName + "\": not enough " +
+                        "free physical registers for the spill code of the " +
+                        "virtual registers.");
+            }
+
+            scratchRegisters = needed;
+            linearScan(liveIntervalList, scratchRegisters);
+        }
+
+        List<Byte> scratchRegisterList = freePhysicalRegisterList.subList(
+                freePhysicalRegisterList.size() - scratchRegisters,
+                freePhysicalRegisterList.size());
+        rewrite(scratchRegisterList);
+        return allocatedLineList;
+    }
+
+    /**
+     * Returns the original line number of the {@code index}th rewritten line.
+     *
+     * @param index the index of the rewritten line.
+     * @return the line number in the original source code.
+     */
+    public int getLineNumber(int index) {
+        return lineNumberList.get(index);
+    }
+
+    public int getNumberOfSpilledRegisters() {
+        return spilledRegisters;
+    }
+
+    private void parseLines() {
+        boolean[] physicalRegisterUsed =
+                new boolean[PHYSICAL_REGISTER_NAMES.length];
+
+        for (int i = 0; i < sourceCodeLineList.size(); ++i) {
+            String line = sourceCodeLineList.get(i)
+                                            .split(COMMENT_START_TOKEN)[0]
+                                            .trim();
+            int colonIndex = line.indexOf(":");
+
+            if (colonIndex != -1) {
+                labels[i] = line.substring(0, colonIndex).trim();
+                mapLabelToLineIndex.put(labels[i], i);
+                line = line.substring(colonIndex + 1).trim();
+            }
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            tokens[i] = line.split("\\s+");
+            splitMemoryOperand(i);
+            int[] operandAccess = getOperandAccess(tokens[i]);
+
+            for (int j = 1; j < tokens[i].length; ++j) {
+                int registerIndex =
+                        Arrays.asList(PHYSICAL_REGISTER_NAMES)
+                              .indexOf(tokens[i][j]);
+
+                if (registerIndex != -1) {
+                    physicalRegisterUsed[registerIndex] = true;
+                } else if (isVirtualRegister(tokens[i][j])
+                        && operandAccess != null
+                        && j < operandAccess.length
+                        && operandAccess[j] != 0) {
+                    recordAccess(tokens[i][j], i, operandAccess[j]);
+                }
+            }
+        }
+
+        for (int i = 0; i < PHYSICAL_REGISTER_NAMES.length; ++i) {
+            if (!physicalRegisterUsed[i]) {
+                freePhysicalRegisterList.add((byte) i);
+            }
+        }
+    }
+
+    private void recordAccess(String name, int lineIndex, int access) {
+        LiveInterval liveInterval = mapNameToLiveInterval.get(name);
+
+        if (liveInterval == null) {
+            mapNameToLiveInterval.put(
+                    name,
+                    new LiveInterval(name, lineIndex, (access & USE) != 0));
+        } else {
+            liveInterval.end = lineIndex;
+        }
+    }
+
+    // A virtual register is live across a loop if it is live at the loop
+    // entry or if it is read in the loop body before being written.
+    private void extendLiveIntervalsOverLoops() {
+        List<int[]> backEdgeList = new ArrayList<>();
+
+        for (int i = 0; i < tokens.length; ++i) {
+            if (tokens[i] == null || tokens[i].length != 2) {
+                continue;
+            }
+
+            switch (tokens[i][0]) {
+                case "ja":
+                case "je":
+                case "jb":
+                case "jmp":
+                    Integer targetIndex = mapLabelToLineIndex.get(tokens[i][1]);
+
+                    if (targetIndex != null && targetIndex <= i) {
+                        backEdgeList.add(new int[]{ targetIndex, i });
+                    }
+            }
+        }
+
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (int[] backEdge : backEdgeList) {
+                int loopStart = backEdge[0];
+                int loopEnd   = backEdge[1];
+
+                for (LiveInterval liveInterval :
+                        mapNameToLiveInterval.values()) {
+                    if (liveInterval.start < loopStart
+                            && liveInterval.end >= loopStart
+                            && liveInterval.end < loopEnd) {
+                        liveInterval.end = loopEnd;
+                        changed = true;
+                    } else if (liveInterval.firstAccessIsUse
+                            && liveInterval.start >= loopStart
+                            && liveInterval.start <= loopEnd
+                            && (liveInterval.start > loopStart
+                                || liveInterval.end < loopEnd)) {
+                        liveInterval.start = loopStart;
+                        liveInterval.end = Math.max(liveInterval.end, loopEnd);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void addCallConflicts() {
+        for (int i = 0; i < tokens.length; ++i) {
+            if (tokens[i] == null || !tokens[i][0].equals("call")) {
+                continue;
+            }
+
+            boolean[] calleeLines = findCalleeLines(i);
+
+            for (LiveInterval across : mapNameToLiveInterval.values()) {
+                if (across.start >= i || across.end <= i) {
+                    continue;
+                }
+
+                for (LiveInterval inside : mapNameToLiveInterval.values()) {
+                    if (inside != across
+                            && overlaps(inside, calleeLines)
+                            && !across.callConflictList.contains(inside)) {
+                        across.callConflictList.add(inside);
+                        inside.callConflictList.add(across);
+                    }
+                }
+            }
+        }
+    }
+
+    // Marks the lines reachable from the target of the call on the line
+    // 'callLineIndex' until the matching returns, including the nested
+    // callees.
+    private boolean[] findCalleeLines(int callLineIndex) {
+        boolean[] reached = new boolean[tokens.length];
+        Deque<Integer> lineIndexStack = new ArrayDeque<>();
+        lineIndexStack.push(findTarget(callLineIndex));
+
+        while (!lineIndexStack.isEmpty()) {
+            int i = lineIndexStack.pop();
+
+            if (i < 0) {
+                Arrays.fill(reached, true);
+                return reached;
+            }
+
+            if (i >= tokens.length || reached[i]) {
+                continue;
+            }
+
+            reached[i] = true;
+
+            if (tokens[i] == null) {
+                lineIndexStack.push(i + 1);
+                continue;
+            }
+
+            switch (tokens[i][0]) {
+                case "ret":
+                case "halt":
+                    break;
+
+                case "jmp":
+                    lineIndexStack.push(findTarget(i));
+                    break;
+
+                case "ja":
+                case "je":
+                case "jb":
+                case "call":
+                    lineIndexStack.push(findTarget(i));
+                    lineIndexStack.push(i + 1);
+                    break;
+
+                default:
+                    lineIndexStack.push(i + 1);
+            }
+        }
+
+        return reached;
+    }
+
+    // Returns the line index of the label the branch or call on the line
+    // 'lineIndex' targets, or -1 if the target is not a label.
+    private int findTarget(int lineIndex) {
+        Integer targetIndex = tokens[lineIndex].length == 2 ?
+                              mapLabelToLineIndex.get(tokens[lineIndex][1]) :
+                              null;
+        return targetIndex == null ? -1 : targetIndex;
+    }
+
+    private static boolean overlaps(LiveInterval liveInterval,
+                                    boolean[] lines) {
+        for (int i = liveInterval.start; i <= liveInterval.end; ++i) {
+            if (lines[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void linearScan(List<LiveInterval> liveIntervalList,
+                            int scratchRegisters) {
+        List<Byte> registerPool = new ArrayList<>(
+                freePhysicalRegisterList.subList(
+                        0,
+                        freePhysicalRegisterList.size() - scratchRegisters));
+        // Sorted by the interval end.
+        List<LiveInterval> activeList = new ArrayList<>();
+        spilledRegisters = 0;
+
+        for (LiveInterval liveInterval : liveIntervalList) {
+            liveInterval.register = -1;
+        }
+
+        for (LiveInterval current : liveIntervalList) {
+            while (!activeList.isEmpty()
+                    && activeList.get(0).end < current.start) {
+                registerPool.add(0, activeList.remove(0).register);
+            }
+
+            for (int i = 0; i < registerPool.size(); ++i) {
+                if (isAllowed(current, registerPool.get(i))) {
+                    current.register = registerPool.remove(i);
+                    break;
+                }
+            }
+
+            if (!current.isSpilled()) {
+                insertActive(activeList, current);
+                continue;
+            }
+
+            spilledRegisters++;
+
+            if (activeList.isEmpty()) {
+                continue;
+            }
+
+            LiveInterval last = activeList.get(activeList.size() - 1);
+
+            if (last.end > current.end && isAllowed(current, last.register)) {
+                current.register = last.register;
+                last.register = -1;
+                activeList.remove(activeList.size() - 1);
+                insertActive(activeList, current);
+            }
+        }
+    }
+
+    private static boolean isAllowed(LiveInterval liveInterval,
+                                     byte register) {
+        for (LiveInterval conflict : liveInterval.callConflictList) {
+            if (conflict.register == register) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void insertActive(List<LiveInterval> activeList,
+                                     LiveInterval liveInterval) {
+        int index = 0;
+
+        while (index < activeList.size()
+                && activeList.get(index).end <= liveInterval.end) {
+            index++;
+        }
+
+        activeList.add(index, liveInterval);
+    }
+
+    private int countNeededScratchRegisters() {
+        int needed = 0;
+
+        for (String[] lineTokens : tokens) {
+            if (lineTokens == null) {
+                continue;
+            }
+
+            needed = Math.max(needed, getSpilledOperands(lineTokens).size());
+        }
+
+        return needed;
+    }
+
+    private List<String> getSpilledOperands(String[] lineTokens) {
+        int[] operandAccess = getOperandAccess(lineTokens);
+
+        if (operandAccess == null) {
+            return Collections.<String>emptyList();
+        }
+
+        List<String> spilledOperandList = new ArrayList<>(2);
+        int operands = Math.min(lineTokens.length, operandAccess.length);
+
+        for (int j = 1; j < operands; ++j) {
+            LiveInterval liveInterval =
+                    mapNameToLiveInterval.get(lineTokens[j]);
+
+            if (operandAccess[j] != 0
+                    && liveInterval != null
+                    && liveInterval.isSpilled()
+                    && !spilledOperandList.contains(lineTokens[j])) {
+                spilledOperandList.add(lineTokens[j]);
+            }
+        }
+
+        return spilledOperandList;
+    }
+
+    private void rewrite(List<Byte> scratchRegisterList) {
+        for (LiveInterval liveInterval : mapNameToLiveInterval.values()) {
+            if (liveInterval.isSpilled()) {
+                allocatedLineList.add("word " + SPILL_SLOT_PREFIX +
+                                      liveInterval.name + " 0");
+                lineNumberList.add(liveInterval.start + 1);
+            }
+        }
+
+        for (int i = 0; i < tokens.length; ++i) {
+            int[] operandAccess = tokens[i] == null ?
+                                  null :
+                                  getOperandAccess(tokens[i]);
+
+            if (operandAccess == null || !hasVirtualRegisters(tokens[i])) {
+                allocatedLineList.add(sourceCodeLineList.get(i));
+                lineNumberList.add(i + 1);
+                continue;
+            }
+
+            String label = labels[i] == null ? "" : labels[i] + ": ";
+            List<String> spilledOperandList = getSpilledOperands(tokens[i]);
+            List<String> storeList = new ArrayList<>(2);
+            String[] rewrittenTokens = tokens[i].clone();
+
+            for (int j = 1; j < tokens[i].length; ++j) {
+                LiveInterval liveInterval =
+                        mapNameToLiveInterval.get(tokens[i][j]);
+
+                if (liveInterval == null
+                        || j >= operandAccess.length
+                        || operandAccess[j] == 0) {
+                    continue;
+                }
+
+                if (!liveInterval.isSpilled()) {
+                    rewrittenTokens[j] =
+                            PHYSICAL_REGISTER_NAMES[liveInterval.register];
+                    continue;
+                }
+
+                String scratch = PHYSICAL_REGISTER_NAMES[
+                        scratchRegisterList.get(
+                                spilledOperandList.indexOf(tokens[i][j]))];
+                String spillSlot = SPILL_SLOT_PREFIX + liveInterval.name;
+                rewrittenTokens[j] = scratch;
+
+                if ((operandAccess[j] & USE) != 0) {
+                    emitLine(label + "load " + scratch + " " + spillSlot, i);
+                    label = "";
+                }
+
+                if ((operandAccess[j] & DEF) != 0) {
+                    storeList.add("store " + scratch + " " + spillSlot);
+                }
+            }
+
+            if (memoryOperandSuffixes[i] != null) {
+                rewrittenTokens[2] = "[" + rewrittenTokens[2] +
+                                     memoryOperandSuffixes[i];
+            }
+
+            emitLine(label + String.join(" ", rewrittenTokens), i);
+
+            for (String store : storeList) {
+                emitLine(store, i);
+            }
+        }
+    }
+
+    // Replaces the memory operand "[base+displacement]" of the line
+    // 'lineIndex' with its base and remembers the rest of it.
+    private void splitMemoryOperand(int lineIndex) {
+        String[] lineTokens = tokens[lineIndex];
+
+        if (lineTokens.length != 3
+                || !lineTokens[2].startsWith("[")
+                || !(lineTokens[0].equals("rload")
+                     || lineTokens[0].equals("rstore"))) {
+            return;
+        }
+
+        String operand = lineTokens[2];
+        int baseEnd = 1;
+
+        while (baseEnd < operand.length()
+                && "+-]".indexOf(operand.charAt(baseEnd)) < 0) {
+            baseEnd++;
+        }
+
+        lineTokens[2] = operand.substring(1, baseEnd);
+        memoryOperandSuffixes[lineIndex] = operand.substring(baseEnd);
+    }
+
+    private void emitLine(String line, int lineIndex) {
+        allocatedLineList.add(line);
+        lineNumberList.add(lineIndex + 1);
+    }
+
+    private boolean hasVirtualRegisters(String[] lineTokens) {
+        for (int j = 1; j < lineTokens.length; ++j) {
+            if (mapNameToLiveInterval.containsKey(lineTokens[j])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int[] getOperandAccess(String[] lineTokens) {
+        int[] operandAccess = mapMnemonicToOperandAccess.get(lineTokens[0]);
+
+        if (operandAccess == null
+                || lineTokens.length != 3
+                || !lineTokens[2].startsWith(ToyVMAssembler.IMMEDIATE_PREFIX)) {
+            return operandAccess;
+        }
+
+        switch (lineTokens[0]) {
+            case "add":
+            case "mul":
+            case "div":
+            case "mod":
+                return IMMEDIATE_ARITHMETIC_ACCESS;
+
+            case "cmp":
+                return IMMEDIATE_COMPARE_ACCESS;
+
+            default:
+                return operandAccess;
+        }
+    }
+
+    private static boolean isVirtualRegister(String token) {
+        if (token.length() < 2 || token.charAt(0) != 'v') {
+            return false;
+        }
+
+        for (int i = 1; i < token.length(); ++i) {
+            if (!Character.isDigit(token.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package net.coderodde.toy.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsciiSourceAssemblerTest {
+
+    @Test
+    public void testFizzBuzzMatchesStringAssembler() throws IOException {
+        File file = new File("fizzbuzz.toy");
+        byte[] expected = new ToyVMAssembler(
+                "fizzbuzz.toy",
+                new SourceFileReader(file).toLineList()).assemble();
+        byte[] source = Files.readAllBytes(file.toPath());
+        assertArrayEquals(expected,
+                          new AsciiSourceAssembler("fizzbuzz.toy", source)
+                                  .assemble());
+
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(source.length);
+        directBuffer.put(source).flip();
+        assertArrayEquals(expected,
+                          new AsciiSourceAssembler("fizzbuzz.toy",
+                                                   directBuffer).assemble());
+    }
+
+    @Test
+    public void testMatchesStringAssembler() {
+        check("start: const reg1 -12 // comment\r\n" +
+              "\tload reg2 w\n" +
+              "store reg2 0x10\r" +
+              "jmp start\n" +
+              "call 0X20\n" +
+              "add reg1 #5\n" +
+              "cmp reg2 #'a'\n" +
+              "memcpy reg1 reg2 reg3\n" +
+              "\n" +
+              "a:\n" +
+              "b: int 0x2\n" +
+              "const reg3 s\n" +
+              "word w +7\n" +
+              "word v 0x7fffffffff\n" +
+              "str s \"a b\\nc\"\n" +
+              "str t \"x\"\n" +
+              "jb a\n" +
+              "ja b\n" +
+              "end:");
+    }
+
+    @Test
+    public void testUncommonSource() {
+        check("int 0x00000000000000041");
+        check("const reg1 0x-1");
+        check("str s \"a\u0001b\"");       // Control character.
+        check("nop\n" +
+              "1label: nop\n" +            // Name starting with a digit.
+              "jmp 1label");
+    }
+
+    @Test
+    public void testReportsErrorsLikeStringAssembler() {
+        checkRejected("nop\nfoo reg1\n");
+    }
+
+    @Test
+    public void testRejectsNamesOfAllMnemonics() {
+        checkRejected("hcall: halt");
+        checkRejected("reserve: jmp reserve");
+        checkRejected("word hcall 5");
+        checkRejected("str incbin \"x\"");
+    }
+
+    @Test
+    public void testRejectsSeparatorCharacterLiterals() {
+        checkRejected("const reg1 ':'");
+        checkRejected("const reg1 ' '");
+        checkRejected("cmp reg1 #':'");
+        check("const reg1 58\ncmp reg1 #'\\t'");
+    }
+
+    private static void checkRejected(String source) {
+        try {
+            new ToyVMAssembler("test", Arrays.asList(source.split("\n")))
+                    .assemble();
+            fail("An exception should have been thrown.");
+        } catch (AssemblyException expected) {
+            try {
+                new AsciiSourceAssembler(
+                        "test", source.getBytes(StandardCharsets.US_ASCII))
+                        .assemble();
+                fail("An exception should have been thrown.");
+            } catch (AssemblyException ex) {
+                assertEquals(expected.getMessage(), ex.getMessage());
+            }
+        }
+    }
+
+    private static void check(String source) {
+        byte[] expected = new ToyVMAssembler(
+                "test",
+                Arrays.asList(source.split("\r\n|\r|\n"))).assemble();
+        byte[] actual = new AsciiSourceAssembler(
+                "test",
+                source.getBytes(StandardCharsets.UTF_8)).assemble();
+        assertArrayEquals(expected, actual);
+    }
+}
@@ -0,0 +1,106 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BlockReordererTest {
+
+    @Test
+    public void testHotPathFallsThrough() {
+        List<String> lines = Arrays.asList("    cmp reg1 reg2",
+                                           "    ja cold",
+                                           "    jb cold",
+                                           "    halt",
+                                           "cold:",
+                                           "    jmp done",
+                                           "done: halt");
+        // Only the halt on line 4 is never executed.
+        ExecutionProfile profile =
+                new ExecutionProfile(new long[]{ 0, 9, 9, 9, 0, 0, 9, 9 });
+        BlockReorderer reorderer = new BlockReorderer(lines, profile);
+        assertEquals(Arrays.asList("    cmp reg1 reg2",
+                                   "    je __bb0",
+                                   "cold:",
+                                   "done: halt",
+                                   "__bb0:",
+                                   "    halt"),
+                     reorderer.reorder());
+        assertEquals(1, reorderer.getLineNumber(0));
+        assertEquals(2, reorderer.getLineNumber(1));
+        assertEquals(7, reorderer.getLineNumber(3));
+        assertEquals(4, reorderer.getLineNumber(5));
+    }
+
+    @Test
+    public void testKeepsSourceOrder() {
+        List<String> lines = Arrays.asList("loop: jmp loop");
+        assertEquals(lines,
+                     new BlockReorderer(lines,
+                                        new ExecutionProfile(new long[0]))
+                             .reorder());
+
+        // A numeric target may not be moved.
+        lines = Arrays.asList("jmp 6", "halt", "halt");
+        ExecutionProfile profile =
+                new ExecutionProfile(new long[]{ 0, 1, 0, 1 });
+        assertEquals(lines, new BlockReorderer(lines, profile).reorder());
+    }
+
+    @Test
+    public void testProfileRoundTrip() throws IOException {
+        StringWriter writer = new StringWriter();
+        new ExecutionProfile(new long[]{ 0, 5, 0, 7 }).write(writer);
+        assertEquals("1 5\n3 7\n", writer.toString());
+        ExecutionProfile profile =
+                ExecutionProfile.read(new StringReader(writer.toString()));
+        assertEquals(5L, profile.getCount(1));
+        assertEquals(0L, profile.getCount(2));
+        assertEquals(7L, profile.getCount(3));
+        assertEquals(0L, profile.getCount(100));
+    }
+
+    @Test
+    public void testReorderedFizzBuzz() throws IOException {
+        List<String> source =
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList();
+        ToyVMAssembler assembler = new ToyVMAssembler("fizzbuzz.toy", source);
+        assembler.setSourceMap(true);
+        byte[] image = assembler.assemble();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ToyVMProfiler profiler = profile(image, assembler, output);
+        String expectedOutput = output.toString();
+
+        assembler = new ToyVMAssembler("fizzbuzz.toy", source);
+        assembler.setSourceMap(true);
+        assembler.setExecutionProfile(profiler.getExecutionProfile());
+        image = assembler.assemble();
+        output.reset();
+        ToyVMProfiler reorderedProfiler = profile(image, assembler, output);
+        assertEquals(expectedOutput, output.toString());
+        // The branches around the rare "FizzBuzz" case are inverted.
+        assertTrue(reorderedProfiler.getTotalInstructions() <
+                   profiler.getTotalInstructions());
+    }
+
+    private static ToyVMProfiler profile(byte[] image,
+                                         ToyVMAssembler assembler,
+                                         ByteArrayOutputStream output) {
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(image);
+        interpreter.setOutput(new ConsoleOutput(output));
+        ToyVMProfiler profiler = new ToyVMProfiler(interpreter,
+                                                   image.length,
+                                                   assembler.getLabelMap(),
+                                                   1);
+        profiler.setSourceMap(assembler.getSourceMap());
+        profiler.run();
+        interpreter.flushOutput();
+        return profiler;
+    }
+}
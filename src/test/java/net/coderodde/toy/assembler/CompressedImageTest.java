@@ -0,0 +1,88 @@
+package net.coderodde.toy.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class CompressedImageTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] image = createImage(10_000);
+        byte[] container = CompressedImage.compress(image, 1000);
+        assertTrue(CompressedImage.isCompressed(ByteBuffer.wrap(container)));
+        assertFalse(CompressedImage.isCompressed(ByteBuffer.wrap(image)));
+
+        CompressedImage compressedImage =
+                CompressedImage.read(ByteBuffer.wrap(container));
+        assertEquals(10_000, compressedImage.getImageSize());
+        assertEquals(10, compressedImage.getBlockCount());
+        assertArrayEquals(image, compressedImage.decompress());
+
+        byte[] buffer = new byte[10_005];
+        compressedImage.decompress(buffer, 5, true);
+        assertArrayEquals(image, Arrays.copyOfRange(buffer, 5, 10_005));
+
+        byte[] block = new byte[1000];
+        compressedImage.decompressBlock(3, block, 0);
+        assertArrayEquals(Arrays.copyOfRange(image, 3000, 4000), block);
+    }
+
+    @Test
+    public void testPartialLastBlockAndEmptyImage() throws IOException {
+        byte[] image = createImage(2500);
+        CompressedImage compressedImage = CompressedImage.read(
+                ByteBuffer.wrap(CompressedImage.compress(image, 1000)));
+        assertEquals(3, compressedImage.getBlockCount());
+        assertEquals(500, compressedImage.getBlockLength(2));
+        assertArrayEquals(image, compressedImage.decompress());
+
+        assertArrayEquals(new byte[0],
+                          CompressedImage.read(ByteBuffer.wrap(
+                                  CompressedImage.compress(new byte[0], 16)))
+                                  .decompress());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDetectsChecksumMismatch() throws IOException {
+        byte[] container = CompressedImage.compress(createImage(100), 64);
+        container[12] ^= 1; // The checksum.
+        CompressedImage.read(ByteBuffer.wrap(container)).decompress();
+    }
+
+    @Test
+    public void testReadImage() throws IOException {
+        byte[] image = new ToyVMAssembler(
+                "fizzbuzz.toy",
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList())
+                .assemble();
+        File plainFile = temporaryFolder.newFile("plain.brick");
+        File compressedFile = temporaryFolder.newFile("compressed.brick");
+        FileUtilities.writeFile(plainFile, image);
+        FileUtilities.writeFile(compressedFile,
+                                CompressedImage.compress(image, 64));
+        assertArrayEquals(image, FileUtilities.readImage(plainFile));
+        assertArrayEquals(image, FileUtilities.readImage(compressedFile));
+    }
+
+    // Creates a compressible image.
+    private static byte[] createImage(int length) {
+        byte[] image = new byte[length];
+        Random random = new Random(13);
+
+        for (int i = 0; i < length; ++i) {
+            image[i] = (byte) (random.nextInt(8) + (i % 64 < 32 ? 0 : 'a'));
+        }
+
+        return image;
+    }
+}
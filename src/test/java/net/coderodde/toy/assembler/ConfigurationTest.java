@@ -0,0 +1,67 @@
+package net.coderodde.toy.assembler;
+
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+public class ConfigurationTest {
+
+    @Test
+    public void testDefaultRegisters() {
+        assertEquals(REG1, Configuration.DEFAULT.getRegisterCode("reg1"));
+        assertEquals(REG4, Configuration.DEFAULT.getRegisterCode("reg4"));
+        assertEquals(-1, Configuration.DEFAULT.getRegisterCode("reg5"));
+        assertEquals(-1, Configuration.DEFAULT.getRegisterCode(""));
+    }
+
+    @Test
+    public void testCustomConfiguration() {
+        Map<String, Byte> registerMap = new HashMap<>();
+        registerMap.put("a", (byte) 7);
+        registerMap.put("b", (byte) 200);
+        Map<String, Byte> opcodeMap = new HashMap<>();
+        opcodeMap.put("add", (byte) 0x70);
+        Configuration configuration =
+                new Configuration(registerMap,
+                                  opcodeMap,
+                                  ByteOrder.BIG_ENDIAN,
+                                  StandardCharsets.UTF_8);
+
+        ToyVMAssembler assembler =
+                new ToyVMAssembler("test",
+                                   Arrays.asList("add a b",
+                                                 "const a 0x01020304",
+                                                 "str s \"ä\""),
+                                   configuration);
+        assertTrue(Arrays.equals(
+                new byte[]{ 0x70, 7, (byte) 200,
+                            CONST, 7, 1, 2, 3, 4,
+                            (byte) 0xc3, (byte) 0xa4, 0 },
+                assembler.assemble()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThrowsOnOpcodeCollision() {
+        Map<String, Byte> opcodeMap = new HashMap<>();
+        opcodeMap.put("add", MUL);
+        new Configuration(Configuration.DEFAULT.getRegisterMap(),
+                          opcodeMap,
+                          ByteOrder.LITTLE_ENDIAN,
+                          StandardCharsets.ISO_8859_1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThrowsOnUnknownMnemonic() {
+        Map<String, Byte> opcodeMap = new HashMap<>();
+        opcodeMap.put("word", (byte) 0x70);
+        new Configuration(Configuration.DEFAULT.getRegisterMap(),
+                          opcodeMap,
+                          ByteOrder.LITTLE_ENDIAN,
+                          StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,110 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConsoleOutputTest {
+
+    @Test
+    public void testWriteInt() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ConsoleOutput output = new ConsoleOutput(bytes);
+        int[] values = { 0, 7, -7, 10, 1234567890, Integer.MAX_VALUE,
+                         Integer.MIN_VALUE };
+        StringBuilder expected = new StringBuilder();
+
+        for (int value : values) {
+            output.writeInt(value);
+            output.writeByte(' ');
+            expected.append(value).append(' ');
+        }
+
+        assertEquals(0, bytes.size());
+        output.flush();
+        assertEquals(expected.toString(), toString(bytes));
+    }
+
+    @Test
+    public void testFlushesInBatches() {
+        CountingChannel channel = new CountingChannel();
+        ConsoleOutput output = new ConsoleOutput(channel, 16);
+        StringBuilder expected = new StringBuilder();
+
+        for (int i = 0; i < 100; ++i) {
+            output.writeInt(i);
+            expected.append(i);
+        }
+
+        byte[] large = new byte[40];
+        Arrays.fill(large, (byte) 'x');
+        output.write(large, 0, large.length);
+        expected.append(new String(large, StandardCharsets.ISO_8859_1));
+        output.flush();
+        output.flush();
+
+        assertEquals(expected.toString(), toString(channel.bytes));
+        assertTrue(channel.writeCount < 30);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThrowsOnTooSmallBuffer() {
+        new ConsoleOutput(new ByteArrayOutputStream(), 8);
+    }
+
+    @Test
+    public void testInterpreterFlushesOnHalt() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(
+                assemble("const reg1 -42", "push reg1", "int 1", "halt"));
+        interpreter.setOutput(new ConsoleOutput(bytes));
+
+        for (int i = 0; i < 3; ++i) {
+            interpreter.step();
+        }
+
+        assertEquals(0, bytes.size());
+        interpreter.step();
+        assertEquals("-42", toString(bytes));
+    }
+
+    private static String toString(ByteArrayOutputStream bytes) {
+        return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] assemble(String... lines) {
+        return new ToyVMAssembler("test", Arrays.asList(lines)).assemble();
+    }
+
+    private static final class CountingChannel
+    implements WritableByteChannel {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int writeCount;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            writeCount++;
+
+            while (source.hasRemaining()) {
+                bytes.write(source.get());
+            }
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package net.coderodde.toy.assembler;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static net.coderodde.toy.assembler.IntegerLiteralParser.*;
+
+public class IntegerLiteralParserTest {
+
+    @Test
+    public void testDecimal() {
+        assertEquals(0, parse("0"));
+        assertEquals(42, parse("42"));
+        assertEquals(42, parse("+42"));
+        assertEquals(-7, parse("-7"));
+        assertEquals(10, parse("010"));
+        assertEquals(Integer.MAX_VALUE, parse("2147483647"));
+        assertEquals(Integer.MIN_VALUE, parse("-2147483648"));
+        assertEquals(NOT_AN_INTEGER, parse("2147483648"));
+        assertEquals(NOT_AN_INTEGER, parse("-2147483649"));
+    }
+
+    @Test
+    public void testPrefixed() {
+        assertEquals(0x2a, parse("0x2a"));
+        assertEquals(0x2a, parse("0X2A"));
+        assertEquals(-1, parse("0xffffffff"));
+        assertEquals(-1, parse("0x-1"));
+        assertEquals(0x41, parse("0x00000000000000041"));
+        assertEquals(-1, parse("0x7fffffffffffffff"));
+        assertEquals(NOT_AN_INTEGER, parse("0x8000000000000000"));
+        assertEquals(42, parse("0b101010"));
+        assertEquals(42, parse("0o52"));
+        assertEquals(NOT_AN_INTEGER, parse("0b102"));
+        assertEquals(NOT_AN_INTEGER, parse("0o8"));
+    }
+
+    @Test
+    public void testCharacter() {
+        assertEquals('a', parse("'a'"));
+        assertEquals('\n', parse("'\\n'"));
+        assertEquals('\'', parse("'\\''"));
+        assertEquals(0, parse("'\\0'"));
+        assertEquals(NOT_AN_INTEGER, parse("''"));
+        assertEquals(NOT_AN_INTEGER, parse("'ab'"));
+        assertEquals(NOT_AN_INTEGER, parse("'\\q'"));
+        // The separators of a line are not allowed.
+        assertEquals(NOT_AN_INTEGER, parse("':'"));
+        assertEquals(NOT_AN_INTEGER, parse("' '"));
+        assertEquals(NOT_AN_INTEGER, parse("'\t'"));
+        assertEquals('\t', parse("'\\t'"));
+        assertEquals(NOT_AN_INTEGER,
+                     IntegerLiteralParser.parse(new byte[]{ '\'', ':', '\'' },
+                                                0,
+                                                3));
+    }
+
+    @Test
+    public void testNonLiterals() {
+        assertEquals(NOT_AN_INTEGER, parse(""));
+        assertEquals(NOT_AN_INTEGER, parse("-"));
+        assertEquals(NOT_AN_INTEGER, parse("0x"));
+        assertEquals(NOT_AN_INTEGER, parse("0x-"));
+        assertEquals(NOT_AN_INTEGER, parse("label"));
+        assertEquals(NOT_AN_INTEGER, parse("1label"));
+        assertEquals(NOT_AN_INTEGER, parse("-0x1"));
+    }
+
+    @Test
+    public void testBytes() {
+        byte[] bytes = "jmp 0x10 end".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(NOT_AN_INTEGER, parse(bytes, 0, 3));
+        assertEquals(16, parse(bytes, 4, 8));
+        assertEquals(NOT_AN_INTEGER, parse(bytes, 9, 12));
+    }
+}
@@ -0,0 +1,128 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+public class PagedImageMemoryTest {
+
+    private static final int IMAGE_SIZE = 512 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testFaultsInOnlyTouchedPages() throws IOException {
+        byte[] image = createImage();
+        File file = temporaryFolder.newFile("test.brick");
+        Files.write(file.toPath(), image);
+        checkRun(PagedImageMemory.map(file,
+                                      ToyVMInterpreter.DEFAULT_MEMORY_SIZE));
+        // The store went to a private copy of the page.
+        assertArrayEquals(image, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testDecompressesOnlyTouchedBlocks() throws IOException {
+        File file = temporaryFolder.newFile("test.brick");
+        byte[] container = CompressedImage.compress(
+                createImage(), PagedImageMemory.DEFAULT_PAGE_SIZE);
+        Files.write(file.toPath(), container);
+        checkRun(PagedImageMemory.map(file,
+                                      ToyVMInterpreter.DEFAULT_MEMORY_SIZE));
+    }
+
+    @Test
+    public void testWordsAcrossPages() throws IOException {
+        byte[] image = new byte[2 * PagedImageMemory.DEFAULT_PAGE_SIZE];
+        File file = temporaryFolder.newFile("test.brick");
+        Files.write(file.toPath(), image);
+        PagedImageMemory memory = PagedImageMemory.map(file, image.length);
+        int address = PagedImageMemory.DEFAULT_PAGE_SIZE - 2;
+        memory.setWord(address, 0x12345678);
+        assertEquals(0x12345678, memory.getWord(address));
+        assertEquals((byte) 0x34, memory.getByte(address + 2));
+        assertEquals(2, memory.getResidentPageCount());
+
+        memory.fill(address - 10, 20, (byte) 7);
+        memory.copy(address - 10, 0, 20);
+        assertEquals(0x07070707, memory.getWord(16));
+        assertEquals(0, memory.getByte(20));
+    }
+
+    @Test
+    public void testAllocatesReservedRegion() throws IOException {
+        ToyVMAssembler assembler =
+                new ToyVMAssembler("test",
+                                   Arrays.asList("const reg1 buffer",
+                                                 "const reg2 7",
+                                                 "rstore reg2 reg1",
+                                                 "rload reg3 reg1",
+                                                 "push reg3",
+                                                 "int 1",
+                                                 "halt",
+                                                 "reserve buffer 100000"));
+        byte[] image = assembler.assemble();
+        File file = temporaryFolder.newFile("test.brick");
+        Files.write(file.toPath(), image);
+        PagedImageMemory memory = PagedImageMemory.map(file, 200000);
+        int codeSize = image.length - new ImageHeader(0).getSize();
+        assertEquals(codeSize + 100000, memory.getImageSize());
+
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(memory, 1024);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new PrintStream(output, true));
+        interpreter.run();
+        assertEquals("7", output.toString());
+    }
+
+    @Test(expected = ToyVMException.class)
+    public void testBadAccessIsReported() throws IOException {
+        ToyVMAssembler assembler =
+                new ToyVMAssembler("test",
+                                   Arrays.asList("const reg1 -1",
+                                                 "rload reg2 reg1",
+                                                 "halt"));
+        File file = temporaryFolder.newFile("test.brick");
+        Files.write(file.toPath(), assembler.assemble());
+        new ToyVMInterpreter(PagedImageMemory.map(file, 1024), 64).run();
+    }
+
+    // Runs the program at the start of the image and checks that only the
+    // page of the code and the page of the stack became resident.
+    private void checkRun(PagedImageMemory memory) {
+        assertEquals(IMAGE_SIZE, memory.getImageSize());
+        assertEquals(0, memory.getResidentPageCount());
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(memory,
+                                     ToyVMInterpreter.DEFAULT_STACK_SIZE);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new PrintStream(output, true));
+        interpreter.run();
+        assertEquals("42", output.toString());
+        assertEquals(42, interpreter.getRegister(REG1));
+        assertEquals(2, memory.getResidentPageCount());
+    }
+
+    private static byte[] createImage() {
+        ToyVMAssembler assembler =
+                new ToyVMAssembler("test",
+                                   Arrays.asList("load reg1 my_word",
+                                                 "const reg2 1",
+                                                 "add reg2 reg1",
+                                                 "store reg1 my_word",
+                                                 "push reg1",
+                                                 "int 1",
+                                                 "halt",
+                                                 "word my_word 41"));
+        return Arrays.copyOf(assembler.assemble(), IMAGE_SIZE);
+    }
+}
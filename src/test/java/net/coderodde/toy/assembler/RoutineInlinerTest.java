@@ -0,0 +1,111 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoutineInlinerTest {
+
+    private static final List<String> TWICE = Arrays.asList(
+            "    const reg1 3",
+            "    call twice",
+            "    call twice",
+            "    push reg1",
+            "    int 1",
+            "    halt",
+            "twice: // Doubles reg1 unless it is 3.",
+            "    cmp reg1 #3",
+            "    je skip",
+            "    add reg1 reg1",
+            "    ret",
+            "skip:",
+            "    const reg1 4",
+            "    ret");
+
+    @Test
+    public void testInlinesLeafRoutine() {
+        RoutineInliner inliner = new RoutineInliner(TWICE, 8);
+        List<String> lines = inliner.inline();
+        assertEquals(2, inliner.getNumberOfInlinedCalls());
+        assertEquals(Arrays.asList("    const reg1 3",
+                                   "__inl0_twice:",
+                                   "    cmp reg1 #3",
+                                   "    je __inl0_skip",
+                                   "    add reg1 reg1",
+                                   "    jmp __inl0_ret",
+                                   "__inl0_skip:",
+                                   "    const reg1 4",
+                                   "__inl0_ret:"),
+                     lines.subList(0, 9));
+        assertEquals(7, inliner.getLineNumber(1));
+        assertEquals(11, inliner.getLineNumber(5));
+        assertEquals(2, inliner.getLineNumber(8));
+        assertEquals("8", run(TWICE, 8));
+    }
+
+    @Test
+    public void testSkipsLargeAndNonLeafRoutines() {
+        assertEquals(0, inlinedCalls(TWICE, 4));
+        // Only the leaf routine is inlined.
+        assertEquals(2, inlinedCalls(Arrays.asList("call inner",
+                                                   "call outer",
+                                                   "halt",
+                                                   "outer: call inner",
+                                                   "ret",
+                                                   "inner: ret"),
+                                     8));
+        // The routine pops its return address.
+        assertEquals(0, inlinedCalls(Arrays.asList("call routine",
+                                                   "halt",
+                                                   "routine: pop reg1",
+                                                   "push reg1",
+                                                   "ret"),
+                                     8));
+    }
+
+    @Test
+    public void testStackPointerReadRequiresOverwrittenRegister() {
+        List<String> lines = Arrays.asList("const reg2 7",
+                                           "push reg2",
+                                           "call routine",
+                                           "pop reg3",
+                                           "push reg2",
+                                           "call routine",
+                                           "push reg1",
+                                           "int 1",
+                                           "halt",
+                                           "routine: rload reg1 [sp+4]",
+                                           "ret");
+        assertEquals(1, inlinedCalls(lines, 8));
+        assertEquals("7", run(lines, 8));
+    }
+
+    @Test
+    public void testInlinedFizzBuzz() throws IOException {
+        List<String> source =
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList();
+        assertEquals(1, inlinedCalls(source, 64));
+        assertEquals(run(source, 0), run(source, 64));
+    }
+
+    private static int inlinedCalls(List<String> lines, int maxInstructions) {
+        RoutineInliner inliner = new RoutineInliner(lines, maxInstructions);
+        inliner.inline();
+        return inliner.getNumberOfInlinedCalls();
+    }
+
+    private static String run(List<String> lines, int inlineThreshold) {
+        ToyVMAssembler assembler = new ToyVMAssembler("test", lines);
+        assembler.setInlineThreshold(inlineThreshold);
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new ConsoleOutput(output));
+        interpreter.run();
+        return output.toString();
+    }
+}
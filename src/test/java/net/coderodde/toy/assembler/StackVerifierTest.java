@@ -0,0 +1,81 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackVerifierTest {
+
+    @Test
+    public void testVerifiesFizzBuzz() throws IOException {
+        for (boolean fuse : new boolean[]{ false, true }) {
+            ToyVMAssembler assembler = new ToyVMAssembler(
+                    "fizzbuzz.toy",
+                    new SourceFileReader(new File("fizzbuzz.toy"))
+                            .toLineList());
+            assembler.setSuperinstructions(fuse);
+            assembler.setBranchRelaxation(fuse);
+            assembler.setStackVerification(true);
+            byte[] image = assembler.assemble();
+            // pusha, push, the return address and a push in the routine.
+            assertEquals(28, assembler.getMaxStackDepth());
+            assertEquals(28, ImageHeader.read(image).getMaxStackDepth());
+
+            ToyVMInterpreter interpreter = new ToyVMInterpreter(image);
+            assertFalse(interpreter.isStackChecked());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            interpreter.setOutput(new ConsoleOutput(output));
+            interpreter.run();
+            assertTrue(output.toString().startsWith("1\n2\nFizz\n4\nBuzz\n"));
+        }
+    }
+
+    @Test
+    public void testRejectsGrowingLoop() {
+        checkRejected("loop: push reg1", "jmp loop");
+    }
+
+    @Test
+    public void testRejectsUnbalancedRoutine() {
+        checkRejected("call routine", "halt", "routine: push reg1", "ret");
+    }
+
+    @Test
+    public void testRejectsRecursion() {
+        checkRejected("call routine",
+                      "halt",
+                      "routine: cmp reg1 reg2",
+                      "je done",
+                      "call routine",
+                      "done: ret");
+    }
+
+    @Test
+    public void testRejectsUnderflowAndHcall() {
+        checkRejected("pop reg1", "halt");
+        checkRejected("hcall strlen", "halt");
+    }
+
+    @Test
+    public void testNoHeaderWithoutVerification() {
+        ToyVMAssembler assembler = new ToyVMAssembler(
+                "test", Arrays.asList("push reg1", "pop reg1", "halt"));
+        byte[] image = assembler.assemble();
+        assertFalse(ImageHeader.isPresent(image));
+        assertTrue(new ToyVMInterpreter(image).isStackChecked());
+    }
+
+    private static void checkRejected(String... lines) {
+        ToyVMAssembler assembler =
+                new ToyVMAssembler("test", Arrays.asList(lines));
+        assembler.setStackVerification(true);
+        byte[] image = assembler.assemble();
+        assertEquals(ImageHeader.UNKNOWN_STACK_DEPTH,
+                     assembler.getMaxStackDepth());
+        assertNotNull(assembler.getStackVerificationFailure());
+        assertFalse(ImageHeader.isPresent(image));
+    }
+}
@@ -1,15 +1,25 @@
 package net.coderodde.toy.assembler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import static net.coderodde.toy.assembler.ToyVMAssembler.*;
 
 public class ToyVMAssemblerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private final List<String> source = new ArrayList<>();
     private ToyVMAssembler assembler;
     
@@ -28,6 +38,71 @@ public class ToyVMAssemblerTest {
         assertTrue(Arrays.equals(expected, code));
     }
     
+    @Test
+    public void testImmediateForms() {
+        source.add("add reg1 #5");
+        source.add("cmp reg2 #-1");
+        source.add("mod reg3 #0x0f");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{
+            ADD_IMMEDIATE, REG1, 5, 0, 0, 0,
+            CMP_IMMEDIATE, REG2, -1, -1, -1, -1,
+            MOD_IMMEDIATE, REG3, 15, 0, 0, 0
+        };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testBadImmediateOperandThrowsAssemblyException() {
+        source.add("mul reg1 #five");
+        assembler.assemble();
+    }
+
+    @Test
+    public void testMemoryOperandForms() {
+        source.add("rload reg1 [sp+4]");
+        source.add("rstore reg2 [reg3-8]");
+        source.add("rload reg4 [reg1]");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{
+            RLOAD_SP, REG1, 4, 0, 0, 0,
+            RSTORE_INDEXED, REG2, REG3, -8, -1, -1, -1,
+            RLOAD_INDEXED, REG4, REG1, 0, 0, 0, 0
+        };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testMalformedMemoryOperandThrowsAssemblyException() {
+        source.add("rload reg1 [sp+four]");
+        assembler.assemble();
+    }
+
+    @Test
+    public void testMemcpyAndMemset() {
+        source.add("memcpy reg1 reg2 reg3");
+        source.add("memset reg4 reg1 reg2");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ MEMCPY, REG1, REG2, REG3,
+                                      MEMSET, REG4, REG1, REG2 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test
+    public void testHcall() {
+        source.add("hcall strcmp");
+        source.add("hcall 7");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ HCALL, 1, 0, 0, 0, HCALL, 7, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testUnknownHostFunctionThrowsAssemblyException() {
+        source.add("hcall no_such_function");
+        assembler.assemble();
+    }
+
     @Test
     public void testNeg() {
         source.add("neg reg3");
@@ -688,6 +763,451 @@ public class ToyVMAssemblerTest {
         assertTrue(Arrays.equals(expected, code));
     }
     
+    @Test
+    public void testDataBlocks() {
+        source.add("const reg1 table");
+        source.add("words table 1 -2 0x100");
+        source.add("bytes small 1 255 -1");
+        source.add("space buffer 3");
+        source.add("const reg2 buffer");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ CONST, REG1, 12, 0, 0, 0,
+                                      CONST, REG2, 27, 0, 0, 0,
+                                      1, 0, 0, 0,
+                                      -2, -1, -1, -1,
+                                      0, 1, 0, 0,
+                                      1, -1, -1,
+                                      0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testByteOutOfRangeThrowsAssemblyException() {
+        source.add("bytes small 256");
+        assembler.assemble();
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testDuplicateDataNameThrowsAssemblyException() {
+        source.add("str name \"x\"");
+        source.add("space name 4");
+        assembler.assemble();
+    }
+
+    @Test
+    public void testReserve() throws IOException {
+        source.add("const reg1 buffer");
+        source.add("const reg2 end");
+        source.add("halt");
+        source.add("reserve buffer 1000");
+        source.add("reserve end 0");
+        byte[] code = assembler.assemble();
+        ImageHeader header = ImageHeader.read(code);
+        assertEquals(1000, header.getReservedSize());
+        byte[] expected = new byte[]{ CONST, REG1, 13, 0, 0, 0,
+                                      CONST, REG2, (byte) 0xf5, 3, 0, 0,
+                                      HALT };
+        assertTrue(Arrays.equals(expected,
+                                 Arrays.copyOfRange(code,
+                                                    header.getSize(),
+                                                    code.length)));
+    }
+
+    @Test
+    public void testNoHeaderWithoutReserve() {
+        source.add("halt");
+        assertFalse(ImageHeader.isPresent(assembler.assemble()));
+    }
+
+    @Test
+    public void testIncbin() throws IOException {
+        File file = temporaryFolder.newFile("table.bin");
+        byte[] content = new byte[10000];
+
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (i * 31);
+        }
+
+        FileUtilities.writeFile(file, content);
+        source.add("load reg1 blob");
+        source.add("incbin blob \"" + file.getAbsolutePath() + "\"");
+        byte[] code = assembler.assemble();
+        assertEquals(6 + content.length, code.length);
+        assertEquals(6, code[2]);
+        assertTrue(Arrays.equals(content,
+                                 Arrays.copyOfRange(code, 6, code.length)));
+    }
+
+    @Test(expected = AssemblyException.class)
+    public void testIncbinOfMissingFileThrowsAssemblyException() {
+        source.add("incbin blob \"no/such/file.bin\"");
+        assembler.assemble();
+    }
+
+    @Test
+    public void testBranchRelaxationShortensNearBranches() {
+        assembler.setBranchRelaxation(true);
+        source.add("label: nop");
+        source.add("jmp label");
+        source.add("ja forward");
+        source.add("call label");
+        source.add("forward: halt");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ NOP, 
+                                      JMP_SHORT, -3,
+                                      JA_SHORT, 2,
+                                      CALL_SHORT, -7,
+                                      HALT };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testBranchRelaxationKeepsFarBranchesLong() {
+        assembler.setBranchRelaxation(true);
+        source.add("jmp far");
+        source.add("je near");
+        
+        for (int i = 0; i < 130; ++i) {
+            source.add("nop");
+        }
+        
+        source.add("near: nop");
+        source.add("far: halt");
+        byte[] code = assembler.assemble();
+        assertEquals(5 + 5 + 130 + 2, code.length);
+        assertEquals(JMP, code[0]);
+        assertEquals((byte) 141, code[1]);
+        assertEquals(JE, code[5]);
+        assertEquals((byte) 140, code[6]);
+    }
+    
+    @Test
+    public void testBranchRelaxationRelocatesData() {
+        assembler.setBranchRelaxation(true);
+        source.add("label: load reg1 my_word");
+        source.add("jb label");
+        source.add("word my_word 7");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ LOAD, REG1, 8, 0, 0, 0,
+                                      JB_SHORT, -8,
+                                      7, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testBranchRelaxationKeepsAbsoluteAddressesValid() {
+        assembler.setBranchRelaxation(true);
+        source.add("jmp 10");
+        source.add("jmp end");
+        source.add("const reg1 7");
+        source.add("push reg1");
+        source.add("int 1");
+        source.add("end: halt");
+        byte[] code = assembler.assemble();
+        assertEquals(JMP, code[5]);
+        assertEquals(CONST, code[10]);
+        
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(code);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new ConsoleOutput(output));
+        interpreter.run();
+        interpreter.flushOutput();
+        assertEquals("7", output.toString());
+    }
+    
+    @Test
+    public void testSuperinstructionsFuseCompareAndJump() {
+        assembler.setSuperinstructions(true);
+        source.add("label: cmp reg1 reg2");
+        source.add("ja label");
+        source.add("jb label");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ CMP_JA, REG1, REG2, 0, 0, 0, 0,
+                                      JB, 0, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testSuperinstructionsFuseConstAndAdd() {
+        assembler.setSuperinstructions(true);
+        source.add("const reg2 5");
+        source.add("add reg2 reg3");
+        source.add("const reg1 5");
+        source.add("add reg2 reg3");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ CONST_ADD, REG2, 5, 0, 0, 0, REG3,
+                                      CONST, REG1, 5, 0, 0, 0,
+                                      ADD, REG2, REG3 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testSuperinstructionsFuseCallSequence() {
+        assembler.setSuperinstructions(true);
+        source.add("pusha");
+        source.add("push reg1");
+        source.add("call func");
+        source.add("pop reg1");
+        source.add("popa");
+        source.add("func: ret");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ PUSHA_PUSH_CALL, REG1, 8, 0, 0, 0,
+                                      POP_POPA, REG1,
+                                      RET };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testSuperinstructionsDoNotFuseLabelledInstructions() {
+        assembler.setSuperinstructions(true);
+        source.add("cmp reg1 reg2");
+        source.add("label: je label");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ CMP, REG1, REG2, JE, 3, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testVirtualRegisterAsMemoryOperandBase() {
+        assembler.setVirtualRegisters(true);
+        source.add("const v0 100");
+        source.add("rload reg1 [v0+4]");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ CONST, REG2, 100, 0, 0, 0,
+                                      RLOAD_INDEXED, REG1, REG2, 4, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+
+    @Test
+    public void testVirtualRegistersMapToFreePhysicalRegisters() {
+        assembler.setVirtualRegisters(true);
+        source.add("const reg1 1");
+        source.add("const v0 2");
+        source.add("add v0 reg1");
+        source.add("const v1 3");
+        source.add("add v1 reg1");
+        byte[] code = assembler.assemble();
+        // 'v0' is dead when 'v1' is defined, so they share 'reg2'.
+        byte[] expected = new byte[]{ CONST, REG1, 1, 0, 0, 0,
+                                      CONST, REG2, 2, 0, 0, 0,
+                                      ADD, REG2, REG1,
+                                      CONST, REG2, 3, 0, 0, 0,
+                                      ADD, REG2, REG1 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testVirtualRegisterIsLiveAcrossLoop() {
+        assembler.setVirtualRegisters(true);
+        source.add("const v0 0");
+        source.add("loop: const v1 1");
+        source.add("add v1 v0");
+        source.add("cmp v0 v1");
+        source.add("jb loop");
+        byte[] code = assembler.assemble();
+        assertEquals(REG1, code[1]);
+        assertEquals(REG2, code[7]);
+        assertEquals(REG2, code[13]);
+        assertEquals(REG1, code[14]);
+    }
+    
+    @Test
+    public void testVirtualRegistersSurviveCall() {
+        assembler.setVirtualRegisters(true);
+        source.add("const v0 5");
+        source.add("call f");
+        source.add("push v0");
+        source.add("int 1");
+        source.add("halt");
+        source.add("f: const v1 9");
+        source.add("push v1");
+        source.add("pop v1");
+        source.add("ret");
+        ToyVMInterpreter interpreter = 
+                new ToyVMInterpreter(assembler.assemble());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        interpreter.setOutput(new ConsoleOutput(output));
+        interpreter.run();
+        interpreter.flushOutput();
+        assertEquals("5", output.toString());
+    }
+    
+    @Test
+    public void testVirtualRegistersAreSpilled() {
+        assembler.setVirtualRegisters(true);
+        
+        for (int i = 0; i < 6; ++i) {
+            source.add("const v" + i + " " + i);
+        }
+        
+        for (int i = 0; i < 6; ++i) {
+            source.add("push v" + i);
+        }
+        
+        source.add("halt");
+        ToyVMInterpreter interpreter = 
+                new ToyVMInterpreter(assembler.assemble());
+        interpreter.run();
+        int stackPointer = interpreter.getStackPointer();
+        assertEquals(ToyVMInterpreter.DEFAULT_MEMORY_SIZE - 24, stackPointer);
+    }
+    
+    @Test(expected = AssemblyException.class)
+    public void testVirtualRegistersThrowWithoutFreePhysicalRegisters() {
+        assembler.setVirtualRegisters(true);
+        source.add("neg reg1");
+        source.add("neg reg2");
+        source.add("neg reg3");
+        source.add("neg reg4");
+        source.add("neg v0");
+        assembler.assemble();
+    }
+    
+    @Test
+    public void testSourceMapAttributesAddressesToLines() throws IOException {
+        assembler.setSourceMap(true);
+        assembler.setBranchRelaxation(true);
+        source.add("// Comment");
+        source.add("start: nop");
+        source.add("");
+        source.add("jmp start");
+        source.add("func: add reg1 reg2");
+        source.add("ret");
+        source.add("word w 10");
+        byte[] code = assembler.assemble();
+        SourceMap sourceMap = assembler.getSourceMap();
+        assertEquals(7, sourceMap.getCodeLength());
+        assertEquals(2, sourceMap.getLine(0));
+        assertEquals(4, sourceMap.getLine(1));
+        assertEquals(4, sourceMap.getLine(2));
+        assertEquals(5, sourceMap.getLine(3));
+        assertEquals(5, sourceMap.getLine(5));
+        assertEquals(6, sourceMap.getLine(6));
+        assertEquals(-1, sourceMap.getLine(7));
+        assertEquals("func", sourceMap.getLabel(4));
+        assertEquals("func+1 (test:5)", sourceMap.describe(4));
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sourceMap.write(out);
+        SourceMap readSourceMap = 
+                SourceMap.read(new ByteArrayInputStream(out.toByteArray()));
+        
+        for (int address = 0; address < code.length; ++address) {
+            assertEquals(sourceMap.getLine(address), 
+                         readSourceMap.getLine(address));
+            assertEquals(sourceMap.getLabel(address),
+                         readSourceMap.getLabel(address));
+        }
+    }
+    
+    @Test
+    public void testErrorCollectingModeReportsAllErrors() {
+        assembler.setMaxErrors(10);
+        source.add("add reg1 reg2");
+        source.add("  neg reg5");
+        source.add("bad");
+        source.add("jmp nowhere");
+        source.add("label: nop");
+        source.add("load reg1 absent");
+        source.add("jmp label");
+        
+        try {
+            assembler.assemble();
+            fail("AssemblyException expected.");
+        } catch (AssemblyException ex) {
+            List<Diagnostic> diagnosticList = ex.getDiagnosticList();
+            assertEquals(4, diagnosticList.size());
+            assertEquals(2, diagnosticList.get(0).getLineNumber());
+            assertEquals(7, diagnosticList.get(0).getColumnNumber());
+            assertEquals(3, diagnosticList.get(1).getLineNumber());
+            assertEquals(1, diagnosticList.get(1).getColumnNumber());
+            assertEquals(4, diagnosticList.get(2).getLineNumber());
+            assertEquals(5, diagnosticList.get(2).getColumnNumber());
+            assertEquals(6, diagnosticList.get(3).getLineNumber());
+            assertEquals(11, diagnosticList.get(3).getColumnNumber());
+            assertEquals("test", diagnosticList.get(3).getFileName());
+            assertTrue(ex.getMessage().contains("nowhere"));
+        }
+    }
+    
+    @Test
+    public void testErrorCollectingModeStopsAtMaxErrors() {
+        assembler.setMaxErrors(2);
+        source.add("bad1");
+        source.add("bad2");
+        source.add("bad3");
+        
+        try {
+            assembler.assemble();
+            fail("AssemblyException expected.");
+        } catch (AssemblyException ex) {
+            assertEquals(2, ex.getDiagnosticList().size());
+        }
+    }
+    
+    @Test
+    public void testErrorCollectingModeAssemblesValidCode() {
+        assembler.setMaxErrors(5);
+        source.add("label: neg reg1");
+        source.add("jmp label");
+        byte[] code = assembler.assemble();
+        byte[] expected = new byte[]{ NEG, REG1, JMP, 0, 0, 0, 0 };
+        assertTrue(Arrays.equals(expected, code));
+    }
+    
+    @Test
+    public void testStatisticsCountLinesInstructionsAndFixups()
+    throws IOException {
+        AssemblyStatistics statistics = new AssemblyStatistics("test");
+        assembler.setStatistics(statistics);
+        source.add("label: nop");
+        source.add("");
+        source.add("nop");
+        source.add("jmp label");
+        source.add("load reg1 my_word");
+        source.add("word my_word 1");
+        byte[] code = assembler.assemble();
+        assertEquals(6, statistics.getLines());
+        assertEquals(4, statistics.getInstructions());
+        assertEquals(2, statistics.getInstructionCount("nop"));
+        assertEquals(0, statistics.getInstructionCount("word"));
+        assertEquals(1, statistics.getDirectives());
+        assertEquals(1, statistics.getLabels());
+        assertEquals(2, statistics.getFixups());
+        assertEquals(code.length, statistics.getOutputBytes());
+        
+        StringWriter json = new StringWriter();
+        statistics.writeJson(json);
+        assertTrue(json.toString().startsWith("{\"file\":\"test\","));
+        assertTrue(json.toString().contains("\"nop\":2"));
+        assertTrue(json.toString().contains("\"directives\":1,"));
+        assertTrue(json.toString().endsWith("\"outputBytes\":" + 
+                                            code.length + "}"));
+    }
+    
+    @Test
+    public void testResetAssemblesLikeFreshAssembler() throws IOException {
+        List<String> fizzBuzz = 
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList();
+        byte[] expected = 
+                new ToyVMAssembler("fizzbuzz.toy", fizzBuzz).assemble();
+        
+        source.add("label: jmp label");
+        source.add("word w 1");
+        assembler.setBranchRelaxation(true);
+        assembler.assemble();
+        
+        assembler.setBranchRelaxation(false);
+        assembler.reset("fizzbuzz.toy", fizzBuzz);
+        assertTrue(Arrays.equals(expected, assembler.assemble()));
+        assembler.reset("fizzbuzz.toy", fizzBuzz);
+        assertTrue(Arrays.equals(expected, assembler.assemble()));
+        
+        assembler.reset("test", Arrays.asList("nop"));
+        assertTrue(Arrays.equals(new byte[]{ NOP }, assembler.assemble()));
+        assertTrue(assembler.getLabelMap().isEmpty());
+    }
+    
     private void writeString(String string, byte[] code, int offset) {
         for (char c : string.toCharArray()) {
             code[offset++] = (byte) c;
@@ -0,0 +1,109 @@
+package net.coderodde.toy.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ToyVMDisassemblerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDisassemblyReassemblesToSameCode() throws IOException {
+        List<String> fizzBuzz =
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList();
+        ToyVMAssembler assembler = new ToyVMAssembler("fizzbuzz.toy", fizzBuzz);
+        assembler.setSourceMap(true);
+        byte[] image = assembler.assemble();
+        int codeLength = assembler.getSourceMap().getCodeLength();
+
+        String disassembly = disassemble(image, null);
+        assertTrue(disassembly.contains("// Data region"));
+        assertTrue(disassembly.contains("FizzBuzz"));
+
+        byte[] reassembled = new ToyVMAssembler(
+                "fizzbuzz.dis",
+                Arrays.asList(disassembly.split("\n"))).assemble();
+        assertTrue(Arrays.equals(Arrays.copyOf(image, codeLength),
+                                 reassembled));
+    }
+
+    @Test
+    public void testDisassemblyUsesSourceMapLabels() throws IOException {
+        List<String> source = Arrays.asList("start: nop",
+                                            "call func",
+                                            "jmp start",
+                                            "func: ret",
+                                            "word w 0x11223344");
+        ToyVMAssembler assembler = new ToyVMAssembler("test", source);
+        assembler.setSourceMap(true);
+        byte[] image = assembler.assemble();
+        String disassembly = disassemble(image, assembler.getSourceMap());
+        assertEquals("// Disassembly of image.brick\n" +
+                     "start:\n" +
+                     "    nop\n" +
+                     "    call func\n" +
+                     "    jmp start\n" +
+                     "func:\n" +
+                     "    ret\n" +
+                     "\n" +
+                     "// Data region\n" +
+                     "// 0000000c: 44 33 22 11" +
+                     "                                      |D3\".|\n",
+                     disassembly);
+    }
+
+    @Test
+    public void testShortAndFusedInstructions() throws IOException {
+        List<String> source = Arrays.asList("loop: cmp reg1 reg2",
+                                            "jb loop",
+                                            "je loop",
+                                            "halt");
+        ToyVMAssembler assembler = new ToyVMAssembler("test", source);
+        assembler.setBranchRelaxation(true);
+        assembler.setSuperinstructions(true);
+        String disassembly = disassemble(assembler.assemble(), null);
+        assertEquals("// Disassembly of image.brick\n" +
+                     "L_00000000:\n" +
+                     "    cmp.jb reg1 reg2 L_00000000\n" +
+                     "    je L_00000000\n" +
+                     "    halt\n",
+                     disassembly);
+    }
+
+    @Test
+    public void testImmediateAndMemoryOperands() throws IOException {
+        List<String> source = Arrays.asList("add reg1 #5",
+                                            "cmp reg2 #-1",
+                                            "rload reg1 [sp+4]",
+                                            "rstore reg2 [reg3-8]",
+                                            "halt");
+        String disassembly = disassemble(
+                new ToyVMAssembler("test", source).assemble(), null);
+        assertEquals("// Disassembly of image.brick\n" +
+                     "    add reg1 #5\n" +
+                     "    cmp reg2 #-1\n" +
+                     "    rload reg1 [sp+4]\n" +
+                     "    rstore reg2 [reg3-8]\n" +
+                     "    halt\n",
+                     disassembly);
+    }
+
+    private String disassemble(byte[] image, SourceMap sourceMap)
+    throws IOException {
+        File imageFile = temporaryFolder.newFile("image.brick");
+        FileUtilities.writeFile(imageFile, image);
+        ToyVMDisassembler disassembler = new ToyVMDisassembler(imageFile);
+        disassembler.setSourceMap(sourceMap);
+        StringWriter writer = new StringWriter();
+        disassembler.disassemble(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,340 @@
+package net.coderodde.toy.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import static net.coderodde.toy.assembler.ToyVMAssembler.*;
+
+public class ToyVMInterpreterTest {
+
+    private final List<String> source = new ArrayList<>();
+    private ToyVMAssembler assembler;
+
+    @Before
+    public void before() {
+        source.clear();
+        assembler = new ToyVMAssembler("test", source);
+    }
+
+    @Test
+    public void testArithmetic() {
+        source.add("const reg1 7");
+        source.add("const reg2 3");
+        source.add("add reg1 reg2");   // reg2 = 10
+        source.add("const reg3 4");
+        source.add("mul reg2 reg3");   // reg3 = 40
+        source.add("const reg4 100");
+        source.add("mod reg4 reg3");   // reg3 = 20
+        source.add("neg reg1");        // reg1 = -7
+        source.add("halt");
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble());
+        interpreter.run();
+        assertEquals(-7,  interpreter.getRegister(REG1));
+        assertEquals(10,  interpreter.getRegister(REG2));
+        assertEquals(20,  interpreter.getRegister(REG3));
+        assertEquals(100, interpreter.getRegister(REG4));
+    }
+
+    @Test
+    public void testLoadAndStore() {
+        source.add("load reg1 my_word");
+        source.add("const reg2 1");
+        source.add("add reg2 reg1");
+        source.add("store reg1 my_word");
+        source.add("const reg3 my_word");
+        source.add("rload reg4 reg3");
+        source.add("halt");
+        source.add("word my_word 41");
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble());
+        interpreter.run();
+        assertEquals(42, interpreter.getRegister(REG4));
+    }
+
+    @Test
+    public void testReservedRegionIsZeroed() {
+        source.add("const reg1 buffer");
+        source.add("const reg2 4000");
+        source.add("add reg2 reg1");
+        source.add("rload reg3 reg1");
+        source.add("halt");
+        source.add("reserve buffer 4096");
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble(), 8192, 1024);
+        interpreter.run();
+        assertEquals(0, interpreter.getRegister(REG3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeReservedRegionThrows() {
+        source.add("halt");
+        source.add("reserve buffer 8192");
+        new ToyVMInterpreter(assembler.assemble(), 8192, 1024);
+    }
+
+    @Test(expected = ToyVMException.class)
+    public void testStackUnderflowThrowsToyVMException() {
+        source.add("pop reg1");
+        new ToyVMInterpreter(assembler.assemble()).run();
+    }
+
+    @Test(expected = ToyVMException.class)
+    public void testDivisionByZeroThrowsToyVMException() {
+        source.add("div reg1 reg2");
+        new ToyVMInterpreter(assembler.assemble()).run();
+    }
+
+    @Test
+    public void testSpilledVirtualRegistersKeepTheirValues() {
+        assembler.setVirtualRegisters(true);
+
+        for (int i = 0; i < 6; ++i) {
+            source.add("const v" + i + " " + (i + 1));
+        }
+
+        // Sum up all the virtual registers into 'v0'.
+        for (int i = 1; i < 6; ++i) {
+            source.add("add v" + i + " v0");
+        }
+
+        source.add("push v0");
+        source.add("int 1");
+        source.add("halt");
+        assertEquals("21", run(assembler.assemble()));
+    }
+
+    @Test
+    public void testFizzBuzzRunsIdenticallyInAllEncodings()
+    throws FileNotFoundException {
+        String expected = runFizzBuzz(false, false);
+        assertTrue(expected.startsWith("1\n2\nFizz\n4\nBuzz\n"));
+        assertTrue(expected.endsWith("98\nFizz\nBuzz\n"));
+        assertEquals(expected, runFizzBuzz(true, false));
+        assertEquals(expected, runFizzBuzz(false, true));
+        assertEquals(expected, runFizzBuzz(true, true));
+    }
+
+    @Test
+    public void testProfilerCountsExecutionsAndCallStacks()
+    throws IOException {
+        source.add("const reg1 3");
+        source.add("const reg2 -1");
+        source.add("loop: call func");
+        source.add("add reg2 reg1");
+        source.add("cmp reg1 reg3");
+        source.add("ja loop");
+        source.add("halt");
+        source.add("func: nop");
+        source.add("ret");
+        byte[] image = assembler.assemble();
+        ToyVMProfiler profiler =
+                new ToyVMProfiler(new ToyVMInterpreter(image),
+                                  image.length,
+                                  assembler.getLabelMap(),
+                                  1);
+        profiler.run();
+        int loop = assembler.getLabelMap().get("loop");
+        int func = assembler.getLabelMap().get("func");
+        assertEquals(3, profiler.getExecutionCount(loop));
+        assertEquals(3, profiler.getExecutionCount(func));
+        assertEquals(2 + 3 * 6 + 1, profiler.getTotalInstructions());
+
+        StringWriter collapsedStacks = new StringWriter();
+        profiler.writeCollapsedStacks(collapsedStacks);
+        assertEquals("[entry] 15\n[entry];func 6\n",
+                     collapsedStacks.toString());
+
+        StringWriter report = new StringWriter();
+        profiler.writeReport(report);
+        assertTrue(report.toString().contains("loop"));
+    }
+
+    @Test
+    public void testProfilerReportsBadJump() {
+        source.add("jmp 2000000");
+        byte[] image = assembler.assemble();
+        ToyVMProfiler profiler =
+                new ToyVMProfiler(new ToyVMInterpreter(image),
+                                  image.length,
+                                  assembler.getLabelMap(),
+                                  1);
+
+        try {
+            profiler.run();
+            fail("A ToyVMException should have been thrown.");
+        } catch (ToyVMException ex) {
+            assertEquals("Bad memory access at address 2000000.",
+                         ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testMemoryOperands() {
+        source.add("const reg1 21");
+        source.add("push reg1");
+        source.add("call double");
+        source.add("pop reg1");
+        source.add("lsp reg3");
+        source.add("rstore reg1 [reg3-8]");
+        source.add("rload reg4 [reg3-8]");
+        source.add("halt");
+        source.add("double:");
+        source.add("rload reg2 [sp+4]");   // Skip the return address.
+        source.add("add reg2 reg2");
+        source.add("rstore reg2 [sp+4]");
+        source.add("ret");
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble());
+        interpreter.run();
+        assertEquals(42, interpreter.getRegister(REG1));
+        assertEquals(42, interpreter.getRegister(REG4));
+    }
+
+    @Test
+    public void testMemcpyAndMemset() {
+        source.add("lsp reg1");
+        source.add("add reg1 #-64");       // A buffer on the stack.
+        source.add("const reg2 '*'");
+        source.add("const reg3 3");
+        source.add("memset reg1 reg2 reg3");
+        source.add("push reg1");
+        source.add("pop reg4");
+        source.add("add reg4 #3");
+        source.add("const reg2 msg");
+        source.add("const reg3 4");       // Including the terminator.
+        source.add("memcpy reg4 reg2 reg3");
+        source.add("push reg1");
+        source.add("int 2");
+        source.add("halt");
+        source.add("str msg \"abc\"");
+        assertEquals("***abc", run(assembler.assemble()));
+    }
+
+    @Test(expected = ToyVMException.class)
+    public void testMemsetOutOfMemoryIsReported() {
+        source.add("const reg1 16");
+        source.add("const reg2 -1");
+        source.add("memset reg1 reg2 reg2");
+        source.add("halt");
+        run(assembler.assemble());
+    }
+
+    @Test
+    public void testStandardHostFunctions() {
+        source.add("const reg1 s1");
+        source.add("hcall strlen");
+        source.add("push reg1");
+        source.add("int 1");
+        source.add("const reg1 s1");
+        source.add("const reg2 s2");
+        source.add("hcall strcmp");
+        source.add("push reg1");
+        source.add("int 1");
+        source.add("const reg1 s1");
+        source.add("const reg2 1");
+        source.add("hcall hash");
+        source.add("hcall print_hex");
+        source.add("halt");
+        source.add("str s1 \"abc\"");
+        source.add("str s2 \"abd\"");
+        // FNV-1a of "a".
+        assertEquals("3-1e40c292c", run(assembler.assemble()));
+    }
+
+    @Test
+    public void testCustomHostFunctionTakesStackArguments() {
+        Map<String, HostFunction> functions =
+                new LinkedHashMap<>(
+                        HostFunctionRegistry.STANDARD.getFunctionMap());
+        functions.put("sum", (context) -> {
+            context.setRegister(REG1, context.pop() + context.pop());
+        });
+        HostFunctionRegistry registry = new HostFunctionRegistry(functions);
+        assembler.setHostFunctionRegistry(registry);
+        source.add("const reg1 40");
+        source.add("const reg2 2");
+        source.add("push reg1");
+        source.add("push reg2");
+        source.add("hcall sum");
+        source.add("halt");
+        ToyVMInterpreter interpreter =
+                new ToyVMInterpreter(assembler.assemble());
+        interpreter.setHostFunctionRegistry(registry);
+        interpreter.run();
+        assertEquals(42, interpreter.getRegister(REG1));
+        assertEquals(ToyVMInterpreter.DEFAULT_MEMORY_SIZE,
+                     interpreter.getStackPointer());
+    }
+
+    @Test
+    public void testImmediateFormsRunFizzBuzz() throws FileNotFoundException {
+        source.add("    const reg1 0");
+        source.add("loop:");
+        source.add("    add reg1 #1");
+        source.add("    cmp reg1 #100");
+        source.add("    ja end");
+        source.add("    const reg2 str_fb");
+        source.add("    push reg1");
+        source.add("    pop reg3");
+        source.add("    mod reg3 #15");
+        source.add("    cmp reg3 #0");
+        source.add("    je print");
+        source.add("    const reg2 str_b");
+        source.add("    push reg1");
+        source.add("    pop reg3");
+        source.add("    mod reg3 #5");
+        source.add("    cmp reg3 #0");
+        source.add("    je print");
+        source.add("    const reg2 str_f");
+        source.add("    push reg1");
+        source.add("    pop reg3");
+        source.add("    mod reg3 #3");
+        source.add("    cmp reg3 #0");
+        source.add("    je print");
+        source.add("    push reg1");
+        source.add("    int 1");
+        source.add("    const reg2 str_nl");
+        source.add("print:");
+        source.add("    push reg2");
+        source.add("    int 2");
+        source.add("    jmp loop");
+        source.add("end:");
+        source.add("    halt");
+        source.add("    str str_fb \"FizzBuzz\\n\"");
+        source.add("    str str_f  \"Fizz\\n\"");
+        source.add("    str str_b  \"Buzz\\n\"");
+        source.add("    str str_nl \"\\n\"");
+        assertEquals(runFizzBuzz(false, false), run(assembler.assemble()));
+    }
+
+    static String runFizzBuzz(boolean branchRelaxation,
+                              boolean superinstructions)
+    throws FileNotFoundException {
+        List<String> fizzBuzz =
+                new SourceFileReader(new File("fizzbuzz.toy")).toLineList();
+        ToyVMAssembler fizzBuzzAssembler =
+                new ToyVMAssembler("fizzbuzz.toy", fizzBuzz);
+        fizzBuzzAssembler.setBranchRelaxation(branchRelaxation);
+        fizzBuzzAssembler.setSuperinstructions(superinstructions);
+        return run(fizzBuzzAssembler.assemble());
+    }
+
+    static String run(byte[] image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ToyVMInterpreter interpreter = new ToyVMInterpreter(image);
+        interpreter.setOutput(new PrintStream(bytes));
+        interpreter.run();
+        return bytes.toString();
+    }
+}
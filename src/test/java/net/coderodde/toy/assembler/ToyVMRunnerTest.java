@@ -0,0 +1,95 @@
+package net.coderodde.toy.assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ToyVMRunnerTest {
+
+    @Test
+    public void testRunsManyImages() {
+        List<byte[]> images = new ArrayList<>();
+
+        for (int i = 0; i < 100; ++i) {
+            images.add(assemble("const reg1 " + i,
+                                "push reg1",
+                                "int 1",
+                                "const reg2 msg",
+                                "push reg2",
+                                "int 2",
+                                "halt",
+                                "str msg \"!\""));
+        }
+
+        ToyVMRunner runner = new ToyVMRunner(4);
+        runner.setTimeSlice(3);
+        ToyVMRunner.Report report = runner.run(images);
+        assertEquals(100, report.getResults().size());
+        assertEquals(700, report.getTotalInstructionCount());
+
+        for (int i = 0; i < 100; ++i) {
+            ToyVMRunner.Result result = report.getResults().get(i);
+            assertEquals(ToyVMRunner.Status.HALTED, result.getStatus());
+            assertEquals(i + "!", result.getOutput());
+            assertNull(result.getErrorMessage());
+        }
+
+        assertTrue(report.toString().contains("100 halted"));
+    }
+
+    @Test
+    public void testBudgetAndFailures() {
+        ToyVMRunner runner = new ToyVMRunner(2);
+        runner.setInstructionBudget(1000);
+        runner.setTimeSlice(64);
+        List<ToyVMRunner.Result> results = runner.run(Arrays.asList(
+                assemble("loop:", "jmp loop"),
+                assemble("const reg1 0", "div reg1 reg1", "halt"),
+                assemble("halt"))).getResults();
+
+        assertEquals(ToyVMRunner.Status.BUDGET_EXHAUSTED,
+                     results.get(0).getStatus());
+        assertEquals(1000, results.get(0).getInstructionCount());
+        assertEquals(ToyVMRunner.Status.FAILED, results.get(1).getStatus());
+        assertTrue(results.get(1).getErrorMessage().contains("Division"));
+        // The 'const' before the failing 'div' is counted.
+        assertEquals(1, results.get(1).getInstructionCount());
+        assertEquals(ToyVMRunner.Status.HALTED, results.get(2).getStatus());
+    }
+
+    @Test
+    public void testBoundsLiveInstances() {
+        List<byte[]> images = new ArrayList<>();
+
+        for (int i = 0; i < 200; ++i) {
+            // 1 + 3 * 20 + 3 = 64 instructions.
+            images.add(assemble("const reg1 1",
+                                "loop: add reg1 reg2",
+                                "cmp reg2 #20",
+                                "jb loop",
+                                "push reg2",
+                                "int 1",
+                                "halt"));
+        }
+
+        ToyVMRunner runner = new ToyVMRunner(2);
+        runner.setTimeSlice(5);
+        runner.setMemorySize(4096, 1024);
+        ToyVMRunner.Report report = runner.run(images);
+        assertTrue(runner.getPeakLiveInstances() > 0);
+        assertTrue(runner.getPeakLiveInstances() <=
+                   ToyVMRunner.WINDOW_FACTOR * 2);
+
+        for (ToyVMRunner.Result result : report.getResults()) {
+            assertEquals(ToyVMRunner.Status.HALTED, result.getStatus());
+            assertEquals("20", result.getOutput());
+            assertEquals(64, result.getInstructionCount());
+        }
+    }
+
+    private static byte[] assemble(String... lines) {
+        return new ToyVMAssembler("test", Arrays.asList(lines)).assemble();
+    }
+}